@@ -0,0 +1,77 @@
+package lsr.bench;
+
+import static lsr.common.ProcessDescriptor.processDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import lsr.paxos.storage.DiscWriter;
+import lsr.paxos.storage.FullSSDiscWriter;
+import lsr.paxos.storage.GroupCommitDiscWriter;
+import lsr.paxos.storage.MappedSegmentDiscWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Appends of the FullSS crash model: the value of a new instance written to
+ * stable storage, then its decision. Measured in appends per second, on the
+ * disk of <code>java.io.tmpdir</code>. The group commit writer returns before
+ * the records are durable, so it measures the rate at which it accepts them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DiscWriterBenchmark {
+
+    @Param({"FullSS", "GroupCommit", "MappedSegment"})
+    public String writer;
+
+    @Param({"64", "4096"})
+    public int valueSize;
+
+    private File directory;
+    private DiscWriter discWriter;
+    private byte[] value;
+    private int instance = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        Replicas.initialize();
+        directory = File.createTempFile("discwriter", "");
+        directory.delete();
+        String path = directory.getAbsolutePath();
+        if (writer.equals("FullSS")) {
+            discWriter = new FullSSDiscWriter(path);
+        } else if (writer.equals("GroupCommit")) {
+            discWriter = new GroupCommitDiscWriter(path, processDescriptor().groupCommitWindow);
+        } else {
+            discWriter = new MappedSegmentDiscWriter(path, processDescriptor().logSegmentSize);
+        }
+        value = new byte[valueSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        discWriter.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public void append() {
+        discWriter.changeInstanceValue(instance, 0, value);
+        discWriter.decideInstance(instance);
+        instance++;
+    }
+}
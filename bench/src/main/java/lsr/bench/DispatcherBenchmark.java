@@ -0,0 +1,91 @@
+package lsr.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lsr.common.Dispatcher;
+import lsr.common.DispatcherImpl;
+import lsr.common.MpscDispatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Events per second executed by the Paxos dispatcher: each invocation
+ * dispatches a burst of events and waits until the dispatcher thread has
+ * executed them. The benchmarks differ only in the number of producer
+ * threads: 1, 4 and 16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatcherBenchmark {
+
+    private static final int BURST = 1000;
+
+    @Param({"DispatcherImpl", "MpscDispatcher"})
+    public String dispatcherType;
+
+    private Dispatcher dispatcher;
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+
+    private final Runnable event = new Runnable() {
+        public void run() {
+            executed.incrementAndGet();
+        }
+    };
+
+    @Setup
+    public void setup() {
+        dispatcher = dispatcherType.equals("MpscDispatcher") ? new MpscDispatcher("Dispatcher")
+                : new DispatcherImpl("Dispatcher");
+        dispatcher.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdownNow();
+        ((Thread) dispatcher).interrupt();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BURST)
+    public void producers01() {
+        dispatchBurst();
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BURST)
+    public void producers04() {
+        dispatchBurst();
+    }
+
+    @Benchmark
+    @Threads(16)
+    @OperationsPerInvocation(BURST)
+    public void producers16() {
+        dispatchBurst();
+    }
+
+    private void dispatchBurst() {
+        for (int i = 0; i < BURST; i++) {
+            dispatcher.dispatch(event);
+        }
+        long target = dispatched.addAndGet(BURST);
+        while (executed.get() < target) {
+            Thread.yield();
+        }
+    }
+}
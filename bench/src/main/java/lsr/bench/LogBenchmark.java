@@ -0,0 +1,65 @@
+package lsr.bench;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.Config;
+import lsr.paxos.storage.ConsensusInstance;
+import lsr.paxos.storage.Log;
+import lsr.paxos.storage.RingBufferLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Lookups in the log, and appending to it while truncating it to keep
+ * <code>size</code> instances, as when snapshots are taken continuously.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LogBenchmark {
+
+    @Param({"false", "true"})
+    public boolean ringBuffer;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private final byte[] value = new byte[64];
+    private Log log;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Properties properties = new Properties();
+        properties.setProperty(Config.MAY_SHARE_SNAPSHOTS, "true");
+        Replicas.initialize(properties);
+
+        log = ringBuffer ? new RingBufferLog() : new Log();
+        for (int i = 0; i < size; i++) {
+            log.append(0, value).setDecided();
+        }
+    }
+
+    @Benchmark
+    public ConsensusInstance getInstance() {
+        // all instances in turn
+        int lowest = log.getLowestAvailableId();
+        next = next + 1 < size ? next + 1 : 0;
+        return log.getInstance(lowest + next);
+    }
+
+    @Benchmark
+    public int appendAndTruncate() {
+        log.append(0, value).setDecided();
+        log.truncateBelow(log.getNextId() - size);
+        return log.size();
+    }
+}
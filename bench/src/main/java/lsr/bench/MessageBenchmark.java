@@ -0,0 +1,150 @@
+package lsr.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.Range;
+import lsr.common.Reply;
+import lsr.common.ReplyCache;
+import lsr.common.Request;
+import lsr.common.RequestId;
+import lsr.paxos.Snapshot;
+import lsr.paxos.messages.*;
+import lsr.paxos.storage.ConsensusInstance;
+import lsr.paxos.storage.LogEntryState;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Serialization and deserialization of every message type, carrying values
+ * of <code>valueSize</code> bytes where they carry any.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageBenchmark {
+
+    @Param({"Accept", "Alive", "Phase1a", "Phase1b", "Propose", "CatchUpQuery",
+            "CatchUpResponse", "CatchUpSnapshot", "Recovery", "RecoveryAnswer",
+            "ForwardedClientRequests", "ProposeBatch", "AcceptBatch", "SnapshotChunk",
+            "SnapshotChunkAck", "LeaseAck", "ReadIndexQuery", "ReadIndexReply"})
+    public MessageType type;
+
+    @Param({"64", "1024"})
+    public int valueSize;
+
+    /** Instances or requests in the messages holding several */
+    private static final int ENTRIES = 8;
+
+    private Message message;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        Replicas.initialize();
+        message = create(type, new byte[valueSize]);
+        serialized = message.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return message.toByteArray();
+    }
+
+    @Benchmark
+    public Message create() {
+        return MessageFactory.readByteArray(serialized);
+    }
+
+    private static Message create(MessageType type, byte[] value) {
+        switch (type) {
+            case Accept:
+                return new Accept(2, 100, 2, value);
+            case Alive:
+                return new Alive(2, 100, System.currentTimeMillis());
+            case Phase1a:
+                return new Send1a(2, 100);
+            case Phase1b:
+                return new Send1b(2, instances(value).toArray(new ConsensusInstance[ENTRIES]));
+            case Propose:
+                return new Propose(2, 100, value);
+            case CatchUpQuery:
+                return new CatchUpQuery(2, new int[] {100, 105},
+                        new Range[] {new Range(110, 120)});
+            case CatchUpResponse:
+                return new CatchUpResponse(2, System.currentTimeMillis(), instances(value));
+            case CatchUpSnapshot:
+                return new CatchUpSnapshot(2, System.currentTimeMillis(), snapshot(value));
+            case Recovery:
+                return new Recovery(2, 5);
+            case RecoveryAnswer:
+                return new RecoveryAnswer(2, new long[] {5, 5, 5}, 100);
+            case ForwardedClientRequests:
+                return new ForwardClientRequests(requests(value));
+            case ProposeBatch: {
+                List<Propose> proposes = new ArrayList<Propose>();
+                for (int i = 0; i < ENTRIES; i++) {
+                    proposes.add(new Propose(2, 100 + i, value));
+                }
+                return new ProposeBatch(2, proposes);
+            }
+            case AcceptBatch: {
+                List<Accept> accepts = new ArrayList<Accept>();
+                for (int i = 0; i < ENTRIES; i++) {
+                    accepts.add(new Accept(2, 100 + i, 2, value));
+                }
+                return new AcceptBatch(2, accepts);
+            }
+            case SnapshotChunk:
+                return new SnapshotChunk(2, System.currentTimeMillis(), 1, 10L * value.length,
+                        value.length, value);
+            case SnapshotChunkAck:
+                return new SnapshotChunkAck(2, 1, value.length, false);
+            case LeaseAck:
+                return new LeaseAck(2, System.currentTimeMillis());
+            case ReadIndexQuery:
+                return new ReadIndexQuery(2, 7);
+            case ReadIndexReply:
+                return new ReadIndexReply(2, 7, 100);
+            default:
+                throw new IllegalArgumentException("Not a message: " + type);
+        }
+    }
+
+    private static List<ConsensusInstance> instances(byte[] value) {
+        List<ConsensusInstance> instances = new ArrayList<ConsensusInstance>();
+        for (int i = 0; i < ENTRIES; i++) {
+            instances.add(new ConsensusInstance(100 + i, LogEntryState.DECIDED, 2, value));
+        }
+        return instances;
+    }
+
+    private static Request[] requests(byte[] value) {
+        Request[] requests = new Request[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            requests[i] = new Request(new RequestId(1, i), value);
+        }
+        return requests;
+    }
+
+    private static Snapshot snapshot(byte[] value) {
+        ReplyCache replies = new ReplyCache();
+        for (int i = 0; i < ENTRIES; i++) {
+            replies.put(new Reply(new RequestId(i, 1), new byte[8]), 99);
+        }
+        Snapshot snapshot = new Snapshot();
+        snapshot.setNextInstanceId(100);
+        snapshot.setValue(value);
+        snapshot.setLastReplyForClient(replies);
+        snapshot.setPartialResponseCache(new ArrayList<Reply>());
+        return snapshot;
+    }
+}
@@ -0,0 +1,37 @@
+package lsr.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import lsr.common.Configuration;
+import lsr.common.PID;
+import lsr.common.ProcessDescriptor;
+
+/**
+ * Configuration of the benchmarked replica: replica 1 of 3 on localhost.
+ */
+public final class Replicas {
+
+    public static final int COUNT = 3;
+    public static final int LOCAL_ID = 1;
+
+    private Replicas() {
+    }
+
+    /**
+     * Initializes the process descriptor with the given properties, the
+     * defaults for the others.
+     */
+    public static void initialize(Properties properties) {
+        List<PID> processes = new ArrayList<PID>();
+        for (int i = 0; i < COUNT; i++) {
+            processes.add(new PID(i, "localhost", 2021 + i, 3001 + i));
+        }
+        ProcessDescriptor.initialize(new Configuration(processes, properties), LOCAL_ID);
+    }
+
+    public static void initialize() {
+        initialize(new Properties());
+    }
+}
@@ -0,0 +1,56 @@
+package lsr.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.Request;
+import lsr.common.RequestId;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Unpacking of a decided batch, packed as by the <code>Batcher</code>, before
+ * its requests are executed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int requests;
+
+    @Param({"64", "1024"})
+    public int valueSize;
+
+    private byte[] batch;
+
+    @Setup
+    public void setup() {
+        Request[] batched = new Request[requests];
+        int size = 4;
+        for (int i = 0; i < requests; i++) {
+            batched[i] = new Request(new RequestId(i, 1), new byte[valueSize]);
+            size += 4 + batched[i].byteSize();
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.putInt(requests);
+        for (Request request : batched) {
+            bb.putInt(request.byteSize());
+            request.writeTo(bb);
+        }
+        batch = bb.array();
+    }
+
+    @Benchmark
+    public Request[] unpack() {
+        return Request.unpack(batch);
+    }
+}
@@ -0,0 +1,53 @@
+package lsr.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+/**
+ * Handling of a Phase2a and a Phase2b message by the generated protocol code,
+ * on a state with <code>liveInstances</code> undecided instances. The state is
+ * built once; each message is handled on it, for the instances in turn.
+ *
+ * To compare with the refined finite functions, generate the protocol code
+ * with <code>transformer.py --refined</code> and run it again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class ProtocolBenchmark {
+    import lsr.paxos.core.MPLib._
+    import lsr.paxos.core.MultiPaxosImpl._
+
+    @Param(Array("100", "1000", "10000"))
+    var liveInstances : Int = _
+
+    private val value = new Array[Byte](64)
+    private var state : state_ext[Array[Byte], Unit] = _
+    private var instance = 0
+
+    @Setup
+    def setup() {
+        // the Phase2a of the leader (replica 0) accepted
+        var insts = emptyInstances[Array[Byte]]
+        for (i <- 0 until liveInstances) {
+            val consensus = consensus_exta[Array[Byte], Unit](i, 0, List[Integer](0), 1,
+                    Some(Comd(value)), ())
+            insts = addInstance(i, consensus, insts)
+        }
+        state = state_exta[Array[Byte], Unit](Replicas.LOCAL_ID, false, accs(Replicas.COUNT),
+                0, 0, emptyOBS[Array[Byte]], liveInstances, insts, ())
+    }
+
+    @Benchmark
+    def phase2a() = {
+        processExternalEvent[Array[Byte]](0, Phase2a[Array[Byte]](liveInstances, 0, Comd(value)),
+                state)
+    }
+
+    @Benchmark
+    def phase2b() = {
+        instance = if (instance + 1 < liveInstances) instance + 1 else 0
+        processExternalEvent[Array[Byte]](2, Phase2b[Array[Byte]](instance, 0, Comd(value)), state)
+    }
+}
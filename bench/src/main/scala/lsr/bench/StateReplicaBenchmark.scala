@@ -0,0 +1,66 @@
+package lsr.bench
+
+import java.util.Properties
+import java.util.concurrent.TimeUnit
+
+import lsr.common.Config
+import lsr.paxos.core.MultiPaxosImpl._
+import lsr.paxos.storage.StateReplica
+
+import org.openjdk.jmh.annotations._
+
+/**
+ * Building the protocol state from the log and writing it back, with
+ * <code>logSize</code> decided instances followed by 10 undecided ones.
+ *
+ * The full state mode cannot run above 10000 instances, as the finfun chain
+ * of a larger log does not fit on the stack; its setup fails for these sizes
+ * and JMH goes on with the other parameters. Run
+ * <code>-p incremental=true</code> to measure the large logs only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+class StateReplicaBenchmark {
+
+    @Param(Array("false", "true"))
+    var incremental : Boolean = _
+
+    @Param(Array("1000", "10000", "100000", "1000000"))
+    var logSize : Int = _
+
+    private val Undecided = 10
+
+    private var storage : StateReplica = _
+    private var state : state_ext[Array[Byte], Unit] = _
+    private var firstUndecided = 0
+
+    @Setup
+    def setup() {
+        if (!incremental && logSize > 10000)
+            throw new IllegalStateException("The full state of " + logSize +
+                " instances does not fit on the stack")
+        val properties = new Properties()
+        properties.setProperty(Config.INCREMENTAL_STATE, incremental.toString)
+        properties.setProperty(Config.CRASH_MODEL, "CrashStop")
+        Replicas.initialize(properties)
+
+        storage = new StateReplica()
+        val value = new Array[Byte](64)
+        for (i <- 0 until logSize) {
+            storage.getLog().append(0, value).setDecided()
+        }
+        storage.updateFirstUncommitted()
+        firstUndecided = storage.getFirstUncommitted()
+        for (i <- 0 until Undecided) {
+            storage.getLog().append(0, value)
+        }
+        state = storage.getCurrState(firstUndecided)
+    }
+
+    @Benchmark
+    def getCurrState() : state_ext[Array[Byte], Unit] = storage.getCurrState(firstUndecided)
+
+    @Benchmark
+    def updateState() : Unit = storage.updateState(state)
+}
@@ -0,0 +1,59 @@
+package lsr.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized byte buffers, optionally direct. Buffers are handed
+ * out as {@link PooledBuffer}s with a reference count and return to the pool
+ * once the count drops to zero.
+ * <p>
+ * Releasing is an optimization only: a buffer that is never released is
+ * garbage collected and the pool allocates a new one when empty.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final boolean direct;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<PooledBuffer> free = new ConcurrentLinkedQueue<PooledBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Creates new pool.
+     * 
+     * @param bufferSize - the capacity of each buffer
+     * @param direct - whether to allocate direct buffers
+     * @param maxPooled - the maximum number of free buffers kept
+     */
+    public BufferPool(int bufferSize, boolean direct, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns a cleared buffer with a reference count of one.
+     * 
+     * @return the buffer owned by the caller
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = new PooledBuffer(this, direct ? ByteBuffer.allocateDirect(bufferSize)
+                    : ByteBuffer.allocate(bufferSize));
+        } else {
+            pooled.decrementAndGet();
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    void giveBack(PooledBuffer buffer) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -17,7 +17,11 @@ public class ClientCommand implements Serializable {
      */
     public enum CommandType {
     	Request,
-        Response
+        Response,
+        /** Request which does not modify the state of the service */
+        Read,
+        /** Several requests, answered together */
+        Batch
     };
 
     /**
@@ -31,6 +35,44 @@ public class ClientCommand implements Serializable {
         request = args;
     }
 
+    /**
+     * Creates new command carrying several requests, each with its own id. The
+     * replies are sent together in a single {@link ClientReply}, in the same
+     * order.
+     * 
+     * @param requests - the requests, in the order of their sequence numbers
+     * @throws IllegalArgumentException if there are no requests
+     */
+    public ClientCommand(Request[] requests) {
+        // the requests are the value of a request, so the frame is the same
+        this(CommandType.Batch, new Request(firstRequestId(requests), pack(requests)));
+    }
+
+    private static RequestId firstRequestId(Request[] requests) {
+        if (requests.length == 0) {
+            throw new IllegalArgumentException("Empty batch of requests");
+        }
+        return requests[0].getRequestId();
+    }
+
+    /**
+     * Serializes the requests as <code>[count][size|request]...</code>, as
+     * read by {@link Request#unpack(byte[])}.
+     */
+    private static byte[] pack(Request[] requests) {
+        int size = 4;
+        for (Request request : requests) {
+            size += 4 + request.byteSize();
+        }
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.putInt(requests.length);
+        for (Request request : requests) {
+            bb.putInt(request.byteSize());
+            request.writeTo(bb);
+        }
+        return bb.array();
+    }
+
     /**
      * Creates new command from <code>ByteBuffer</code> which contain serialized
      * command.
@@ -81,6 +123,16 @@ public class ClientCommand implements Serializable {
         return request;
     }
 
+    /**
+     * Returns the requests carried by a command of type <code>Batch</code>.
+     * 
+     * @return the requests, in order
+     */
+    public Request[] getRequests() {
+        assert commandType == CommandType.Batch : "Not a batch: " + commandType;
+        return Request.unpack(request.getValue());
+    }
+
     public String toString() {
         return commandType + ": " + request;
     }
@@ -1,5 +1,6 @@
 package lsr.common;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -17,7 +18,15 @@ public class ClientReply implements Serializable {
 
     /** The result type of this reply message */
     public enum Result {
-        OK, NACK, REDIRECT
+        OK,
+        /**
+         * The request was not executed; the value is a {@link Reply} with
+         * the id of the request and the error message
+         */
+        NACK,
+        REDIRECT,
+        /** The replies to the requests of a batched command */
+        BATCH
     };
 
     /**
@@ -49,6 +58,45 @@ public class ClientReply implements Serializable {
         return value;
     }
 
+    /**
+     * Creates the reply to a batched command.
+     * 
+     * @param replies - the replies to its requests, in the same order
+     * @return the reply holding all replies
+     */
+    public static ClientReply batch(ClientReply[] replies) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(replies.length);
+            for (ClientReply reply : replies) {
+                reply.write(dos);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new ClientReply(Result.BATCH, baos.toByteArray());
+    }
+
+    /**
+     * Returns the replies held by a reply of type <code>BATCH</code>.
+     * 
+     * @return the replies, in the order of the requests
+     */
+    public ClientReply[] getReplies() {
+        assert result == Result.BATCH : "Not a batch: " + result;
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(value));
+        try {
+            ClientReply[] replies = new ClientReply[input.readInt()];
+            for (int i = 0; i < replies.length; i++) {
+                replies[i] = new ClientReply(input);
+            }
+            return replies;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public String toString() {
         return result + " : " + (value == null ? "null" : ("Size: " + value.length));
     }
@@ -38,6 +38,25 @@ public class Config {
     public static final String NETWORK = "Network";
     public static final String DEFAULT_NETWORK = "TCP";
 
+    /** One-way latency of the simulated network, in microseconds */
+    public static final String SIMULATED_LATENCY = "SimulatedLatency";
+    public static final int DEFAULT_SIMULATED_LATENCY = 100;
+
+    /**
+     * Bandwidth of each link of the simulated network, in Mbit/s. 0 for
+     * unlimited.
+     */
+    public static final String SIMULATED_BANDWIDTH = "SimulatedBandwidth";
+    public static final int DEFAULT_SIMULATED_BANDWIDTH = 1000;
+
+    /** Probability that the simulated network drops a message */
+    public static final String SIMULATED_LOSS = "SimulatedLoss";
+    public static final double DEFAULT_SIMULATED_LOSS = 0;
+
+    /** Seed of the losses of the simulated network */
+    public static final String SIMULATED_SEED = "SimulatedSeed";
+    public static final long DEFAULT_SIMULATED_SEED = 0;
+
     /**
      * The maximum size of batched request.
      */
@@ -52,6 +71,29 @@ public class Config {
     public final static String FD_SEND_TO = "FDSendTimeout";
     public static final int DEFAULT_FD_SEND_TO = 500;
 
+    /**
+     * Whether the leader answers the read-only requests of a
+     * <code>ReadOnlyService</code> from its state, without ordering them, while
+     * it holds a lease renewed by the heartbeats.
+     */
+    public static final String LEADER_LEASE_READS = "LeaderLeaseReads";
+    public static final boolean DEFAULT_LEADER_LEASE_READS = false;
+
+    /**
+     * Part of <code>FDSuspectTimeout</code> the leader does not count on the
+     * lease, covering the clock drift between the replicas. In milliseconds
+     */
+    public static final String LEADER_LEASE_GUARD = "LeaderLeaseGuard";
+    public static final int DEFAULT_LEADER_LEASE_GUARD = 100;
+
+    /**
+     * Whether the followers answer read-only requests from their state too,
+     * after asking the leader for the read index. Requires
+     * <code>LeaderLeaseReads</code>.
+     */
+    public static final String FOLLOWER_READS = "FollowerReads";
+    public static final boolean DEFAULT_FOLLOWER_READS = false;
+
     /**
      * The crash model used. For valid entries see {@link CrashModel}
      */
@@ -95,6 +137,20 @@ public class Config {
     public static final String BENCHMARK_RUN = "BenchmarkRun";
     public static final boolean DEFAULT_BENCHMARK_RUN = false;
 
+    /**
+     * How often the metrics are written to the log directory of the replica
+     * when <code>BenchmarkRun</code> is enabled, in milliseconds.
+     */
+    public static final String METRICS_DUMP_INTERVAL = "MetricsDumpInterval";
+    public static final int DEFAULT_METRICS_DUMP_INTERVAL = 1000;
+
+    /**
+     * One in how many client requests is traced through the replication
+     * pipeline, see {@link Tracer}. 0 disables tracing.
+     */
+    public static final String TRACE_SAMPLING = "TraceSampling";
+    public static final int DEFAULT_TRACE_SAMPLING = 0;
+
     /**
      * Before any snapshot was made, we need to have an estimate of snapshot
      * size. Value given as for now is 1 KB
@@ -118,6 +174,22 @@ public class Config {
     public static final String MIN_SNAPSHOT_SAMPLING = "MinimumInstancesForSnapshotRatioSample";
     public static final int DEFAULT_MIN_SNAPSHOT_SAMPLING = 50;
 
+    /**
+     * If enabled, services supporting it make delta snapshots, holding only
+     * the changes since the previous snapshot. The deltas are chained to the
+     * last full snapshot, and compacted into a new one in background once
+     * there are <code>DeltaSnapshotMaxChain</code> of them or they are
+     * <code>DeltaSnapshotCompactRatio</code> times bigger than the full one.
+     */
+    public static final String DELTA_SNAPSHOTS = "DeltaSnapshots";
+    public static final boolean DEFAULT_DELTA_SNAPSHOTS = false;
+
+    public static final String DELTA_SNAPSHOT_MAX_CHAIN = "DeltaSnapshotMaxChain";
+    public static final int DEFAULT_DELTA_SNAPSHOT_MAX_CHAIN = 16;
+
+    public static final String DELTA_SNAPSHOT_COMPACT_RATIO = "DeltaSnapshotCompactRatio";
+    public static final double DEFAULT_DELTA_SNAPSHOT_COMPACT_RATIO = 1;
+
     public static final String RETRANSMIT_TIMEOUT = "RetransmitTimeoutMilisecs";
     public static final long DEFAULT_RETRANSMIT_TIMEOUT = 1000;
 
@@ -149,6 +221,130 @@ public class Config {
     public static final String MAX_BATCH_FETCHING_TIME_MS = "TimeoutFetchBatchValue";
     public static final int DEFAULT_MAX_BATCH_FETCHING_TIME_MS = 2500;
 
+    /**
+     * If enabled, the generated protocol code is given only the instances from
+     * the first uncommitted one up to the next instance id, instead of the
+     * whole log, and only the instances it changed are written back.
+     */
+    public static final String INCREMENTAL_STATE = "IncrementalState";
+    public static final boolean DEFAULT_INCREMENTAL_STATE = false;
+
+    /**
+     * If enabled, Accept messages carry a 64-bit digest of the accepted value,
+     * which is checked against the value held by the receiver. Otherwise the
+     * value is identified by the instance and ballot only.
+     */
+    public static final String ACCEPT_DIGEST = "AcceptDigest";
+    public static final boolean DEFAULT_ACCEPT_DIGEST = false;
+
+    /**
+     * If enabled, the FullSS crash model syncs the log once per batch of
+     * records (group commit) instead of once per record. Replies depending on
+     * the records are delayed until they are on disc.
+     */
+    public static final String GROUP_COMMIT = "GroupCommit";
+    public static final boolean DEFAULT_GROUP_COMMIT = false;
+
+    /**
+     * Time in ms the group commit waits for more records before syncing the
+     * log. With 0, records gathered while the previous sync was in progress
+     * form the next batch.
+     */
+    public static final String GROUP_COMMIT_WINDOW = "GroupCommitWindow";
+    public static final int DEFAULT_GROUP_COMMIT_WINDOW = 0;
+
+    /**
+     * If enabled, the FullSS crash model keeps its log in memory-mapped
+     * segment files, which are removed once covered by a snapshot.
+     */
+    public static final String MAPPED_LOG = "MappedLog";
+    public static final boolean DEFAULT_MAPPED_LOG = false;
+
+    /** Size in bytes of a single segment of the memory-mapped log */
+    public static final String LOG_SEGMENT_SIZE = "LogSegmentSize";
+    public static final int DEFAULT_LOG_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * If enabled, the in-memory Paxos log keeps the instances in a circular
+     * array indexed by instance id instead of a TreeMap.
+     */
+    public static final String RING_BUFFER_LOG = "RingBufferLog";
+    public static final boolean DEFAULT_RING_BUFFER_LOG = false;
+
+    /**
+     * If enabled, the leader sends all instances it opens at once in a single
+     * ProposeBatch frame, answered with a single AcceptBatch.
+     */
+    public static final String MULTI_INSTANCE_PROPOSE = "MultiInstancePropose";
+    public static final boolean DEFAULT_MULTI_INSTANCE_PROPOSE = false;
+
+    /**
+     * Number of threads executing the requests of a service implementing
+     * <code>ParallelService</code>. With 1, the requests are executed on the
+     * replica thread.
+     */
+    public static final String EXECUTION_THREADS = "ExecutionThreads";
+    public static final int DEFAULT_EXECUTION_THREADS = 1;
+
+    /**
+     * Number of instances after which a client with no request executed is
+     * evicted from the reply cache. 0 keeps all clients.
+     */
+    public static final String REPLY_CACHE_IDLE_INSTANCES = "ReplyCacheIdleInstances";
+    public static final int DEFAULT_REPLY_CACHE_IDLE_INSTANCES = 0;
+
+    /** Number of selector threads used by the NIO replica network */
+    public static final String REPLICA_SELECTOR_THREADS = "ReplicaSelectorThreads";
+    public static final int DEFAULT_REPLICA_SELECTOR_THREADS = 1;
+
+    /**
+     * Size in bytes of the output buffer kept by the NIO replica network for
+     * each other replica. Senders block while it is full.
+     */
+    public static final String REPLICA_SEND_BUFFER_SIZE = "ReplicaSendBufferSize";
+    public static final int DEFAULT_REPLICA_SEND_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * If enabled, the UDP network receives the datagrams into pooled direct
+     * buffers instead of heap buffers.
+     */
+    public static final String DIRECT_RECEIVE_BUFFERS = "DirectReceiveBuffers";
+    public static final boolean DEFAULT_DIRECT_RECEIVE_BUFFERS = false;
+
+    /**
+     * If enabled, the Paxos dispatcher uses lock-free queues and a timer wheel
+     * (MpscDispatcher) instead of a priority queue (DispatcherImpl).
+     */
+    public static final String LOCK_FREE_DISPATCHER = "LockFreeDispatcher";
+    public static final boolean DEFAULT_LOCK_FREE_DISPATCHER = false;
+
+    /**
+     * If enabled, the catch-up mechanism sends snapshots in checksummed chunks
+     * of <code>SnapshotChunkSize</code> bytes, with at most
+     * <code>SnapshotChunksInFlight</code> chunks not acknowledged, instead of
+     * as a single message. Must be the same on all replicas.
+     */
+    public static final String CHUNKED_SNAPSHOT_TRANSFER = "ChunkedSnapshotTransfer";
+    public static final boolean DEFAULT_CHUNKED_SNAPSHOT_TRANSFER = false;
+
+    public static final String SNAPSHOT_CHUNK_SIZE = "SnapshotChunkSize";
+    public static final int DEFAULT_SNAPSHOT_CHUNK_SIZE = 64 * 1024;
+
+    public static final String SNAPSHOT_CHUNKS_IN_FLIGHT = "SnapshotChunksInFlight";
+    public static final int DEFAULT_SNAPSHOT_CHUNKS_IN_FLIGHT = 4;
+
+    /**
+     * If enabled, a replica catching up splits the undecided instances among
+     * all other replicas, asking each for at most
+     * <code>CatchUpSourceWindow</code> instances at a time, instead of asking
+     * a single replica for all of them.
+     */
+    public static final String MULTI_SOURCE_CATCH_UP = "MultiSourceCatchUp";
+    public static final boolean DEFAULT_MULTI_SOURCE_CATCH_UP = false;
+
+    public static final String CATCH_UP_SOURCE_WINDOW = "CatchUpSourceWindow";
+    public static final int DEFAULT_CATCH_UP_SOURCE_WINDOW = 512;
+
 
     /*---------------------------------------------
      * The following properties are compile time 
@@ -84,6 +84,18 @@ public final class Configuration {
         this.processes = processes;
     }
 
+    /**
+     * Creates a configuration with the process list and the given set of
+     * optional properties.
+     * 
+     * @param processes
+     * @param properties
+     */
+    public Configuration(List<PID> processes, Properties properties) {
+        this.processes = processes;
+        configuration.putAll(properties);
+    }
+
     public int getN() {
         return processes.size();
     }
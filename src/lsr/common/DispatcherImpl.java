@@ -151,6 +151,11 @@ public class DispatcherImpl extends Thread implements Dispatcher {
      */
     public DispatcherImpl(String name) {
         super(name);
+        Metrics.gauge("queue." + name, new Metrics.Gauge() {
+            public long get() {
+                return taskQueue.size();
+            }
+        });
         /*
          * When the JVM is killed with an interrupt, the shutdown hooks are
          * executed while the application threads continue running. This can
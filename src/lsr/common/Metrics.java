@@ -0,0 +1,197 @@
+package lsr.common;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the latency histograms and queue depths of the local replica,
+ * by name. Each replica running in this JVM (see
+ * {@link ProcessDescriptor#initializeForThread}) has its own registry, chosen
+ * by the id in the descriptor of the calling thread.
+ *
+ * The components get their metrics once, when created, and update them
+ * without locking. The metrics are read over JMX
+ * (<code>lsr:type=Metrics,replica=id</code>) and, with
+ * <code>BenchmarkRun</code>, written periodically to a file.
+ *
+ * The latency histograms of the request path, in nanoseconds:
+ * <ul>
+ * <li><code>client.receive</code> - handling a request from a client
+ * <li><code>batch.close</code> - from the first request of a batch to its
+ * closing
+ * <li><code>propose</code> - opening and sending an instance, at the leader
+ * <li><code>2a</code> - handling a Propose, at the followers
+ * <li><code>2b</code> - handling an Accept
+ * <li><code>decide</code> - from proposing an instance to its decision, at the
+ * leader
+ * <li><code>execute</code> - executing a request in the service
+ * <li><code>reply</code> - from receiving a request to sending its reply, at
+ * the replica which received it
+ * </ul>
+ */
+public final class Metrics {
+
+    /** Current value of a metric kept elsewhere, like the size of a queue */
+    public interface Gauge {
+        long get();
+    }
+
+    /** Values of all metrics, as exposed over JMX */
+    public interface MetricsMXBean {
+        Map<String, Long> getValues();
+    }
+
+    /* The registries by replica id; -1 if there is no process descriptor */
+    private static final ConcurrentMap<Integer, Registry> registries =
+            new ConcurrentHashMap<Integer, Registry>();
+
+    /** The metrics of one replica */
+    private static final class Registry implements MetricsMXBean {
+        private final ConcurrentMap<String, Histogram> histograms =
+                new ConcurrentSkipListMap<String, Histogram>();
+        private final ConcurrentMap<String, Gauge> gauges =
+                new ConcurrentSkipListMap<String, Gauge>();
+        /* Guarded by Metrics.class */
+        private Timer dumpTimer = null;
+
+        public Map<String, Long> getValues() {
+            Map<String, Long> values = new TreeMap<String, Long>();
+            for (Entry<String, Gauge> gauge : gauges.entrySet()) {
+                values.put(gauge.getKey(), gauge.getValue().get());
+            }
+            for (Entry<String, Histogram> entry : histograms.entrySet()) {
+                String name = entry.getKey();
+                Histogram histogram = entry.getValue();
+                values.put(name + ".count", histogram.getCount());
+                values.put(name + ".mean", histogram.getMean());
+                values.put(name + ".p50", histogram.getPercentile(0.5));
+                values.put(name + ".p99", histogram.getPercentile(0.99));
+                values.put(name + ".p999", histogram.getPercentile(0.999));
+                values.put(name + ".max", histogram.getMax());
+            }
+            return values;
+        }
+    }
+
+    private Metrics() {
+    }
+
+    private static int localId() {
+        ProcessDescriptor descriptor = ProcessDescriptor.processDescriptor();
+        return descriptor == null ? -1 : descriptor.localId;
+    }
+
+    /** Returns the registry of the local replica, created on first use */
+    private static Registry registry() {
+        int localId = localId();
+        Registry registry = registries.get(localId);
+        if (registry == null) {
+            Registry created = new Registry();
+            registry = registries.putIfAbsent(localId, created);
+            if (registry == null) {
+                registry = created;
+            }
+        }
+        return registry;
+    }
+
+    /** Returns the histogram of the given name, created on first use */
+    public static Histogram histogram(String name) {
+        ConcurrentMap<String, Histogram> histograms = registry().histograms;
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers the gauge under the given name, replacing the previous one.
+     */
+    public static void gauge(String name, Gauge gauge) {
+        registry().gauges.put(name, gauge);
+    }
+
+    /**
+     * Returns the current values of the local replica: the gauges by name,
+     * and for each histogram its count, mean, p50, p99, p999 and max, as
+     * <code>name.p99</code> etc.
+     */
+    public static Map<String, Long> getValues() {
+        return registry().getValues();
+    }
+
+    /**
+     * Registers the metrics of the local replica in the platform MBean server.
+     * Failures are only logged.
+     */
+    public static synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("lsr:type=Metrics,replica=" + localId());
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(registry(), name);
+            }
+        } catch (JMException e) {
+            logger.warn("Cannot register metrics MBean: {}", e.toString());
+        }
+    }
+
+    /**
+     * Appends all values of the local replica to the file every
+     * <code>period</code> milliseconds, as lines <code>time name value</code>.
+     *
+     * @param fileName - the file to append to
+     * @param period - the time between dumps in milliseconds
+     */
+    public static synchronized void startDump(final String fileName, int period) {
+        final Registry registry = registry();
+        if (registry.dumpTimer != null) {
+            return;
+        }
+        registry.dumpTimer = new Timer("MetricsDump", true);
+        registry.dumpTimer.schedule(new TimerTask() {
+            public void run() {
+                dump(registry, fileName);
+            }
+        }, period, period);
+    }
+
+    private static void dump(Registry registry, String fileName) {
+        long now = System.currentTimeMillis();
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(fileName, true));
+            for (Entry<String, Long> value : registry.getValues().entrySet()) {
+                writer.println(now + " " + value.getKey() + " " + value.getValue());
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot write metrics to {}: {}", fileName, e.toString());
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(Metrics.class);
+}
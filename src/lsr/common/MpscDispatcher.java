@@ -0,0 +1,433 @@
+package lsr.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implementation of {@link Dispatcher} with one lock-free
+ * {@link MpscQueue} per priority and a hashed timer wheel, both drained by
+ * this thread. As in {@link DispatcherImpl}, tasks are executed sequentially,
+ * a task is executed only when no task of higher priority is waiting and tasks
+ * of the same priority are executed in the order they were dispatched.
+ * <p>
+ * Dispatching a task allocates only the returned {@link PriorityTask}, which
+ * is the node of the queue, and takes no lock. The dispatcher thread executes
+ * up to <code>BATCH_SIZE</code> tasks between two checks of the timers, and
+ * parks when there is nothing to do; producers unpark it only when it is
+ * parked.
+ * <p>
+ * Scheduled tasks are handed to this thread through another queue and kept in
+ * a wheel of <code>WHEEL_SIZE</code> slots of one millisecond each. Once due,
+ * a scheduled task is put on the queue of its priority. Periodic tasks are
+ * scheduled again after each execution, so they never run concurrently.
+ * <p>
+ * To start dispatcher call <code>start()</code> method. To stop the dispatcher
+ * call <code>interrupt()</code> method.
+ */
+public class MpscDispatcher extends Thread implements Dispatcher {
+
+    /** Tasks waiting for immediate execution, indexed by priority */
+    private final List<MpscQueue<Task>> queues = new ArrayList<MpscQueue<Task>>(
+            Priority.values().length);
+
+    /** Scheduled tasks not yet put in the wheel */
+    private final MpscQueue<Timer> newTimers = new MpscQueue<Timer>();
+
+    /* Set by the dispatcher thread before parking */
+    private volatile boolean sleeping = false;
+
+    /* Dispatcher thread only */
+    private final Timer[] wheel = new Timer[WHEEL_SIZE];
+    private int timers = 0;
+    /* All ticks up to this one were expired */
+    private long lastTick;
+    private long executed = 0;
+
+    /** Number of tasks executed between two checks of the timers */
+    private static final int BATCH_SIZE = 256;
+    /** Number of slots of the timer wheel; must be a power of two */
+    private static final int WHEEL_SIZE = 1024;
+
+    private static final long START = System.nanoTime();
+
+    /** Task waiting in one of the queues */
+    private static final class Task extends MpscQueue.Node implements PriorityTask {
+        private final Runnable task;
+        private final Priority priority;
+        /* Set if this is an execution of a scheduled task */
+        private final Timer timer;
+        private volatile boolean canceled = false;
+        private long seqNum = -1;
+
+        Task(Runnable task, Priority priority, Timer timer) {
+            this.task = task;
+            this.priority = priority;
+            this.timer = timer;
+        }
+
+        public void cancel(boolean mayInterruptIfRunning) {
+            canceled = true;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public long getDelay() {
+            return 0;
+        }
+
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        /** Returns the number of tasks executed before this one, or -1 */
+        public long getSeqNum() {
+            return seqNum;
+        }
+
+        public String toString() {
+            return "Task: " + task + ", Priority: " + priority;
+        }
+    }
+
+    /** Scheduled task, possibly periodic */
+    private static final class Timer extends MpscQueue.Node implements PriorityTask {
+        private final Runnable task;
+        private final Priority priority;
+        /* 0 for one-shot tasks */
+        private final long period;
+        private final boolean fixedRate;
+        private volatile long deadline;
+        private volatile boolean canceled = false;
+        /* Next timer in the same slot of the wheel */
+        private Timer nextInSlot;
+
+        Timer(Runnable task, Priority priority, long deadline, long period, boolean fixedRate) {
+            this.task = task;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.period = period;
+            this.fixedRate = fixedRate;
+        }
+
+        public void cancel(boolean mayInterruptIfRunning) {
+            canceled = true;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public long getDelay() {
+            return deadline - now();
+        }
+
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        public long getSeqNum() {
+            return -1;
+        }
+
+        public String toString() {
+            return "Task: " + task + ", Priority: " + priority + ", Delay: " + getDelay();
+        }
+    }
+
+    /**
+     * Initializes new instance of <code>MpscDispatcher</code> class.
+     */
+    public MpscDispatcher(String name) {
+        super(name);
+        for (int i = 0; i < Priority.values().length; i++) {
+            queues.add(new MpscQueue<Task>());
+        }
+        lastTick = now();
+        // See DispatcherImpl
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                MpscDispatcher.this.interrupt();
+            }
+        }));
+    }
+
+    /** Current time in milliseconds, on the clock used by the wheel */
+    private static long now() {
+        return (System.nanoTime() - START) / 1000000;
+    }
+
+    public PriorityTask dispatch(Runnable task) {
+        return dispatch(task, Priority.Normal);
+    }
+
+    public PriorityTask dispatch(Runnable task, Priority priority) {
+        Task pTask = new Task(task, priority, null);
+        queues.get(priority.ordinal()).offer(pTask);
+        wakeUp();
+        return pTask;
+    }
+
+    public PriorityTask schedule(Runnable task, Priority priority, long delay) {
+        return addTimer(new Timer(task, priority, now() + delay, 0, false));
+    }
+
+    public PriorityTask scheduleAtFixedRate(Runnable task, Priority priority, long initialDelay,
+                                            long period) {
+        return addTimer(new Timer(task, priority, now() + initialDelay, period, true));
+    }
+
+    public PriorityTask scheduleWithFixedDelay(Runnable task, Priority priority, long initialDelay,
+                                               long delay) {
+        return addTimer(new Timer(task, priority, now() + initialDelay, delay, false));
+    }
+
+    private PriorityTask addTimer(Timer timer) {
+        newTimers.offer(timer);
+        wakeUp();
+        return timer;
+    }
+
+    /**
+     * Unparks the dispatcher thread if it is parked. Must be called after the
+     * node was offered: either the dispatcher thread sees the node after it
+     * announced parking, or this sees it parking.
+     */
+    private void wakeUp() {
+        if (sleeping && Thread.currentThread() != this) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    public boolean amIInDispatcher() {
+        return Thread.currentThread() == this;
+    }
+
+    // Activate current thread
+    public void start() {
+        if (!this.isAlive()) {
+            super.start();
+        }
+    }
+
+    public void run() {
+        try {
+            while (!Thread.interrupted()) {
+                registerTimers();
+                expireTimers();
+                if (runTasks() == 0) {
+                    park();
+                }
+            }
+            logger.warn("Interrupted. Thread exiting.");
+        } catch (Throwable e) {
+            logger.info("Exception caught. Task canceled.", e);
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Executes the waiting tasks in order of priority.
+     *
+     * @return the number of tasks taken from the queues
+     */
+    private int runTasks() {
+        int taken = 0;
+        while (taken < BATCH_SIZE) {
+            Task pTask = pollTask();
+            if (pTask == null) {
+                break;
+            }
+            taken++;
+            if (pTask.canceled) {
+                continue;
+            }
+            pTask.seqNum = executed++;
+            Timer timer = pTask.timer;
+            if (timer == null) {
+                pTask.task.run();
+            } else if (!timer.canceled) {
+                timer.task.run();
+                if (timer.period > 0 && !timer.canceled) {
+                    timer.deadline = timer.fixedRate ? timer.deadline + timer.period : now() +
+                                                                                       timer.period;
+                    insertTimer(timer);
+                }
+            }
+        }
+        return taken;
+    }
+
+    private Task pollTask() {
+        // indexed, so that polling allocates no iterator
+        for (int i = 0; i < queues.size(); i++) {
+            Task pTask = queues.get(i).poll();
+            if (pTask != null) {
+                return pTask;
+            }
+        }
+        return null;
+    }
+
+    private void registerTimers() {
+        Timer timer;
+        while ((timer = newTimers.poll()) != null) {
+            if (!timer.canceled) {
+                insertTimer(timer);
+            }
+        }
+    }
+
+    private void insertTimer(Timer timer) {
+        // a deadline already passed is expired with the next tick
+        int slot = (int) (Math.max(timer.deadline, lastTick + 1) & (WHEEL_SIZE - 1));
+        timer.nextInSlot = wheel[slot];
+        wheel[slot] = timer;
+        timers++;
+    }
+
+    /** Queues the timers due up to now */
+    private void expireTimers() {
+        long now = now();
+        if (timers == 0) {
+            lastTick = now;
+            return;
+        }
+        // no need to visit a slot more than once
+        long tick = Math.max(lastTick + 1, now - WHEEL_SIZE + 1);
+        for (; tick <= now; tick++) {
+            int slot = (int) (tick & (WHEEL_SIZE - 1));
+            Timer timer = wheel[slot];
+            Timer kept = null;
+            while (timer != null) {
+                Timer next = timer.nextInSlot;
+                if (timer.canceled) {
+                    timers--;
+                } else if (timer.deadline <= now) {
+                    timers--;
+                    timer.nextInSlot = null;
+                    Task task = new Task(timer.task, timer.priority, timer);
+                    queues.get(timer.priority.ordinal()).offer(task);
+                } else {
+                    // due in a later round
+                    timer.nextInSlot = kept;
+                    kept = timer;
+                }
+                timer = next;
+            }
+            wheel[slot] = kept;
+        }
+        lastTick = now;
+    }
+
+    /** Parks until a task is dispatched or the next timer may be due */
+    private void park() {
+        sleeping = true;
+        if (!pollableEmpty()) {
+            sleeping = false;
+            return;
+        }
+        if (timers == 0) {
+            LockSupport.park(this);
+        } else {
+            LockSupport.parkNanos(this, untilNextSlot() * 1000000);
+        }
+        sleeping = false;
+    }
+
+    private boolean pollableEmpty() {
+        for (int i = 0; i < queues.size(); i++) {
+            if (!queues.get(i).isEmpty()) {
+                return false;
+            }
+        }
+        return newTimers.isEmpty();
+    }
+
+    /**
+     * Returns the number of milliseconds until the first non-empty slot of the
+     * wheel. The timers in that slot may be due in a later round.
+     */
+    private long untilNextSlot() {
+        for (int i = 1; i <= WHEEL_SIZE; i++) {
+            if (wheel[(int) ((lastTick + i) & (WHEEL_SIZE - 1))] != null) {
+                return i;
+            }
+        }
+        return WHEEL_SIZE;
+    }
+
+    public String toString() {
+        return "High:" + queues.get(Priority.High.ordinal()).size() + ",Normal:" +
+               queues.get(Priority.Normal.ordinal()).size() + ",Low:" +
+               queues.get(Priority.Low.ordinal()).size();
+    }
+
+    public void executeAndWait(Runnable task) {
+        if (amIInDispatcher() || !isAlive()) {
+            // nothing else is executed concurrently
+            task.run();
+        } else {
+            FutureTask<Object> future = new FutureTask<Object>(task, null);
+            dispatch(future);
+            // Wait until the task is executed
+            try {
+                future.get();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public void checkInDispatcher() {
+        assert amIInDispatcher() : "Wrong thread: " + Thread.currentThread().getName();
+    }
+
+    public void submit(Runnable task) {
+        dispatch(task);
+    }
+
+    public void execute(Runnable task) {
+        dispatch(task);
+    }
+
+    public void shutdownNow() {
+        interrupt();
+    }
+
+    /** Tasks are never rejected, so the handler is not used */
+    public void setRejectedExecutionHandler(RejectedExecutionHandler rejectedExecutionHandler) {
+    }
+
+    /**
+     * Cancels the scheduled executions of the given task. Takes effect once
+     * handled by the dispatcher thread.
+     */
+    public void remove(final Runnable task) {
+        dispatch(new Runnable() {
+            public void run() {
+                for (Timer timer : wheel) {
+                    for (; timer != null; timer = timer.nextInSlot) {
+                        if (timer.task == task) {
+                            timer.canceled = true;
+                        }
+                    }
+                }
+            }
+        }, Priority.High);
+    }
+
+    /** Canceled timers are dropped from the wheel when visited */
+    public void purge() {
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(MpscDispatcher.class);
+}
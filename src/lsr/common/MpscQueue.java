@@ -0,0 +1,76 @@
+package lsr.common;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded lock-free queue for many producers and a single consumer. The
+ * elements are the nodes of the list themselves, so offering an element does
+ * not allocate. A node can be offered only once, to a single queue.
+ * <p>
+ * Producers only swap the tail with a single atomic instruction and link the
+ * previous tail to the new node. The consumer reads from the head without any
+ * atomic instruction. While a producer is between these two steps, the
+ * consumer may see the queue as empty even though the node was offered.
+ *
+ * @param <N> - the type of the elements
+ */
+final class MpscQueue<N extends MpscQueue.Node> {
+    /** Element of the queue */
+    static class Node {
+        private volatile Node next;
+    }
+
+    /* Consumer only; the last node taken, or the initial stub */
+    private Node head;
+    private volatile Node tail;
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MpscQueue, Node> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(MpscQueue.class, Node.class, "tail");
+
+    MpscQueue() {
+        head = new Node();
+        tail = head;
+    }
+
+    /**
+     * Appends the node to the queue. May be called from any thread.
+     */
+    void offer(N node) {
+        Node previous = TAIL.getAndSet(this, node);
+        previous.next = node;
+    }
+
+    /**
+     * Takes the first node. Consumer only.
+     *
+     * @return the first node, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    N poll() {
+        Node next = head.next;
+        if (next == null) {
+            return null;
+        }
+        // the node taken becomes the stub
+        head = next;
+        return (N) next;
+    }
+
+    /** Consumer only */
+    boolean isEmpty() {
+        return head.next == null;
+    }
+
+    /**
+     * Counts the nodes by walking the list. Approximate when called from other
+     * thread than the consumer; for diagnostics only.
+     */
+    int size() {
+        int size = 0;
+        for (Node node = head.next; node != null; node = node.next) {
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,45 @@
+package lsr.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Byte buffer borrowed from a {@link BufferPool}. Every holder of a reference
+ * calls {@link #release()} once; the buffer returns to the pool when the last
+ * reference is released, so its content must not be accessed afterwards.
+ */
+public final class PooledBuffer {
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger();
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    void reset() {
+        buffer.clear();
+        references.set(1);
+    }
+
+    /** Returns the underlying buffer */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** Adds a reference to the buffer */
+    public void retain() {
+        int previous = references.getAndIncrement();
+        assert previous > 0 : "Buffer already released";
+    }
+
+    /** Drops a reference to the buffer, returning it to the pool if last */
+    public void release() {
+        int left = references.decrementAndGet();
+        assert left >= 0 : "Buffer released too many times";
+        if (left == 0) {
+            pool.giveBack(this);
+        }
+    }
+}
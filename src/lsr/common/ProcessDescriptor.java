@@ -39,7 +39,13 @@ public class ProcessDescriptor {
     public final int maxBatchDelay;
     public final String clientIDGenerator;
     public final boolean benchmarkRun;
+    public final int metricsDumpInterval;
+    public final int traceSampling;
     public final String network;
+    public final int simulatedLatency;
+    public final int simulatedBandwidth;
+    public final double simulatedLoss;
+    public final long simulatedSeed;
     public final CrashModel crashModel;
     public final String logPath;
 
@@ -53,6 +59,9 @@ public class ProcessDescriptor {
     public final long tcpReconnectTimeout;
     public final int fdSuspectTimeout;
     public final int fdSendTimeout;
+    public final boolean leaderLeaseReads;
+    public final int leaderLeaseGuard;
+    public final boolean followerReads;
     
     public final int forwardBatchMaxSize;
     public final int forwardBatchMaxDelay;
@@ -62,19 +71,81 @@ public class ProcessDescriptor {
     public final int clientRequestBufferSize;
 
     public final long maxBatchFetchingTimeoutMs;
+
+    public final boolean incrementalState;
+    public final boolean acceptDigest;
+    public final boolean groupCommit;
+    public final int groupCommitWindow;
+    public final boolean mappedLog;
+    public final int logSegmentSize;
+    public final boolean ringBufferLog;
+    public final boolean multiInstancePropose;
+    public final int executionThreads;
+    public final int replyCacheIdleInstances;
+    public final int replicaSelectorThreads;
+    public final int replicaSendBufferSize;
+    public final boolean directReceiveBuffers;
+    public final boolean lockFreeDispatcher;
+    public final boolean chunkedSnapshotTransfer;
+    public final int snapshotChunkSize;
+    public final int snapshotChunksInFlight;
+    public final boolean multiSourceCatchUp;
+    public final int catchUpSourceWindow;
+    public final boolean deltaSnapshots;
+    public final int deltaSnapshotMaxChain;
+    public final double deltaSnapshotCompactRatio;
     /*
-     * Singleton class with static access. This allows any class on the JVM to
-     * statically access the process descriptor without needing to be given a
-     * reference.
+     * Static access. This allows any class on the JVM to statically access the
+     * process descriptor without needing to be given a reference.
+     * 
+     * Usually there is a single replica, and a single descriptor, per JVM.
+     * Several replicas may run in one JVM (see initializeForThread): each of
+     * them then sees its own descriptor from the thread that started it and
+     * from the threads started by these.
      */
-    public static ProcessDescriptor processDescriptor;
+    private static volatile ProcessDescriptor jvmDescriptor;
+    private static final InheritableThreadLocal<ProcessDescriptor> threadDescriptor =
+            new InheritableThreadLocal<ProcessDescriptor>();
+    /* Avoids looking up threadDescriptor with a single replica per JVM */
+    private static volatile boolean perThread = false;
 
+    /**
+     * Sets the descriptor of the local replica: the one of the current thread
+     * if it was given one with {@link #initializeForThread}, otherwise the one
+     * of the JVM.
+     */
     public static void initialize(Configuration config, int localId) {
-        ProcessDescriptor.processDescriptor = new ProcessDescriptor(config, localId);
+        ProcessDescriptor descriptor = new ProcessDescriptor(config, localId);
+        if (perThread && threadDescriptor.get() != null) {
+            threadDescriptor.set(descriptor);
+        } else {
+            jvmDescriptor = descriptor;
+        }
+    }
+
+    /**
+     * Gives the current thread, and the threads it starts from now on, their
+     * own descriptor. Allows several replicas in one JVM, each created from
+     * its own thread.
+     */
+    public static void initializeForThread(Configuration config, int localId) {
+        perThread = true;
+        threadDescriptor.set(new ProcessDescriptor(config, localId));
+    }
+
+    /** Returns the descriptor of the local replica */
+    public static ProcessDescriptor processDescriptor() {
+        if (perThread) {
+            ProcessDescriptor descriptor = threadDescriptor.get();
+            if (descriptor != null) {
+                return descriptor;
+            }
+        }
+        return jvmDescriptor;
     }
 
     public static ProcessDescriptor getInstance() {
-        return processDescriptor;
+        return processDescriptor();
     }
 
     private ProcessDescriptor(Configuration config, int localId) {
@@ -97,7 +168,19 @@ public class ProcessDescriptor {
                 Config.DEFAULT_CLIENT_ID_GENERATOR);
         this.benchmarkRun = config.getBooleanProperty(Config.BENCHMARK_RUN,
                 Config.DEFAULT_BENCHMARK_RUN);
+        this.metricsDumpInterval = config.getIntProperty(Config.METRICS_DUMP_INTERVAL,
+                Config.DEFAULT_METRICS_DUMP_INTERVAL);
+        this.traceSampling = config.getIntProperty(Config.TRACE_SAMPLING,
+                Config.DEFAULT_TRACE_SAMPLING);
         this.network = config.getProperty(Config.NETWORK, Config.DEFAULT_NETWORK);
+        this.simulatedLatency = config.getIntProperty(Config.SIMULATED_LATENCY,
+                Config.DEFAULT_SIMULATED_LATENCY);
+        this.simulatedBandwidth = config.getIntProperty(Config.SIMULATED_BANDWIDTH,
+                Config.DEFAULT_SIMULATED_BANDWIDTH);
+        this.simulatedLoss = config.getDoubleProperty(Config.SIMULATED_LOSS,
+                Config.DEFAULT_SIMULATED_LOSS);
+        this.simulatedSeed = config.getLongProperty(Config.SIMULATED_SEED,
+                Config.DEFAULT_SIMULATED_SEED);
 
         this.logPath = config.getProperty(Config.LOG_PATH, Config.DEFAULT_LOG_PATH);
 
@@ -139,6 +222,12 @@ public class ProcessDescriptor {
                 Config.DEFAULT_FD_SUSPECT_TO);
         this.fdSendTimeout = config.getIntProperty(Config.FD_SEND_TO,
                 Config.DEFAULT_FD_SEND_TO);
+        this.leaderLeaseReads = config.getBooleanProperty(Config.LEADER_LEASE_READS,
+                Config.DEFAULT_LEADER_LEASE_READS);
+        this.leaderLeaseGuard = config.getIntProperty(Config.LEADER_LEASE_GUARD,
+                Config.DEFAULT_LEADER_LEASE_GUARD);
+        this.followerReads = config.getBooleanProperty(Config.FOLLOWER_READS,
+                Config.DEFAULT_FOLLOWER_READS);
         
         this.forwardBatchMaxDelay = config.getIntProperty(
         		Config.FORWARD_MAX_BATCH_DELAY,
@@ -157,6 +246,51 @@ public class ProcessDescriptor {
         		Config.MAX_BATCH_FETCHING_TIME_MS,
         		Config.DEFAULT_MAX_BATCH_FETCHING_TIME_MS);
 
+        this.incrementalState = config.getBooleanProperty(Config.INCREMENTAL_STATE,
+                Config.DEFAULT_INCREMENTAL_STATE);
+        this.acceptDigest = config.getBooleanProperty(Config.ACCEPT_DIGEST,
+                Config.DEFAULT_ACCEPT_DIGEST);
+        this.groupCommit = config.getBooleanProperty(Config.GROUP_COMMIT,
+                Config.DEFAULT_GROUP_COMMIT);
+        this.groupCommitWindow = config.getIntProperty(Config.GROUP_COMMIT_WINDOW,
+                Config.DEFAULT_GROUP_COMMIT_WINDOW);
+        this.mappedLog = config.getBooleanProperty(Config.MAPPED_LOG,
+                Config.DEFAULT_MAPPED_LOG);
+        this.logSegmentSize = config.getIntProperty(Config.LOG_SEGMENT_SIZE,
+                Config.DEFAULT_LOG_SEGMENT_SIZE);
+        this.ringBufferLog = config.getBooleanProperty(Config.RING_BUFFER_LOG,
+                Config.DEFAULT_RING_BUFFER_LOG);
+        this.multiInstancePropose = config.getBooleanProperty(Config.MULTI_INSTANCE_PROPOSE,
+                Config.DEFAULT_MULTI_INSTANCE_PROPOSE);
+        this.executionThreads = config.getIntProperty(Config.EXECUTION_THREADS,
+                Config.DEFAULT_EXECUTION_THREADS);
+        this.replyCacheIdleInstances = config.getIntProperty(Config.REPLY_CACHE_IDLE_INSTANCES,
+                Config.DEFAULT_REPLY_CACHE_IDLE_INSTANCES);
+        this.replicaSelectorThreads = config.getIntProperty(Config.REPLICA_SELECTOR_THREADS,
+                Config.DEFAULT_REPLICA_SELECTOR_THREADS);
+        this.replicaSendBufferSize = config.getIntProperty(Config.REPLICA_SEND_BUFFER_SIZE,
+                Config.DEFAULT_REPLICA_SEND_BUFFER_SIZE);
+        this.directReceiveBuffers = config.getBooleanProperty(Config.DIRECT_RECEIVE_BUFFERS,
+                Config.DEFAULT_DIRECT_RECEIVE_BUFFERS);
+        this.lockFreeDispatcher = config.getBooleanProperty(Config.LOCK_FREE_DISPATCHER,
+                Config.DEFAULT_LOCK_FREE_DISPATCHER);
+        this.chunkedSnapshotTransfer = config.getBooleanProperty(
+                Config.CHUNKED_SNAPSHOT_TRANSFER, Config.DEFAULT_CHUNKED_SNAPSHOT_TRANSFER);
+        this.snapshotChunkSize = config.getIntProperty(Config.SNAPSHOT_CHUNK_SIZE,
+                Config.DEFAULT_SNAPSHOT_CHUNK_SIZE);
+        this.snapshotChunksInFlight = config.getIntProperty(Config.SNAPSHOT_CHUNKS_IN_FLIGHT,
+                Config.DEFAULT_SNAPSHOT_CHUNKS_IN_FLIGHT);
+        this.multiSourceCatchUp = config.getBooleanProperty(Config.MULTI_SOURCE_CATCH_UP,
+                Config.DEFAULT_MULTI_SOURCE_CATCH_UP);
+        this.catchUpSourceWindow = config.getIntProperty(Config.CATCH_UP_SOURCE_WINDOW,
+                Config.DEFAULT_CATCH_UP_SOURCE_WINDOW);
+        this.deltaSnapshots = config.getBooleanProperty(Config.DELTA_SNAPSHOTS,
+                Config.DEFAULT_DELTA_SNAPSHOTS);
+        this.deltaSnapshotMaxChain = config.getIntProperty(Config.DELTA_SNAPSHOT_MAX_CHAIN,
+                Config.DEFAULT_DELTA_SNAPSHOT_MAX_CHAIN);
+        this.deltaSnapshotCompactRatio = config.getDoubleProperty(
+                Config.DELTA_SNAPSHOT_COMPACT_RATIO, Config.DEFAULT_DELTA_SNAPSHOT_COMPACT_RATIO);
+
 //        logger..config("Configuration: " + Config.WINDOW_SIZE + "=" + windowSize + ", " +
 //                       Config.BATCH_SIZE + "=" + batchingLevel + ", " + Config.MAX_BATCH_DELAY +
 //                       "=" + maxBatchDelay + ", " + Config.MAX_UDP_PACKET_SIZE + "=" +
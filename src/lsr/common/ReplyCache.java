@@ -0,0 +1,257 @@
+package lsr.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Keeps the reply to the last request executed from each client, used to send
+ * it again to a client which did not receive it and to not execute a request
+ * twice.
+ * <p>
+ * Hash table with open addressing and linear probing, keyed by the client id
+ * as a primitive. The sequence number, the value of the reply and the instance
+ * in which it was executed are kept in parallel arrays, so there is no object
+ * per client besides the value.
+ * <p>
+ * Clients idle for a number of instances may be evicted with
+ * {@link #evictIdle(int, int)}, called by all replicas after executing the
+ * same instances, so they keep the same clients. A request sent again by an
+ * evicted client is executed again.
+ * <p>
+ * Thread-safe.
+ */
+public final class ReplyCache implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Marks a free slot; never used as client id */
+    private static final long FREE = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] clients;
+    private int[] seqNumbers;
+    private int[] instances;
+    private byte[][] values;
+    private int size = 0;
+
+    /**
+     * Creates an empty cache.
+     */
+    public ReplyCache() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        clients = new long[capacity];
+        Arrays.fill(clients, FREE);
+        seqNumbers = new int[capacity];
+        instances = new int[capacity];
+        values = new byte[capacity][];
+        size = 0;
+    }
+
+    /* Slot of the client, or the free slot where it would be inserted */
+    private int slot(long clientId) {
+        int mask = clients.length - 1;
+        int hash = (int) (clientId ^ (clientId >>> 32)) * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (clients[slot] != FREE && clients[slot] != clientId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the reply to the last request executed from the client.
+     *
+     * @param clientId - id of the client
+     * @return the reply, or null if no request is known
+     */
+    public synchronized Reply get(long clientId) {
+        int slot = slot(clientId);
+        if (clients[slot] == FREE) {
+            return null;
+        }
+        return new Reply(new RequestId(clientId, seqNumbers[slot]), values[slot]);
+    }
+
+    /**
+     * Returns the instance in which the last request of the client was
+     * executed.
+     *
+     * @param clientId - id of the client
+     * @return the instance, or -1 if no request is known
+     */
+    public synchronized int getInstance(long clientId) {
+        int slot = slot(clientId);
+        if (clients[slot] == FREE) {
+            return -1;
+        }
+        return instances[slot];
+    }
+
+    /**
+     * Records the reply as the last one to its client.
+     *
+     * @param reply - the reply to the executed request
+     * @param instance - the instance in which the request was executed
+     */
+    public synchronized void put(Reply reply, int instance) {
+        put(reply.getRequestId().getClientId(), reply.getRequestId().getSeqNumber(),
+                reply.getValue(), instance);
+    }
+
+    private void put(long clientId, int seqNumber, byte[] value, int instance) {
+        assert clientId != FREE : "Invalid client id";
+        if ((size + 1) * 4 > clients.length * 3) {
+            rehash(clients.length * 2, Integer.MIN_VALUE);
+        }
+        int slot = slot(clientId);
+        if (clients[slot] == FREE) {
+            clients[slot] = clientId;
+            size++;
+        }
+        seqNumbers[slot] = seqNumber;
+        values[slot] = value;
+        instances[slot] = instance;
+    }
+
+    /**
+     * Evicts the clients with no request executed in the last
+     * <code>idleInstances</code> instances, if the number of executed
+     * instances is a multiple of <code>idleInstances</code>.
+     *
+     * @param executed - the number of instances executed
+     * @param idleInstances - how long clients are kept; 0 to keep all
+     */
+    public synchronized void evictIdle(int executed, int idleInstances) {
+        if (idleInstances <= 0 || executed % idleInstances != 0) {
+            return;
+        }
+        int capacity = clients.length;
+        while (capacity > MIN_CAPACITY && size * 4 < capacity) {
+            capacity /= 2;
+        }
+        rehash(capacity, executed - idleInstances);
+    }
+
+    /**
+     * Tells if a reply executed in the given instance is evicted before
+     * executing <code>instance</code>, when {@link #evictIdle(int, int)} is
+     * called after each instance.
+     *
+     * @param replyInstance - the instance in which the reply was executed
+     * @param instance - the instance about to be executed
+     * @param idleInstances - how long clients are kept; 0 to keep all
+     */
+    public static boolean isEvictedBefore(int replyInstance, int instance, int idleInstances) {
+        if (idleInstances <= 0) {
+            return false;
+        }
+        int lastEviction = instance - instance % idleInstances;
+        return replyInstance < lastEviction - idleInstances;
+    }
+
+    /* Moves the entries executed since firstInstance to new arrays */
+    private void rehash(int capacity, int firstInstance) {
+        long[] oldClients = clients;
+        int[] oldSeqNumbers = seqNumbers;
+        int[] oldInstances = instances;
+        byte[][] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldClients.length; i++) {
+            if (oldClients[i] != FREE && oldInstances[i] >= firstInstance) {
+                put(oldClients[i], oldSeqNumbers[i], oldValues[i], oldInstances[i]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the content of this cache with the content of the other one.
+     *
+     * @param other - the cache to copy
+     */
+    public void setTo(ReplyCache other) {
+        ReplyCache copy = other.copy();
+        synchronized (this) {
+            clients = copy.clients;
+            seqNumbers = copy.seqNumbers;
+            instances = copy.instances;
+            values = copy.values;
+            size = copy.size;
+        }
+    }
+
+    /**
+     * Returns a copy of this cache. The values of the replies are shared.
+     */
+    public synchronized ReplyCache copy() {
+        ReplyCache copy = new ReplyCache();
+        copy.clients = clients.clone();
+        copy.seqNumbers = seqNumbers.clone();
+        copy.instances = instances.clone();
+        copy.values = values.clone();
+        copy.size = size;
+        return copy;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the size of this cache after serialization in bytes.
+     */
+    public synchronized int byteSize() {
+        int byteSize = 4;
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] != FREE) {
+                byteSize += 8 + 4 + 4 + 4 + values[i].length;
+            }
+        }
+        return byteSize;
+    }
+
+    /**
+     * Writes this cache as
+     * <code>[count][client|seqNumber|instance|size|value]...</code>.
+     *
+     * @param output - the stream to write to
+     * @throws IOException if I/O error occurs
+     */
+    public synchronized void writeTo(DataOutputStream output) throws IOException {
+        output.writeInt(size);
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] != FREE) {
+                output.writeLong(clients[i]);
+                output.writeInt(seqNumbers[i]);
+                output.writeInt(instances[i]);
+                output.writeInt(values[i].length);
+                output.write(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a cache written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param input - the stream to read from
+     * @return the cache read
+     * @throws IOException if I/O error occurs
+     */
+    public static ReplyCache readFrom(DataInputStream input) throws IOException {
+        ReplyCache cache = new ReplyCache();
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            long clientId = input.readLong();
+            int seqNumber = input.readInt();
+            int instance = input.readInt();
+            byte[] value = new byte[input.readInt()];
+            input.readFully(value);
+            cache.put(clientId, seqNumber, value, instance);
+        }
+        return cache;
+    }
+}
@@ -98,13 +98,21 @@ public class Request implements Serializable {
         return new Request(requestId, value);
     }
     
+    /**
+     * Reads all requests from a batch serialized as
+     * <code>[count][size|request]...</code>.
+     * 
+     * @param source - the serialized batch
+     * @return the requests of the batch
+     */
     public static Request[] unpack(byte[] source) {
         ByteBuffer bb = ByteBuffer.wrap(source);
-        int count = 1;//bb.getInt();
-        int size = bb.getInt();
+        int count = bb.getInt();
         Request[] requests = new Request[count];
 
         for (int i = 0; i < count; ++i) {
+            // size of the serialized request, not needed when reading all
+            bb.getInt();
             requests[i] = Request.create(bb);
         }
 
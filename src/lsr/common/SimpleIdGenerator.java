@@ -32,7 +32,7 @@ public class SimpleIdGenerator implements IdGenerator {
     
     public SimpleIdGenerator() {
     	step = 0;
-    	current = new AtomicLong(processDescriptor.localId);
+    	current = new AtomicLong(processDescriptor().localId);
     }
 
     /**
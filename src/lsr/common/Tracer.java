@@ -0,0 +1,281 @@
+package lsr.common;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sampled tracing of client requests through the replication pipeline.
+ *
+ * A request is sampled by a hash of its {@link RequestId}, so that all
+ * replicas trace the same requests, and an instance is sampled if its batch
+ * holds a sampled request. The stages of a request are keyed by the request
+ * id, the stages of the consensus by the instance id, and
+ * {@link #EXECUTE} links the two.
+ *
+ * Each thread records its events into its own ring buffer of preallocated
+ * arrays, so recording takes no lock and allocates nothing. The buffers are
+ * appended periodically to a file as lines
+ * <code>time replica stage id1 id2 id3</code>, with the time in nanoseconds
+ * since the epoch; the events of a thread recorded faster than the dump
+ * period are overwritten and lost. The files of all replicas are merged
+ * offline into per-request waterfalls by
+ * <code>lsr.paxos.test.TraceWaterfall</code>.
+ *
+ * Each replica running in this JVM (see
+ * {@link ProcessDescriptor#initializeForThread}) traces with its own id,
+ * sampling and file, chosen by the descriptor of the calling thread.
+ */
+public final class Tracer {
+
+    /** Request received from the client: clientId, seqNumber */
+    public static final int RECEIVE = 0;
+    /** Batch holding the request closed, at the leader: clientId, seqNumber */
+    public static final int BATCH = 1;
+    /** Instance proposed, at the leader: instance */
+    public static final int PROPOSE = 2;
+    /** Propose accepted: instance, leader */
+    public static final int ACCEPT_2A = 3;
+    /** Accept received: instance, sender */
+    public static final int ACCEPT_2B = 4;
+    /** Instance decided: instance */
+    public static final int DECIDE = 5;
+    /** Request executed: clientId, seqNumber, instance */
+    public static final int EXECUTE = 6;
+    /** Reply sent to the client: clientId, seqNumber */
+    public static final int REPLY = 7;
+
+    public static final String[] STAGE_NAMES = {"receive", "batch", "propose", "2a", "2b",
+                                                "decide", "execute", "reply"};
+
+    /** Events kept per thread between two dumps; a power of two */
+    private static final int RING_SIZE = 1 << 14;
+
+    /* Set once some replica traces; no session is looked up before */
+    private static volatile boolean anyEnabled = false;
+    /* The tracing state of the replicas of this JVM, by replica id */
+    private static final ConcurrentMap<Integer, Session> sessions =
+            new ConcurrentHashMap<Integer, Session>();
+
+    /* Converts System.nanoTime() to nanoseconds since the epoch */
+    private static final long EPOCH_OFFSET = System.currentTimeMillis() * 1000000 -
+                                             System.nanoTime();
+
+    private static final ThreadLocal<Ring> ring = new ThreadLocal<Ring>() {
+        protected Ring initialValue() {
+            Ring created = new Ring();
+            // threads record events only for the replica they belong to
+            Session session = session();
+            if (session != null) {
+                session.rings.add(created);
+            }
+            return created;
+        }
+    };
+
+    /** Tracing state of one replica */
+    private static final class Session {
+        final int localId;
+        /** One in how many requests is traced */
+        final int sampling;
+        final List<Ring> rings = new CopyOnWriteArrayList<Ring>();
+
+        Session(int localId, int sampling) {
+            this.localId = localId;
+            this.sampling = sampling;
+        }
+    }
+
+    private Tracer() {
+    }
+
+    /**
+     * Starts tracing one in <code>sampling</code> requests, appending the
+     * events to the file every <code>period</code> milliseconds.
+     *
+     * @param replicaId - the id of this replica, written with each event
+     * @param sampling - one in how many requests is traced; 0 disables tracing
+     * @param fileName - the file to append to
+     * @param period - the time between dumps in milliseconds
+     */
+    public static synchronized void start(int replicaId, int sampling, final String fileName,
+                                          int period) {
+        if (sampling <= 0 || sessions.containsKey(replicaId)) {
+            return;
+        }
+        final Session session = new Session(replicaId, sampling);
+        sessions.put(replicaId, session);
+        anyEnabled = true;
+        Timer dumpTimer = new Timer("TraceDump-" + replicaId, true);
+        dumpTimer.schedule(new TimerTask() {
+            public void run() {
+                dump(session, fileName);
+            }
+        }, period, period);
+    }
+
+    /** Returns the tracing state of the local replica, or null */
+    private static Session session() {
+        if (!anyEnabled) {
+            return null;
+        }
+        ProcessDescriptor descriptor = ProcessDescriptor.processDescriptor();
+        return descriptor == null ? null : sessions.get(descriptor.localId);
+    }
+
+    public static boolean isEnabled() {
+        return session() != null;
+    }
+
+    /** Tells if the request of the given client and sequence number is traced */
+    public static boolean isSampled(long clientId, int seqNumber) {
+        Session session = session();
+        return session != null && isSampled(session.sampling, clientId, seqNumber);
+    }
+
+    private static boolean isSampled(int n, long clientId, int seqNumber) {
+        long hash = (clientId * 0x9E3779B97F4A7C15L + seqNumber) * 0xC2B2AE3D27D4EB4FL;
+        return ((hash >>> 32) % n) == 0;
+    }
+
+    public static boolean isSampled(RequestId id) {
+        return isSampled(id.getClientId(), id.getSeqNumber());
+    }
+
+    /**
+     * Tells if the batch holds a traced request. Reads the request ids in
+     * place, as packed by the <code>Batcher</code>.
+     *
+     * @param batch - the value of an instance
+     */
+    public static boolean isSampled(byte[] batch) {
+        Session session = session();
+        if (session == null || batch == null || batch.length < 4) {
+            return false;
+        }
+        int count = readInt(batch, 0);
+        int offset = 4;
+        for (int i = 0; i < count && offset + 16 <= batch.length; i++) {
+            int size = readInt(batch, offset);
+            if (isSampled(session.sampling, readLong(batch, offset + 4),
+                    readInt(batch, offset + 12))) {
+                return true;
+            }
+            offset += 4 + size;
+        }
+        return false;
+    }
+
+    /** Records the stage of a request */
+    public static void request(int stage, RequestId id) {
+        ring.get().add(stage, id.getClientId(), id.getSeqNumber(), -1);
+    }
+
+    /** Records the execution of a request in the instance */
+    public static void execute(RequestId id, int instance) {
+        ring.get().add(EXECUTE, id.getClientId(), id.getSeqNumber(), instance);
+    }
+
+    /** Records the stage of an instance, with the replica involved or -1 */
+    public static void instance(int stage, int instance, int replica) {
+        ring.get().add(stage, instance, replica, -1);
+    }
+
+    /** Appends the events recorded by the replica since the last dump */
+    private static void dump(Session session, String fileName) {
+        List<long[]> events = new ArrayList<long[]>();
+        for (Ring r : session.rings) {
+            r.drainTo(events);
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        Collections.sort(events, new Comparator<long[]>() {
+            public int compare(long[] e1, long[] e2) {
+                return e1[0] < e2[0] ? -1 : (e1[0] == e2[0] ? 0 : 1);
+            }
+        });
+
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new FileWriter(fileName, true));
+            for (long[] e : events) {
+                writer.println((e[0] + EPOCH_OFFSET) + " " + session.localId + " " +
+                               STAGE_NAMES[(int) e[1]] + " " + e[2] + " " + e[3] + " " + e[4]);
+            }
+        } catch (IOException e) {
+            logger.warn("Cannot write trace to {}: {}", fileName, e.toString());
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 |
+               (b[offset + 2] & 0xFF) << 8 | (b[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        return (long) readInt(b, offset) << 32 | (readInt(b, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Events of a single thread. Written by its thread only; read by the dump
+     * thread, which discards the events overwritten while it was reading.
+     */
+    private static final class Ring {
+        private final long[] times = new long[RING_SIZE];
+        private final int[] stages = new int[RING_SIZE];
+        private final long[] ids1 = new long[RING_SIZE];
+        private final long[] ids2 = new long[RING_SIZE];
+        private final long[] ids3 = new long[RING_SIZE];
+
+        /** Number of events written */
+        private volatile long written = 0;
+        /** Number of events dumped; accessed by the dump thread only */
+        private long dumped = 0;
+
+        void add(int stage, long id1, long id2, long id3) {
+            long n = written;
+            int i = (int) n & (RING_SIZE - 1);
+            times[i] = System.nanoTime();
+            stages[i] = stage;
+            ids1[i] = id1;
+            ids2[i] = id2;
+            ids3[i] = id3;
+            written = n + 1;
+        }
+
+        void drainTo(List<long[]> events) {
+            long end = written;
+            long start = Math.max(dumped, end - RING_SIZE);
+            int first = events.size();
+            for (long n = start; n < end; n++) {
+                int i = (int) n & (RING_SIZE - 1);
+                events.add(new long[] {times[i], stages[i], ids1[i], ids2[i], ids3[i]});
+            }
+            // the writer may have overwritten the oldest events meanwhile
+            long overwritten = written - RING_SIZE + 1 - start;
+            if (overwritten > 0) {
+                events.subList(first, first + (int) Math.min(overwritten, end - start)).clear();
+            }
+            dumped = end;
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(Tracer.class);
+}
@@ -1,50 +1,185 @@
 package lsr.paxos;
 
+import static lsr.common.ProcessDescriptor.processDescriptor;
+
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import lsr.common.Histogram;
+import lsr.common.Metrics;
 import lsr.common.Request;
+import lsr.common.SingleThreadDispatcher;
+import lsr.common.Tracer;
 import lsr.paxos.core.Proposer;
 import lsr.paxos.core.Paxos;
+import lsr.paxos.storage.Storage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class Batcher{
+/**
+ * Packs client requests into batches, which are the values proposed by the
+ * leader. A batch is closed when:
+ * <ul>
+ * <li>it reaches <code>BatchSize</code> bytes,
+ * <li>its first request waited <code>MaxBatchDelay</code> ms and the proposer
+ * has a free slot in the window,
+ * <li>or the proposer is idle, so waiting would only add latency.
+ * </ul>
+ * While the window is full the proposer does not ask for batches, so the
+ * current batch keeps growing past its deadline.
+ * 
+ * A batch is serialized as <code>[count][size|request]...</code>, as read by
+ * {@link Request#unpack(byte[])}.
+ */
+public class Batcher {
 
     private ConcurrentLinkedQueue<byte[]> fullBatches = new ConcurrentLinkedQueue<byte[]>();
 
     private final Proposer proposer;
+    private final Storage storage;
+
+    private final int maxBatchSize;
+    private final int maxBatchDelay;
+
+    /** Runs the batch timeouts */
+    private final SingleThreadDispatcher batcherThread = new SingleThreadDispatcher("Batcher");
+
+    /*
+     * The batch under construction. Accessed by the selector threads adding
+     * requests, by the Batcher thread on timeout and by the Paxos dispatcher
+     * asking for batches. Guarded by this.
+     */
+    private final ArrayList<Request> currentBatch = new ArrayList<Request>();
+    /** Serialized size of the current batch, including the count field */
+    private int currentBatchSize = 4;
+    /** Identifies the current batch, to discard timeouts of closed batches */
+    private long batchNumber = 0;
+    private boolean deadlinePassed = false;
+    private ScheduledFuture<?> timeoutTask = null;
+    /** When the first request of the current batch was added */
+    private long batchStart;
+
+    private final Histogram closeTime = Metrics.histogram("batch.close");
 
     public Batcher(Paxos paxos) {
         this.proposer = paxos.getProposer();
+        this.storage = paxos.getStorage();
+        this.maxBatchSize = processDescriptor().batchingLevel;
+        this.maxBatchDelay = processDescriptor().maxBatchDelay;
     }
     
     public void start()
     {
+        batcherThread.start();
     }
     
-    /*
-     * (non-Javadoc)
+    /**
+     * Adds the request to the current batch. Called by the selector threads.
      * 
-     * @see lsr.paxos.Batcher#enqueueClientRequest(lsr.common.RequestType)
+     * @param request - the request to propose
      */
     public void enqueueClientRequest(final Request request) {
     	logger.info("enqueue Client Request {}", request);
-    	
-        byte[] newBatch = new byte[request.byteSize() + 4];
-        ByteBuffer bb = ByteBuffer.wrap(newBatch);
-        bb.putInt(request.byteSize());
-        request.writeTo(bb);
-        fullBatches.add(newBatch);
-        proposer.notifyAboutNewBatch();
+
+        boolean notify;
+        synchronized (this) {
+            int requestSize = 4 + request.byteSize();
+            // A request larger than BatchSize gets a batch of its own
+            if (!currentBatch.isEmpty() && currentBatchSize + requestSize > maxBatchSize) {
+                closeBatch();
+            }
+            if (currentBatch.isEmpty()) {
+                batchStart = System.nanoTime();
+            }
+            currentBatch.add(request);
+            currentBatchSize += requestSize;
+
+            if (currentBatchSize >= maxBatchSize) {
+                closeBatch();
+                notify = true;
+            } else if (currentBatch.size() == 1) {
+                scheduleTimeout();
+                // an idle proposer takes the batch right away
+                notify = true;
+            } else {
+                notify = false;
+            }
+        }
+        if (notify) {
+            proposer.notifyAboutNewBatch();
+        }
     }
 
+    /**
+     * Returns the next batch to propose, or null if no batch is ready. Called
+     * by the proposer when there is a free slot in the window.
+     */
     public byte[] requestBatch()
     {
         byte[] batch = fullBatches.poll();
+        if (batch == null) {
+            synchronized (this) {
+                if (!currentBatch.isEmpty() && (deadlinePassed || storage.isIdle())) {
+                    closeBatch();
+                }
+            }
+            batch = fullBatches.poll();
+        }
         return batch;
     }
 
+    private void scheduleTimeout() {
+        final long batch = batchNumber;
+        timeoutTask = batcherThread.schedule(new Runnable() {
+            public void run() {
+                synchronized (Batcher.this) {
+                    if (batch != batchNumber) {
+                        return;
+                    }
+                    deadlinePassed = true;
+                }
+                proposer.notifyAboutNewBatch();
+            }
+        }, maxBatchDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /** Serializes the current batch and starts a new one. Holds the lock. */
+    private void closeBatch() {
+        ByteBuffer bb = ByteBuffer.allocate(currentBatchSize);
+        bb.putInt(currentBatch.size());
+        for (Request request : currentBatch) {
+            bb.putInt(request.byteSize());
+            request.writeTo(bb);
+        }
+        assert bb.remaining() == 0 : "Packing error";
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Closing batch {} with {} requests, {} bytes", batchNumber,
+                    currentBatch.size(), currentBatchSize);
+        }
+        fullBatches.add(bb.array());
+        closeTime.recordSince(batchStart);
+        if (Tracer.isEnabled()) {
+            for (Request request : currentBatch) {
+                if (Tracer.isSampled(request.getRequestId())) {
+                    Tracer.request(Tracer.BATCH, request.getRequestId());
+                }
+            }
+        }
+
+        currentBatch.clear();
+        currentBatchSize = 4;
+        batchNumber++;
+        deadlinePassed = false;
+        if (timeoutTask != null) {
+            timeoutTask.cancel(false);
+            timeoutTask = null;
+        }
+    }
+
     private final static Logger logger = LoggerFactory.getLogger(Batcher.class);
 }
@@ -1,8 +1,11 @@
 package lsr.paxos;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 
+import lsr.common.Metrics;
 import lsr.common.MovingAverage;
 import lsr.common.Request;
 import lsr.common.SingleThreadDispatcher;
@@ -39,10 +42,20 @@ public class DecideCallback {
      */
     private static final double OVERFLOW_THRESHOLD_MS = 250;
 
+    /** Maximum number of instances executed together in parallel */
+    private static final int MAX_PARALLEL_INSTANCES = 64;
+
     public DecideCallback(Replica replica, int executeUB) {
         this.replica = replica;
         this.executeUB = executeUB;
         replicaDispatcher = replica.getReplicaDispatcher();
+        Metrics.gauge("queue.decidedWaitingExecution", new Metrics.Gauge() {
+            public long get() {
+                synchronized (decidedWaitingExecution) {
+                    return decidedWaitingExecution.size();
+                }
+            }
+        });
     }
 
     public void onRequestOrdered(final int instance, final ConsensusInstance ci) {
@@ -74,6 +87,11 @@ public class DecideCallback {
 
         logger.info("Executing requests...");
 
+        if (replica.isParallelExecution()) {
+            executeRequestsInParallel();
+            return;
+        }
+
 		while (true) {
 		    ConsensusInstance ci;
 		    synchronized (decidedWaitingExecution) {
@@ -100,6 +118,46 @@ public class DecideCallback {
 
     }
 
+    /**
+     * Executes the consecutive decided instances together, so that the
+     * replica executes their requests concurrently.
+     */
+    private void executeRequestsInParallel() {
+        while (true) {
+            List<ConsensusInstance> instances = new ArrayList<ConsensusInstance>();
+            synchronized (decidedWaitingExecution) {
+                ConsensusInstance ci;
+                while (instances.size() < MAX_PARALLEL_INSTANCES &&
+                       (ci = decidedWaitingExecution.get(executeUB + instances.size())) != null) {
+                    instances.add(ci);
+                }
+            }
+            if (instances.isEmpty()) {
+                logger.info("Cannot continue execution. Next instance not decided: {}", executeUB);
+                return;
+            }
+
+            List<Request[]> requests = new ArrayList<Request[]>(instances.size());
+            for (ConsensusInstance ci : instances) {
+                requests.add(Request.unpack(ci.getValue()));
+            }
+
+            logger.info("Executing instances: {} - {}", executeUB,
+                    executeUB + instances.size() - 1);
+            long start = System.currentTimeMillis();
+            replica.executeInstancesAndWait(executeUB, requests);
+            averageInstanceExecTime.add((double) (System.currentTimeMillis() - start) /
+                                        instances.size());
+
+            synchronized (decidedWaitingExecution) {
+                for (int i = 0; i < instances.size(); i++) {
+                    decidedWaitingExecution.remove(executeUB + i);
+                }
+            }
+            executeUB += instances.size();
+        }
+    }
+
     public void atRestoringStateFromSnapshot(final int nextInstanceId) {
         replicaDispatcher.checkInDispatcher();
 
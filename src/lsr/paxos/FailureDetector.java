@@ -131,7 +131,8 @@ public class FailureDetector {
     private class SendTask implements Runnable {
         public void run() {
             assert dispatcher.amIInDispatcher();
-            Alive alive = new Alive(storage.getView(), storage.getLog().getNextId());
+            Alive alive = new Alive(storage.getView(), storage.getLog().getNextId(),
+                    LeaderLease.now());
             //System.out.println("Going to send Alive message");
             network.sendToAll(alive);
         }
@@ -170,6 +171,10 @@ public class FailureDetector {
                         // message
                         return;
                     }
+                    if (ProcessDescriptor.getInstance().leaderLeaseReads) {
+                        // Only alive messages renew the lease
+                        return;
+                    }
                     // If we are the leader and we sent a message to all, reset
                     // the timeout.
                     int n = ProcessDescriptor.getInstance().numReplicas;
@@ -0,0 +1,127 @@
+package lsr.paxos;
+
+import static lsr.common.ProcessDescriptor.processDescriptor;
+
+import java.util.Arrays;
+
+import lsr.paxos.core.Paxos;
+import lsr.paxos.messages.Alive;
+import lsr.paxos.messages.LeaseAck;
+import lsr.paxos.network.Network;
+import lsr.paxos.storage.Storage;
+
+/**
+ * Leader lease built on the <code>Alive</code> messages of the failure
+ * detector, letting the leader answer read-only requests without ordering
+ * them.
+ * <p>
+ * A follower receiving an <code>Alive</code> from the leader of its view
+ * promises not to join a higher view for <code>FDSuspectTimeout</code> after
+ * the receipt, and answers with a <code>LeaseAck</code>. The leader holds the
+ * lease until the latest send time of an <code>Alive</code> acknowledged by a
+ * majority (itself included), plus <code>FDSuspectTimeout</code>, minus
+ * <code>LeaderLeaseGuard</code> for the clock drift. Meanwhile no other
+ * replica can become the leader, so every request decided so far is in an
+ * instance below the next instance id of the leader.
+ * <p>
+ * Times are in milliseconds of the monotonic clock of each replica. Used only
+ * by the Paxos dispatcher thread, except {@link #getPromiseRemaining()}.
+ */
+public final class LeaderLease {
+    private final Paxos paxos;
+    private final Network network;
+    private final Storage storage;
+    private final int duration;
+    private final int guard;
+
+    /* Follower: until when this replica does not join a higher view */
+    private volatile long promisedUntil = Long.MIN_VALUE;
+
+    /* Leader: view of the acknowledgments and last send time acknowledged */
+    private int view = -1;
+    private final long[] acked;
+    private long validUntil = Long.MIN_VALUE;
+
+    /**
+     * Creates the lease of the given replica.
+     *
+     * @param paxos - the paxos of this replica
+     * @param network - used to send the acknowledgments
+     * @param storage - storage containing the view
+     */
+    public LeaderLease(Paxos paxos, Network network, Storage storage) {
+        this.paxos = paxos;
+        this.network = network;
+        this.storage = storage;
+        this.duration = processDescriptor().fdSuspectTimeout;
+        this.guard = processDescriptor().leaderLeaseGuard;
+        this.acked = new long[processDescriptor().numReplicas];
+    }
+
+    /** Current time on the clock used by leases, in milliseconds */
+    public static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Promises the lease to the leader which sent the message. The message must
+     * be in the current view.
+     *
+     * @param alive - the message received
+     * @param sender - id of the sender
+     */
+    public void onAlive(Alive alive, int sender) {
+        if (paxos.isLeader() || sender != paxos.getLeaderId()) {
+            return;
+        }
+        promisedUntil = Math.max(promisedUntil, now() + duration);
+        network.sendMessage(new LeaseAck(storage.getView(), alive.getSendTime()), sender);
+    }
+
+    /**
+     * Extends the lease of this leader once a majority acknowledged an
+     * <code>Alive</code>. The message must be in the current view.
+     *
+     * @param ack - the message received
+     * @param sender - id of the sender
+     */
+    public void onLeaseAck(LeaseAck ack, int sender) {
+        if (!paxos.isLeader()) {
+            return;
+        }
+        if (view != storage.getView()) {
+            view = storage.getView();
+            Arrays.fill(acked, Long.MIN_VALUE);
+            validUntil = Long.MIN_VALUE;
+        }
+        acked[sender] = Math.max(acked[sender], ack.getAliveSendTime());
+
+        long[] sorted = acked.clone();
+        sorted[processDescriptor().localId] = Long.MAX_VALUE;
+        Arrays.sort(sorted);
+        // the latest send time acknowledged by a majority
+        long sent = sorted[sorted.length - (sorted.length / 2 + 1)];
+        if (sent != Long.MIN_VALUE) {
+            validUntil = Math.max(validUntil, sent + duration - guard);
+        }
+    }
+
+    /**
+     * Tells if this replica is the leader and no other replica can become the
+     * leader until now.
+     */
+    public boolean isValid() {
+        return paxos.isLeader() && view == storage.getView() && now() < validUntil;
+    }
+
+    /**
+     * Returns how long this replica still must not join a higher view. May be
+     * called from any thread.
+     *
+     * @return the time in milliseconds; 0 or less if there is no promise
+     */
+    public long getPromiseRemaining() {
+        long until = promisedUntil;
+        return until == Long.MIN_VALUE ? 0 : until - now();
+    }
+}
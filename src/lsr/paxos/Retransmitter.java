@@ -36,7 +36,7 @@ public final class Retransmitter implements Runnable {
             new DelayQueue<Retransmitter.InnerRetransmittedMessage>();
     
     private final static MovingAverage ma = new MovingAverage(0.1,
-            processDescriptor.retransmitTimeout);
+            processDescriptor().retransmitTimeout);
 
     /**
      * Initializes new instance of retransmitter.
@@ -69,7 +69,7 @@ public final class Retransmitter implements Runnable {
      */
     public RetransmittedMessage startTransmitting(Message message) {
         // no need to clone ALL_BUT_ME - the constructor down there does this
-        return startTransmitting(message, Network.OTHERS);
+        return startTransmitting(message, Network.getOthers());
     }
 
     /**
@@ -3,16 +3,17 @@ package lsr.paxos;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Vector;
 import java.lang.String;
 import lsr.common.Reply;
+import lsr.common.ReplyCache;
 
 /**
  * Structure - snapshot wrapped with all necessary additional data
@@ -21,6 +22,10 @@ import lsr.common.Reply;
  * executed, so that one might also record a snapshot before any instance has
  * been decided (even if this has no real use, and enabling it is easy)
  * 
+ * With delta snapshots, the value is the last full snapshot of the service and
+ * the deltas are the changes made since, in order. The state of the service is
+ * restored by applying the deltas on the value.
+ * 
  * @author JK
  */
 public class Snapshot implements Serializable {
@@ -32,8 +37,10 @@ public class Snapshot implements Serializable {
     private int nextIntanceId;
     /** The real snapshot - data from the Service */
     private byte[] value;
+    /** Changes to apply on the value, in order */
+    private List<byte[]> deltas = Collections.emptyList();
     /** RequestId of last executed request for each client */
-    private Map<Long, Reply> lastReplyForClient;
+    private ReplyCache lastReplyForClient;
 
     // ServiceProxy part
     /** Next request ID to be executed */
@@ -65,18 +72,51 @@ public class Snapshot implements Serializable {
         value = new byte[size];
         input.readFully(value);
 
-        // executed requests
-        size = input.readInt();
-        lastReplyForClient = new HashMap<Long, Reply>(size);
-        for (int i = 0; i < size; i++) {
-            long key = input.readLong();
+        deltas = new ArrayList<byte[]>();
+        readTail(input);
+    }
 
-            int replySize = input.readInt();
-            byte[] reply = new byte[replySize];
-            input.readFully(reply);
+    /**
+     * Reads an extension of the previous snapshot, written by
+     * {@link #writeExtensionTo(DataOutputStream, Snapshot)}.
+     */
+    private Snapshot(DataInputStream input, Snapshot previous) throws IOException {
+        nextIntanceId = input.readInt();
+        value = previous.value;
+        deltas = new ArrayList<byte[]>(previous.deltas);
+        readTail(input);
+    }
 
-            lastReplyForClient.put(key, new Reply(reply));
+    /**
+     * Reads a snapshot and the extensions appended to it. Extensions are
+     * synced before they are used, so a record which is not written completely
+     * or has an unknown type means the snapshot file is corrupted.
+     * 
+     * @param input - the input stream with serialized snapshot
+     * @return the snapshot after the last extension
+     * @throws IOException if I/O error occurs or an extension is corrupted
+     */
+    public static Snapshot readWithExtensions(DataInputStream input) throws IOException {
+        Snapshot snapshot = new Snapshot(input);
+        while (true) {
+            int type = input.read();
+            if (type == -1) {
+                return snapshot;
+            }
+            if (type != EXTENSION) {
+                throw new IOException("Unrecognized snapshot record type: " + type);
+            }
+            try {
+                snapshot = new Snapshot(input, snapshot);
+            } catch (EOFException e) {
+                throw new IOException("The last snapshot extension is incomplete", e);
+            }
         }
+    }
+
+    private void readTail(DataInputStream input) throws IOException {
+        // executed requests
+        lastReplyForClient = ReplyCache.readFrom(input);
 
         // request sequential number
         nextRequestSeqNo = input.readInt();
@@ -85,7 +125,7 @@ public class Snapshot implements Serializable {
         startingRequestSeqNo = input.readInt();
 
         // cached replies for the next instance
-        size = input.readInt();
+        int size = input.readInt();
         partialResponseCache = new Vector<Reply>(size);
         for (int i = 0; i < size; i++) {
             int replySize = input.readInt();
@@ -94,6 +134,14 @@ public class Snapshot implements Serializable {
 
             partialResponseCache.add(new Reply(reply));
         }
+
+        // deltas
+        size = input.readInt();
+        for (int i = 0; i < size; i++) {
+            byte[] delta = new byte[input.readInt()];
+            input.readFully(delta);
+            deltas.add(delta);
+        }
     }
 
     /**
@@ -115,11 +163,50 @@ public class Snapshot implements Serializable {
         this.value = value;
     }
 
-    public Map<Long, Reply> getLastReplyForClient() {
+    /**
+     * @return the changes to apply on the value, in order; empty for a full
+     *         snapshot
+     */
+    public List<byte[]> getDeltas() {
+        return deltas;
+    }
+
+    public void setDeltas(List<byte[]> deltas) {
+        this.deltas = deltas;
+    }
+
+    /**
+     * Returns the number of bytes of the deltas.
+     */
+    public long deltasByteSize() {
+        long size = 0;
+        for (byte[] delta : deltas) {
+            size += delta.length;
+        }
+        return size;
+    }
+
+    /**
+     * Checks if this snapshot was made by appending deltas to the given one,
+     * so it may be stored as an extension of it.
+     */
+    public boolean isExtensionOf(Snapshot previous) {
+        if (value != previous.value || deltas.size() <= previous.deltas.size()) {
+            return false;
+        }
+        for (int i = 0; i < previous.deltas.size(); i++) {
+            if (deltas.get(i) != previous.deltas.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public ReplyCache getLastReplyForClient() {
         return lastReplyForClient;
     }
 
-    public void setLastReplyForClient(Map<Long, Reply> lastReplyForClient) {
+    public void setLastReplyForClient(ReplyCache lastReplyForClient) {
         this.lastReplyForClient = lastReplyForClient;
     }
 
@@ -154,10 +241,7 @@ public class Snapshot implements Serializable {
         int size = 4; // next instance ID
         size += 4 + value.length; // value
 
-        size += 4; // last replies
-        for (Reply reply : lastReplyForClient.values()) {
-            size += 8 + 4 + reply.byteSize();
-        }
+        size += lastReplyForClient.byteSize(); // last replies
 
         size += 4; // nextSeqNo
 
@@ -168,6 +252,11 @@ public class Snapshot implements Serializable {
             size += 4 + reply.byteSize();
         }
 
+        size += 4; // deltas
+        for (byte[] delta : deltas) {
+            size += 4 + delta.length;
+        }
+
         return size;
     }
 
@@ -196,16 +285,38 @@ public class Snapshot implements Serializable {
         snapshotStream.writeInt(value.length);
         snapshotStream.write(value);
 
-        // executed requests
-        snapshotStream.writeInt(lastReplyForClient.size());
+        writeTailTo(snapshotStream);
+    }
 
-        for (Entry<Long, Reply> entry : lastReplyForClient.entrySet()) {
-            snapshotStream.writeLong(entry.getKey());
+    /**
+     * Writes the fields following the value, as written by
+     * {@link #writeTo(DataOutputStream)}. Allows serializing the snapshot in
+     * parts without copying the value.
+     */
+    public void writeTailTo(DataOutputStream snapshotStream) throws IOException {
+        writeTail(snapshotStream, 0);
+    }
 
-            snapshotStream.writeInt(entry.getValue().byteSize());
+    /**
+     * Writes the part of this snapshot not contained in the previous one,
+     * which this is an extension of. Once appended after the previous
+     * snapshot, written by {@link #writeTo(DataOutputStream)} and possibly
+     * some extensions, the stream is read with
+     * {@link #readWithExtensions(DataInputStream)}.
+     * 
+     * @see #isExtensionOf(Snapshot)
+     */
+    public void writeExtensionTo(DataOutputStream snapshotStream, Snapshot previous)
+            throws IOException {
+        assert isExtensionOf(previous);
+        snapshotStream.writeByte(EXTENSION);
+        snapshotStream.writeInt(nextIntanceId);
+        writeTail(snapshotStream, previous.deltas.size());
+    }
 
-            snapshotStream.write(entry.getValue().toByteArray());
-        }
+    private void writeTail(DataOutputStream snapshotStream, int firstDelta) throws IOException {
+        // executed requests
+        lastReplyForClient.writeTo(snapshotStream);
 
         // request sequential number
         snapshotStream.writeInt(nextRequestSeqNo);
@@ -220,6 +331,13 @@ public class Snapshot implements Serializable {
             snapshotStream.writeInt(reply.byteSize());
             snapshotStream.write(reply.toByteArray());
         }
+
+        // deltas
+        snapshotStream.writeInt(deltas.size() - firstDelta);
+        for (byte[] delta : deltas.subList(firstDelta, deltas.size())) {
+            snapshotStream.writeInt(delta.length);
+            snapshotStream.write(delta);
+        }
     }
 
     /**
@@ -264,4 +382,7 @@ public class Snapshot implements Serializable {
     public String toString() {
         return "Snapshot inst:" + nextIntanceId;
     }
+
+    /** Marks an extension in a stream of snapshots */
+    private static final byte EXTENSION = 0x01;
 }
@@ -1,5 +1,7 @@
 package lsr.paxos;
 
+import java.util.List;
+
 import lsr.common.Dispatcher;
 import lsr.common.MovingAverage;
 import lsr.common.ProcessDescriptor;
@@ -74,9 +76,18 @@ public class SnapshotMaintainer implements LogListener {
 
                 storage.setLastSnapshot(snapshot);
 
+                if (lastSnapshot != null &&
+                    previousSnapshotInstanceId == snapshot.getNextInstanceId()) {
+                    // The same state, e.g. with compacted deltas
+                    return;
+                }
+
                 storage.getLog().truncateBelow(previousSnapshotInstanceId);
                 askedForSnapshot = forcedSnapshot = false;
-                snapshotByteSizeEstimate.add(snapshot.getValue().length);
+                // Making a delta snapshot costs only the size of the delta
+                List<byte[]> deltas = snapshot.getDeltas();
+                snapshotByteSizeEstimate.add(deltas.isEmpty() ? snapshot.getValue().length
+                        : deltas.get(deltas.size() - 1).length);
 
                 if (logger.isInfoEnabled()) {
                     logger.info("Snapshot received from state machine for:" +
@@ -0,0 +1,404 @@
+package lsr.paxos.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import lsr.common.ClientCommand;
+import lsr.common.ClientCommand.CommandType;
+import lsr.common.ClientReply;
+import lsr.common.Configuration;
+import lsr.common.MovingAverage;
+import lsr.common.PID;
+import lsr.common.Reply;
+import lsr.common.Request;
+import lsr.common.RequestId;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TCP connection to a replica with many requests in flight at the same time.
+ * Unlike {@link Client}, sending a request does not wait for the reply: a
+ * future is returned, completed by the thread reading the replies, which are
+ * matched to the requests by their sequence number.
+ * <p>
+ * At most <code>window</code> requests are in flight; sending more blocks
+ * until a reply arrives. If the oldest request in flight gets no reply within
+ * the timeout (three times the average response time), or on a redirect, the
+ * client connects to another replica and sends again all requests in flight,
+ * in order.
+ * <p>
+ * The replicas only keep the reply to the last request of each client. A
+ * request executed whose reply was lost with the connection, and which is not
+ * the last one executed, is answered with a NACK, which fails the request it
+ * names.
+ * <p>
+ * Example of usage:
+ * <p>
+ * <blockquote>
+ *
+ * <pre>
+ * AsyncClient client = new AsyncClient(new Configuration(), 1000);
+ * client.connect();
+ * CompletableFuture&lt;byte[]&gt; reply = client.execute(new byte[] {0, 1, 2});
+ * </pre>
+ *
+ * </blockquote>
+ *
+ * All methods are thread-safe.
+ */
+public class AsyncClient {
+
+    /* Minimum time to wait before reconnecting after a connection failure */
+    private static final int CONNECTION_FAILURE_TIMEOUT = 500;
+    /* Timeout == TO_MULTIPLIER*average */
+    private static final int TO_MULTIPLIER = 3;
+    private static final int INITIAL_TIMEOUT = 3000 / TO_MULTIPLIER;
+    /* How often the requests in flight are checked for timeout */
+    private static final int CHECK_INTERVAL = 100;
+
+    private final List<PID> replicas;
+    private final Semaphore window;
+    private final Random random = new Random();
+    private final List<Integer> reconnectIds = new ArrayList<Integer>();
+
+    /* All below guarded by this */
+    private final MovingAverage average = new MovingAverage(0.2, INITIAL_TIMEOUT);
+    private long clientId = -1;
+    private int sequenceId = 0;
+    /* Requests in flight by sequence number */
+    private final NavigableMap<Integer, Pending> pending = new TreeMap<Integer, Pending>();
+    private Socket socket;
+    private DataOutputStream output;
+    private DataInputStream input;
+    private boolean connecting = false;
+    private Thread reader = null;
+    private Timer timer = null;
+
+    private volatile boolean closed = false;
+
+    /** Request waiting for its reply */
+    private static final class Pending {
+        final Request request;
+        final byte[] command;
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        long sendTime;
+
+        Pending(Request request, byte[] command) {
+            this.request = request;
+            this.command = command;
+        }
+    }
+
+    /**
+     * Creates new connection used by client to connect to replicas.
+     *
+     * @param config - the configuration with information about replicas to
+     *            connect to
+     * @param window - the maximum number of requests in flight
+     */
+    public AsyncClient(Configuration config, int window) {
+        this.replicas = config.getProcesses();
+        this.window = new Semaphore(window);
+    }
+
+    /**
+     * Connects to a replica, cycling through the replicas until a connection is
+     * established, and starts the thread reading the replies.
+     */
+    public void connect() {
+        synchronized (this) {
+            if (connecting) {
+                return;
+            }
+            connecting = true;
+        }
+        reconnect(nextReplica());
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            reader = new Thread(new Reader(), "AsyncClientReader");
+            reader.setDaemon(true);
+            reader.start();
+            timer = new Timer("AsyncClientTimer", true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    checkTimeout();
+                }
+            }, CHECK_INTERVAL, CHECK_INTERVAL);
+        }
+    }
+
+    /**
+     * Sends the request to be ordered and executed. Blocks only while the
+     * window is full.
+     *
+     * @param bytes - argument for service
+     * @return the future completed with the reply from service
+     * @throws InterruptedException if interrupted while the window is full
+     */
+    public CompletableFuture<byte[]> execute(byte[] bytes) throws InterruptedException {
+        return send(bytes, CommandType.Request);
+    }
+
+    /**
+     * As {@link #execute(byte[])}, for a request which does not modify the
+     * state of the service.
+     *
+     * @see Client#executeRead(byte[])
+     */
+    public CompletableFuture<byte[]> executeRead(byte[] bytes) throws InterruptedException {
+        return send(bytes, CommandType.Read);
+    }
+
+    private CompletableFuture<byte[]> send(byte[] bytes, CommandType type)
+            throws InterruptedException {
+        window.acquire();
+        synchronized (this) {
+            if (closed || reader == null) {
+                window.release();
+                throw new IllegalStateException("Client not connected");
+            }
+            Request request = new Request(new RequestId(clientId, ++sequenceId), bytes);
+            ClientCommand command = new ClientCommand(type, request);
+            ByteBuffer bb = ByteBuffer.allocate(command.byteSize());
+            command.writeTo(bb);
+            Pending waiting = new Pending(request, bb.array());
+            pending.put(request.getRequestId().getSeqNumber(), waiting);
+            write(waiting);
+            return waiting.future;
+        }
+    }
+
+    /**
+     * Closes the connection. The requests in flight fail.
+     */
+    public void close() {
+        closed = true;
+        List<Pending> failed;
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel();
+            }
+            closeSocket();
+            failed = new ArrayList<Pending>(pending.values());
+            pending.clear();
+        }
+        for (Pending request : failed) {
+            request.future.completeExceptionally(new IllegalStateException("Client closed"));
+        }
+    }
+
+    /* Holds the lock */
+    private void write(Pending request) {
+        request.sendTime = System.currentTimeMillis();
+        if (output == null) {
+            // sent again once reconnected
+            return;
+        }
+        try {
+            output.write(request.command);
+            output.flush();
+        } catch (IOException e) {
+            logger.warn("Error sending request {}: {}", request.request.getRequestId(), e);
+            // the reader reconnects
+            closeSocket();
+        }
+    }
+
+    private void onReply(ClientReply clientReply) {
+        Pending request;
+        Reply reply;
+        switch (clientReply.getResult()) {
+            case OK:
+                reply = new Reply(clientReply.getValue());
+                synchronized (this) {
+                    request = pending.remove(reply.getRequestId().getSeqNumber());
+                    if (request == null) {
+                        // reply to a request sent again
+                        return;
+                    }
+                    average.add(System.currentTimeMillis() - request.sendTime);
+                }
+                window.release();
+                request.future.complete(reply.getValue());
+                break;
+
+            case REDIRECT:
+                int primary = ByteBuffer.wrap(clientReply.getValue()).getInt();
+                if (primary < 0 || primary >= replicas.size()) {
+                    logger.error("Invalid redirect received: {}", primary);
+                    primary = nextReplica();
+                }
+                reconnect(primary);
+                break;
+
+            case NACK:
+                reply = new Reply(clientReply.getValue());
+                String message = new String(reply.getValue());
+                synchronized (this) {
+                    request = reply.getRequestId().getClientId() == clientId
+                            ? pending.remove(reply.getRequestId().getSeqNumber())
+                            : null;
+                }
+                if (request == null) {
+                    logger.warn("Nack for no request in flight: {}", message);
+                    return;
+                }
+                window.release();
+                request.future.completeExceptionally(new Exception("Nack received: " + message));
+                break;
+
+            default:
+                throw new RuntimeException("Unknown reply type");
+        }
+    }
+
+    /** Moves to another replica if the oldest request waits too long */
+    private synchronized void checkTimeout() {
+        if (pending.isEmpty() || socket == null) {
+            return;
+        }
+        int timeout = (int) (TO_MULTIPLIER * average.get());
+        timeout = Math.max(Math.min(timeout, Client.MAX_TIMEOUT), Client.MIN_TIMEOUT);
+        Pending oldest = pending.firstEntry().getValue();
+        if (System.currentTimeMillis() - oldest.sendTime > timeout) {
+            logger.warn("No reply for {} after {} ms", oldest.request.getRequestId(), timeout);
+            average.add(Math.min(timeout * TO_MULTIPLIER, Client.MAX_TIMEOUT));
+            // the reader reconnects at once
+            closeSocket();
+        }
+    }
+
+    /**
+     * Connects to the given replica, or to the next ones if it fails, and
+     * sends again all requests in flight. Called without the lock, so that
+     * the backoff between the attempts does not block the senders.
+     */
+    private void reconnect(int replicaId) {
+        while (!closed) {
+            synchronized (this) {
+                try {
+                    connectTo(replicaId);
+                    for (Pending request : pending.values()) {
+                        write(request);
+                    }
+                    return;
+                } catch (IOException e) {
+                    closeSocket();
+                    logger.warn("Connect to {} failed: {}", replicaId, e.getMessage());
+                }
+            }
+            waitForReconnect(CONNECTION_FAILURE_TIMEOUT);
+            replicaId = nextReplica();
+        }
+    }
+
+    private void connectTo(int replicaId) throws IOException {
+        closeSocket();
+
+        PID replica = replicas.get(replicaId);
+        logger.info("Connecting to {}", replica);
+        socket = new Socket(replica.getHostname(), replica.getClientPort());
+        socket.setReuseAddress(true);
+        socket.setTcpNoDelay(true);
+        output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        // Sends the contact replica our clientID or gets one from a replica
+        if (clientId == -1) {
+            output.write(Client.REQUEST_NEW_ID);
+            output.flush();
+            clientId = input.readLong();
+        } else {
+            output.write(Client.HAVE_CLIENT_ID);
+            output.writeLong(clientId);
+            output.flush();
+        }
+        logger.info("Connected [p{}]. ClientID: {}", replicaId, clientId);
+    }
+
+    private void closeSocket() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.warn("Not clean socket closing: {}", e);
+        }
+        socket = null;
+        output = null;
+        input = null;
+    }
+
+    /** Returns ID of next replica to connect to */
+    private int nextReplica() {
+        synchronized (reconnectIds) {
+            if (reconnectIds.isEmpty()) {
+                for (int i = 0; i < replicas.size(); ++i)
+                    reconnectIds.add(i);
+                Collections.shuffle(reconnectIds, random);
+            }
+            return reconnectIds.remove(0);
+        }
+    }
+
+    private void waitForReconnect(int timeout) {
+        try {
+            // random backoff
+            Thread.sleep(timeout + random.nextInt(500));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Reads the replies and reconnects when the connection breaks */
+    private class Reader implements Runnable {
+        public void run() {
+            while (!closed) {
+                DataInputStream in;
+                synchronized (AsyncClient.this) {
+                    in = input;
+                }
+                try {
+                    if (in == null) {
+                        throw new IOException("Not connected");
+                    }
+                    onReply(new ClientReply(in));
+                } catch (IOException e) {
+                    if (closed) {
+                        return;
+                    }
+                    logger.warn("Error reading socket: {}", e.toString());
+                    boolean replaced;
+                    synchronized (AsyncClient.this) {
+                        // by a redirect
+                        replaced = input != in;
+                    }
+                    if (!replaced) {
+                        reconnect(nextReplica());
+                    }
+                }
+            }
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(AsyncClient.class);
+}
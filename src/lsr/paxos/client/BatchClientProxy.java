@@ -0,0 +1,49 @@
+package lsr.paxos.client;
+
+import lsr.common.ClientReply;
+
+/**
+ * Collects the replies to the requests of a batched client command, and sends
+ * them to the client as a single reply once all are known.
+ */
+final class BatchClientProxy {
+    private final ClientProxy client;
+    private final ClientReply[] replies;
+    private int missing;
+
+    /**
+     * @param client - the client which sent the batch
+     * @param size - the number of requests in the batch
+     */
+    BatchClientProxy(ClientProxy client, int size) {
+        this.client = client;
+        this.replies = new ClientReply[size];
+        this.missing = size;
+    }
+
+    /**
+     * Returns the proxy receiving the reply to the request at the given
+     * position of the batch.
+     */
+    ClientProxy getProxy(final int index) {
+        return new ClientProxy() {
+            public void send(ClientReply clientReply) {
+                onReply(index, clientReply);
+            }
+        };
+    }
+
+    private void onReply(int index, ClientReply clientReply) {
+        synchronized (this) {
+            if (replies[index] != null) {
+                // answered already
+                return;
+            }
+            replies[index] = clientReply;
+            if (--missing > 0) {
+                return;
+            }
+        }
+        client.send(ClientReply.batch(replies));
+    }
+}
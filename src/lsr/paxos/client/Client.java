@@ -15,6 +15,7 @@ import java.util.Random;
 import lsr.common.ClientCommand;
 import lsr.common.ClientCommand.CommandType;
 import lsr.common.ClientReply;
+import lsr.common.ClientReply.Result;
 import lsr.common.Configuration;
 import lsr.common.MovingAverage;
 import lsr.common.PID;
@@ -179,8 +180,81 @@ public class Client {
      * @throws ReplicationException if error occurs while sending request
      */
     public synchronized byte[] execute(byte[] bytes) throws Exception {
+        return execute(bytes, CommandType.Request);
+    }
+
+    /**
+     * As {@link #execute(byte[])}, for a request which does not modify the
+     * state of the service. The leader may answer it without ordering it, if
+     * the service is a <code>ReadOnlyService</code>.
+     * 
+     * @param bytes - argument for service
+     * @return reply from service
+     * @throws ReplicationException if error occurs while sending request
+     */
+    public synchronized byte[] executeRead(byte[] bytes) throws Exception {
+        return execute(bytes, CommandType.Read);
+    }
+
+    private byte[] execute(byte[] bytes, CommandType type) throws Exception {
         Request request = new Request(nextRequestId(), bytes);
-        ClientCommand command = new ClientCommand(CommandType.Request, request);
+        ClientReply clientReply = send(new ClientCommand(type, request), request.getRequestId());
+        Reply reply = new Reply(clientReply.getValue());
+        assert reply.getRequestId().equals(request.getRequestId()) : "Bad reply. Expected: " +
+                                                                     request.getRequestId() +
+                                                                     ", got: " +
+                                                                     reply.getRequestId();
+        return reply.getValue();
+    }
+
+    /**
+     * Sends several requests in a single command, answered by a single reply.
+     * Saves the per-request overhead of many small requests. This method will
+     * block until the replies to all requests are received.
+     * <p>
+     * A batch is not idempotent when it is sent again: if the connection
+     * fails after some of its requests were executed, the replica answers
+     * them with NACKs, as it only keeps the reply to the last request, and
+     * this method throws although these requests took effect.
+     * 
+     * @param values - arguments for service, one per request
+     * @return replies from service, in the same order
+     * @throws ReplicationException if error occurs while sending requests
+     */
+    public synchronized byte[][] executeBatch(byte[][] values) throws Exception {
+        if (values.length == 0) {
+            return new byte[0][];
+        }
+        Request[] requests = new Request[values.length];
+        for (int i = 0; i < values.length; i++) {
+            requests[i] = new Request(nextRequestId(), values[i]);
+        }
+        ClientReply[] replies = send(new ClientCommand(requests),
+                requests[0].getRequestId()).getReplies();
+
+        byte[][] results = new byte[values.length][];
+        for (int i = 0; i < replies.length; i++) {
+            if (replies[i].getResult() != Result.OK) {
+                throw new Exception("Nack received: " +
+                                    new String(new Reply(replies[i].getValue()).getValue()));
+            }
+            Reply reply = new Reply(replies[i].getValue());
+            assert reply.getRequestId().equals(requests[i].getRequestId()) : "Bad reply. Expected: " +
+                                                                             requests[i].getRequestId() +
+                                                                             ", got: " +
+                                                                             reply.getRequestId();
+            results[i] = reply.getValue();
+        }
+        return results;
+    }
+
+    /**
+     * Sends the command until a replica answers it, moving to other replicas
+     * on timeouts and redirects.
+     * 
+     * @return the reply, of type <code>OK</code> or <code>BATCH</code>
+     */
+    private ClientReply send(ClientCommand command, RequestId requestId) throws Exception {
         ByteBuffer bb = ByteBuffer.allocate(command.byteSize());
         command.writeTo(bb);
         bb.flip();
@@ -198,12 +272,8 @@ public class Client {
 
                 switch (clientReply.getResult()) {
                     case OK:
-                        Reply reply = new Reply(clientReply.getValue());
-                        logger.debug("Reply OK");
-                        assert reply.getRequestId().equals(request.getRequestId()) : "Bad reply. Expected: " +
-                                                                                     request.getRequestId() +
-                                                                                     ", got: " +
-                                                                                     reply.getRequestId();
+                    case BATCH:
+                        logger.debug("Reply {}", clientReply.getResult());
 
                         long time = System.currentTimeMillis() - start;
                         average.add(time);
@@ -211,7 +281,7 @@ public class Client {
                         // time
 
                         updateTimeout();
-                        return reply.getValue();
+                        return clientReply;
 
                     case REDIRECT:
                         int currentPrimary = ByteBuffer.wrap(clientReply.getValue()).getInt();
@@ -228,21 +298,21 @@ public class Client {
                         break;
 
                     case NACK:
-                        throw new Exception("Nack received: " +
-                                                     new String(clientReply.getValue()));
+                        Reply nack = new Reply(clientReply.getValue());
+                        throw new Exception("Nack received: " + new String(nack.getValue()));
 
                     default:
                         throw new RuntimeException("Unknown reply type");
                 }
 
             } catch (SocketTimeoutException e) {
-                logger.warn("Error waiting for answer: {}, Request: {}", e, request.getRequestId());
+                logger.warn("Error waiting for answer: {}, Request: {}", e, requestId);
                 cleanClose();
                 increaseTimeout();
                 connect();
             } catch (IOException e) {
                 logger.warn("Error reading socket: " + e.toString() + ". Request: " +
-                            request.getRequestId() + ". Timeout: " + timeout);
+                            requestId + ". Timeout: " + timeout);
                 waitForReconnect(CONNECTION_FAILURE_TIMEOUT);
                 connect();
             }
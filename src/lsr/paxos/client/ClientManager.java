@@ -8,6 +8,7 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
+import lsr.common.IdGenerator;
 import lsr.common.ProcessDescriptor;
 
 import org.slf4j.Logger;
@@ -27,6 +28,7 @@ public class ClientManager {
     private final SelectorThread[] selectorThreads;
     private int nextThread = 0;
     private final ClientRequestManager requestManager;
+    private final IdGenerator idGenerator;
     private ServerSocketChannel serverSocketChannel = null;
 
     /**
@@ -38,12 +40,13 @@ public class ClientManager {
      * @param idGenerator - generator used to allocate id's for clients
      * @throws IOException if creating selector failed
      */
-    public ClientManager(ClientRequestManager requestManager)
+    public ClientManager(ClientRequestManager requestManager, IdGenerator idGenerator)
             throws IOException {
         this.requestManager = requestManager;
+        this.idGenerator = idGenerator;
         requestManager.setClientManager(this);
 
-        int nSelectors = processDescriptor.selectorThreadCount;
+        int nSelectors = processDescriptor().selectorThreadCount;
         if (nSelectors == -1) {
             nSelectors = ClientManager.computeNSelectors();
         } else {
@@ -74,7 +77,7 @@ public class ClientManager {
     public void start() throws IOException {
         assert serverSocketChannel == null : "Start called more than once";
         serverSocketChannel = ServerSocketChannel.open();
-        int localPort = processDescriptor.getLocalProcess().getClientPort();
+        int localPort = processDescriptor().getLocalProcess().getClientPort();
         serverSocketChannel.socket().bind(new InetSocketAddress(localPort));
 
         SelectorThread selectorThread = getNextThread();
@@ -109,7 +112,7 @@ public class ClientManager {
         try {
             SelectorThread selectorThread = getNextThread();
             ReaderAndWriter raw = new ReaderAndWriter(socketChannel, selectorThread);
-            new NioClientProxy(raw, requestManager);
+            new NioClientProxy(raw, requestManager, idGenerator);
             if (logger.isDebugEnabled()) {
                 logger.debug("Connection from {}", socketChannel.socket().getInetAddress());
             }
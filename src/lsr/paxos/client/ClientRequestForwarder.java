@@ -36,7 +36,7 @@ public class ClientRequestForwarder {
 
         int leaderId = paxos.getLeaderId();
         logger.info("Forwarding requests {} to leader {}", fReqMsg, leaderId);
-        if (processDescriptor.localId == leaderId) {
+        if (processDescriptor().localId == leaderId) {
             if (clientRequestManager != null)
                 clientRequestManager.dispatchOnClientRequest(requests, null);
         } 
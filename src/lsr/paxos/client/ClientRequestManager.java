@@ -2,17 +2,24 @@ package lsr.paxos.client;
 
 import static lsr.common.ProcessDescriptor.processDescriptor;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 
 import lsr.common.ClientCommand;
+import lsr.common.ClientCommand.CommandType;
 import lsr.common.ClientReply;
 import lsr.common.ClientReply.Result;
+import lsr.common.Histogram;
+import lsr.common.Metrics;
 import lsr.common.Request;
 import lsr.common.Reply;
+import lsr.common.ReplyCache;
 import lsr.common.RequestId;
 import lsr.common.SingleThreadDispatcher;
+import lsr.common.Tracer;
 import lsr.paxos.DecideCallback;
 import lsr.paxos.core.Paxos;
 import lsr.paxos.replica.Replica;
@@ -55,6 +62,14 @@ final public class ClientRequestManager {
             new ConcurrentHashMap<RequestId, ClientProxy>((int) (MAX_PENDING_REQUESTS * 1.5),
                     (float) 0.75, 8);
 
+    /** Receive time of the requests in pendingClientProxies, in nanoseconds */
+    private final Map<RequestId, Long> receiveTimes =
+            new ConcurrentHashMap<RequestId, Long>((int) (MAX_PENDING_REQUESTS * 1.5),
+                    (float) 0.75, 8);
+
+    private final Histogram receiveTime = Metrics.histogram("client.receive");
+    private final Histogram replyTime = Metrics.histogram("reply");
+
     private final static ClientProxy NULL_CLIENT_PROXY = new ClientProxy() {
         public void send(ClientReply clientReply) {
         }
@@ -64,20 +79,29 @@ final public class ClientRequestManager {
      * Keeps the last reply for each client. Necessary for retransmissions. Must
      * be threadsafe
      */
-    private final Map<Long, Reply> lastReplies;
+    private final ReplyCache lastReplies;
 
     private final SingleThreadDispatcher replicaDispatcher;
+    private final Replica replica;
     private final Paxos paxos;
     private ClientManager clientManager = null;
     private ClientRequestForwarder requestForwarder;
+    /** Null unless followers answer reads */
+    private final FollowerReads followerReads;
 
     public ClientRequestManager(Replica replica, DecideCallback decideCallback,
-                                Map<Long, Reply> lastReplies,
+                                ReplyCache lastReplies,
                                 ClientRequestForwarder requestForwarder, Paxos paxos) {
         replicaDispatcher = replica.getReplicaDispatcher();
+        this.replica = replica;
         this.lastReplies = lastReplies;
         this.paxos = paxos;
         this.requestForwarder = requestForwarder;
+        if (processDescriptor().followerReads && replica.isLocalReadEnabled()) {
+            followerReads = new FollowerReads(this, replica, paxos);
+        } else {
+            followerReads = null;
+        }
     }
 
     public void setClientManager(ClientManager clientManager) {
@@ -133,21 +157,76 @@ final public class ClientRequestManager {
 
         assert isInSelectorThread() : "Called by wrong thread: " + Thread.currentThread();
 
+        long start = System.nanoTime();
         switch (command.getCommandType()) {
             case Request:
                 Request request = command.getRequest();
                 onClientRequest(request, client);
                 break;
 
+            case Read:
+                onClientRead(command.getRequest(), client);
+                break;
+
+            case Batch:
+                onClientBatch(command.getRequests(), client);
+                break;
+
             default:
                 logger.error("Received invalid command {} from {}", command, client);
-                client.send(new ClientReply(Result.NACK, "Unknown command.".getBytes()));
+                client.send(new ClientReply(Result.NACK, new Reply(RequestId.NOP,
+                        "Unknown command.".getBytes()).toByteArray()));
                 break;
         }
+        receiveTime.recordSince(start);
     }
 
     private void onClientRequest(Request request, ClientProxy client)
             throws InterruptedException {
+        if (acceptRequest(request, client)) {
+            // leader, on indirect, gets batch id's to propose later on
+            if (paxos.isLeader()) {
+                paxos.enqueueRequest(request);
+            } 
+            else {
+            	forwardRequest(request);
+            }
+        }
+    }
+
+    /**
+     * Orders the requests of a batched command together, and sends the replies
+     * once all are known.
+     */
+    private void onClientBatch(Request[] requests, ClientProxy client)
+            throws InterruptedException {
+        BatchClientProxy batchProxy = new BatchClientProxy(client, requests.length);
+        List<Request> newRequests = new ArrayList<Request>(requests.length);
+        for (int i = 0; i < requests.length; i++) {
+            if (acceptRequest(requests[i], batchProxy.getProxy(i))) {
+                newRequests.add(requests[i]);
+            }
+        }
+        if (newRequests.isEmpty()) {
+            return;
+        }
+        if (paxos.isLeader()) {
+            for (Request request : newRequests) {
+                paxos.enqueueRequest(request);
+            }
+        } else {
+            requestForwarder.forward(newRequests.toArray(new Request[newRequests.size()]));
+        }
+    }
+
+    /**
+     * Registers the client waiting for the reply to a new request, or sends
+     * the cached reply to an old one.
+     * 
+     * @return true if the request is new and must be ordered
+     */
+    private boolean acceptRequest(Request request, ClientProxy client)
+            throws InterruptedException {
         RequestId reqId = request.getRequestId();
 
         /*
@@ -162,8 +241,11 @@ final public class ClientRequestManager {
                              reqId.getSeqNumber() > lastReply.getRequestId().getSeqNumber();
                             
         if (newRequest) {
-            logger.info(processDescriptor.logMark_OldBenchmark, "Received client request: {}",
+            logger.info(processDescriptor().logMark_OldBenchmark, "Received client request: {}",
                     request);
+            if (Tracer.isSampled(reqId)) {
+                Tracer.request(Tracer.RECEIVE, reqId);
+            }
 
             /*
              * Flow control. Wait for a permit. May block the selector thread.
@@ -179,22 +261,17 @@ final public class ClientRequestManager {
              */
             if (client != null)
             {
+                receiveTimes.put(reqId, System.nanoTime());
                 pendingClientProxies.put(reqId, client);
             }
             else if (USE_FLOW_CONTROL)
                 pendingClientProxies.put(reqId, NULL_CLIENT_PROXY);
 
-            // leader, on indirect, gets batch id's to propose later on
-            if (paxos.isLeader()) {
-                paxos.enqueueRequest(request);
-            } 
-            else {
-            	forwardRequest(request);
-            }
+            return true;
         } 
         else {
             if (client == null)
-                return;
+                return false;
             /*
              * Since the replica only keeps the reply to the last request
              * executed from each client, it checks if the cached reply is for
@@ -208,11 +285,52 @@ final public class ClientRequestManager {
                 String errorMsg = "Request too old: " + request.getRequestId() +
                                   ", Last reply: " + lastReply.getRequestId();
                 logger.error(errorMsg);
-                client.send(new ClientReply(Result.NACK, errorMsg.getBytes()));
+                client.send(new ClientReply(Result.NACK,
+                        new Reply(reqId, errorMsg.getBytes()).toByteArray()));
             }
+            return false;
         }
     }
     
+    /**
+     * Answers a read-only request from the executed state if this replica is
+     * the leader holding the lease, or a follower answering reads with the
+     * read index of the leader. Otherwise the request is ordered as any other.
+     */
+    private void onClientRead(final Request request, final ClientProxy client)
+            throws InterruptedException {
+        if (!replica.isLocalReadEnabled()) {
+            onClientRequest(request, client);
+            return;
+        }
+
+        if (!paxos.isLeader()) {
+            if (followerReads == null) {
+                onClientRequest(request, client);
+            } else {
+                paxos.getDispatcher().dispatch(new Runnable() {
+                    public void run() {
+                        followerReads.onRead(request, client);
+                    }
+                });
+            }
+            return;
+        }
+
+        paxos.getDispatcher().dispatch(new Runnable() {
+            public void run() {
+                int readIndex = paxos.getReadIndex();
+                if (readIndex < 0) {
+                    // No lease; back to the selector thread to order it
+                    dispatchOnClientRequest(new ClientCommand(CommandType.Request, request),
+                            client);
+                } else {
+                    replica.executeRead(request, readIndex, client);
+                }
+            }
+        });
+    }
+
     private void forwardRequest(Request request) {
     	Request[] requests = new Request[1];
     	requests[0] = request;
@@ -232,6 +350,7 @@ final public class ClientRequestManager {
 
         logger.info("Execute the Request {}", request.getRequestId());
         final ClientProxy client = pendingClientProxies.remove(reply.getRequestId());
+        final Long received = receiveTimes.remove(reply.getRequestId());
         if (client == null) {
             // Only the replica that received the request has the ClientProxy.
             // The other replicas discard the reply.
@@ -254,12 +373,18 @@ final public class ClientRequestManager {
                 pendingRequestsSem.release();
 
             ClientReply clientReply = new ClientReply(Result.OK, reply.toByteArray());
-            if (logger.isDebugEnabled(processDescriptor.logMark_OldBenchmark)) {
-                logger.debug(processDescriptor.logMark_OldBenchmark,
+            if (logger.isDebugEnabled(processDescriptor().logMark_OldBenchmark)) {
+                logger.debug(processDescriptor().logMark_OldBenchmark,
                         "Scheduling sending reply: {} {}", request.getRequestId(), clientReply);
             }
 
             client.send(clientReply);
+            if (Tracer.isSampled(reply.getRequestId())) {
+                Tracer.request(Tracer.REPLY, reply.getRequestId());
+            }
+            if (received != null) {
+                replyTime.recordSince(received);
+            }
         }
     }
 
@@ -0,0 +1,132 @@
+package lsr.paxos.client;
+
+import static lsr.common.ProcessDescriptor.processDescriptor;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import lsr.common.ClientCommand;
+import lsr.common.ClientCommand.CommandType;
+import lsr.common.Dispatcher;
+import lsr.common.Dispatcher.Priority;
+import lsr.common.Pair;
+import lsr.common.PriorityTask;
+import lsr.common.Request;
+import lsr.paxos.core.Paxos;
+import lsr.paxos.messages.Message;
+import lsr.paxos.messages.MessageType;
+import lsr.paxos.messages.ReadIndexQuery;
+import lsr.paxos.messages.ReadIndexReply;
+import lsr.paxos.network.MessageHandler;
+import lsr.paxos.network.Network;
+import lsr.paxos.replica.Replica;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers the read-only requests received by a follower from its own state,
+ * with the read-index protocol.
+ * <p>
+ * The follower asks the leader for its read index with a single
+ * <code>ReadIndexQuery</code> for all reads received since the previous query
+ * was sent; at most one query is waiting for the reply. Once the reply comes,
+ * the reads are answered by the replica after executing all instances below
+ * the read index. If the leader has no lease, or does not answer within the
+ * retransmit timeout, the reads are ordered as any other request.
+ * <p>
+ * Used only by the Paxos dispatcher thread.
+ */
+final class FollowerReads {
+    private final ClientRequestManager requestManager;
+    private final Replica replica;
+    private final Paxos paxos;
+    private final Dispatcher dispatcher;
+
+    /* Reads received since the last query was sent */
+    private List<Pair<Request, ClientProxy>> waiting =
+            new ArrayList<Pair<Request, ClientProxy>>();
+    /* Reads waiting for the reply to the last query */
+    private List<Pair<Request, ClientProxy>> querying =
+            new ArrayList<Pair<Request, ClientProxy>>();
+    private int queryId = 0;
+    private PriorityTask timeoutTask = null;
+
+    FollowerReads(ClientRequestManager requestManager, Replica replica, Paxos paxos) {
+        this.requestManager = requestManager;
+        this.replica = replica;
+        this.paxos = paxos;
+        this.dispatcher = paxos.getDispatcher();
+        Network.addMessageListener(MessageType.ReadIndexReply, new MessageHandler() {
+            public void onMessageReceived(final Message msg, int sender) {
+                dispatcher.dispatch(new Runnable() {
+                    public void run() {
+                        onReply((ReadIndexReply) msg);
+                    }
+                });
+            }
+
+            public void onMessageSent(Message message, BitSet destinations) {
+            }
+        });
+    }
+
+    /**
+     * Answers the read once the read index is known.
+     *
+     * @param request - the read-only request
+     * @param client - the client waiting for the reply
+     */
+    void onRead(Request request, ClientProxy client) {
+        assert dispatcher.amIInDispatcher();
+        waiting.add(new Pair<Request, ClientProxy>(request, client));
+        if (querying.isEmpty()) {
+            sendQuery();
+        }
+    }
+
+    private void sendQuery() {
+        List<Pair<Request, ClientProxy>> reads = querying;
+        querying = waiting;
+        waiting = reads;
+
+        final int id = ++queryId;
+        paxos.getNetwork().sendMessage(new ReadIndexQuery(paxos.getStorage().getView(), id),
+                paxos.getLeaderId());
+        timeoutTask = dispatcher.schedule(new Runnable() {
+            public void run() {
+                if (id == queryId && !querying.isEmpty()) {
+                    logger.warn("No read index from the leader, ordering {} reads",
+                            querying.size());
+                    finishQuery(-1);
+                }
+            }
+        }, Priority.Normal, processDescriptor().retransmitTimeout);
+    }
+
+    private void onReply(ReadIndexReply reply) {
+        if (reply.getQueryId() != queryId || querying.isEmpty()) {
+            return;
+        }
+        timeoutTask.cancel(false);
+        finishQuery(reply.getReadIndex());
+    }
+
+    private void finishQuery(int readIndex) {
+        for (Pair<Request, ClientProxy> read : querying) {
+            if (readIndex < 0) {
+                requestManager.dispatchOnClientRequest(
+                        new ClientCommand(CommandType.Request, read.getKey()), read.getValue());
+            } else {
+                replica.executeRead(read.getKey(), readIndex, read.getValue());
+            }
+        }
+        querying.clear();
+        if (!waiting.isEmpty()) {
+            sendQuery();
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(FollowerReads.class);
+}
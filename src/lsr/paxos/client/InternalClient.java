@@ -9,6 +9,7 @@ import lsr.common.ClientCommand;
 import lsr.common.ClientCommand.CommandType;
 import lsr.common.ClientReply;
 import lsr.common.ClientReply.Result;
+import lsr.common.IdGenerator;
 import lsr.common.Request;
 import lsr.common.MovingAverage;
 import lsr.common.RequestId;
@@ -26,13 +27,15 @@ public class InternalClient {
 
     private final SingleThreadDispatcher internalClientDispatcher;
     private final ClientRequestManager clientRequestManager;
+    private final IdGenerator idGenerator;
 
     private final Deque<RequestId> freeIds = new ArrayDeque<RequestId>();
 
     public InternalClient(SingleThreadDispatcher replicaDispatcher,
-                          ClientRequestManager clientRequestManager) {
+                          ClientRequestManager clientRequestManager, IdGenerator idGenerator) {
         internalClientDispatcher = new SingleThreadDispatcher("InternalClientDispatcher");
         this.clientRequestManager = clientRequestManager;
+        this.idGenerator = idGenerator;
     }
 
     /**
@@ -51,7 +54,7 @@ public class InternalClient {
         internalClientDispatcher.checkInDispatcher();
         RequestId reqId = freeIds.poll();
         if (reqId == null)
-            reqId = new RequestId(NioClientProxy.idGenerator.next(), 0);
+            reqId = new RequestId(idGenerator.next(), 0);
 
         Request cr = new Request(reqId, request);
         ClientCommand cc = new ClientCommand(CommandType.Request, cr);
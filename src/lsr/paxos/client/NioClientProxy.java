@@ -8,9 +8,7 @@ import java.nio.ByteBuffer;
 import lsr.common.ClientCommand;
 import lsr.common.ClientReply;
 import lsr.common.IdGenerator;
-import lsr.common.SimpleIdGenerator;
 import lsr.paxos.client.ClientProxy;
-import lsr.paxos.storage.Storage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,11 +27,10 @@ public class NioClientProxy implements ClientProxy {
 	
     private final ClientRequestManager requestManager;
     private long clientId;
-    private final ByteBuffer readBuffer = ByteBuffer.allocate(processDescriptor.clientRequestBufferSize);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(processDescriptor().clientRequestBufferSize);
     private final ReaderAndWriter readerAndWriter;
-
     /** Generator for client IDs */
-    public static IdGenerator idGenerator;
+    private final IdGenerator idGenerator;
 
     /**
      * Creates new client proxy.
@@ -42,9 +39,11 @@ public class NioClientProxy implements ClientProxy {
      * @param requestManager - callback for executing command from clients
      * @param idGenerator - generator used to generate id's for clients
      */
-    public NioClientProxy(ReaderAndWriter readerAndWriter, ClientRequestManager requestManager) {
+    public NioClientProxy(ReaderAndWriter readerAndWriter, ClientRequestManager requestManager,
+                          IdGenerator idGenerator) {
         this.readerAndWriter = readerAndWriter;
         this.requestManager = requestManager;
+        this.idGenerator = idGenerator;
 
         if (logger.isInfoEnabled())
             logger.info("New client connection: {}", readerAndWriter.socketChannel.socket());
@@ -213,9 +212,5 @@ public class NioClientProxy implements ClientProxy {
         readerAndWriter.close();
     }
 
-    public static void createIdGenerator(Storage storage) {
-    	idGenerator = new SimpleIdGenerator();
-    }
-
     private final static Logger logger = LoggerFactory.getLogger(NioClientProxy.class);
 }
@@ -11,8 +11,10 @@ import lsr.paxos.storage._
 import lsr.paxos.network._
 import lsr.paxos.messages._
 import lsr.paxos.storage.ConsensusInstance
+import lsr.common.Metrics
 import lsr.common.ProcessDescriptor
 import lsr.common.Request
+import lsr.common.Tracer
 import lsr.paxos.storage.Storage
 
 import org.slf4j.Logger;
@@ -20,24 +22,20 @@ import org.slf4j.LoggerFactory;
 
 class Acceptor ( paxos : Paxos, storage: Storage, network : Network)
 {
-  var startRead : Long = 0
-  var endRead : Long = 0
+  private val receive2a = Metrics.histogram("2a")
   
-  @volatile var instanceCnt : Long = 0
-  @volatile var timesum : Long = 0;
-  @volatile var lastInstance : Long = 0;
   @volatile var descriptor = ProcessDescriptor.getInstance();
   
   def onReceive1a(message : Send1a, sender : Integer) : Unit =
   {
       try
       {
-        val s : state_ext[Array[Byte], Unit] = storage.getCurrState();
+        val firstUncommitted = message.getFirstUncommitted;
+        
+        val s : state_ext[Array[Byte], Unit] = storage.getCurrState(firstUncommitted);
   
         val log : Log = storage.getLog()
         
-        val firstUncommitted = message.getFirstUncommitted;
-        
         if (firstUncommitted < log.getLowestAvailableId()) {
             
             logger.info("Started proposer from acceptor: firstUncommitted < log.getLowestAvailableId()")
@@ -70,7 +68,10 @@ class Acceptor ( paxos : Paxos, storage: Storage, network : Network)
               val msg1b:Send1b = new Send1b(Phase1b(last_vote, b), storage.getEpoch())
                          
              //logger.info("Sending " + m);
-              network.sendMessage(msg1b, sender);
+              // the promise may be sent only once it is on stable storage
+              storage.whenDurable(new Runnable {
+                  def run() : Unit = network.sendMessage(msg1b, sender)
+              })
               logger.info("Replica  " + repId + " sending 1b msg to " + sender + ", Msg = " + msg1b.toString)
              }
              case _ => {
@@ -95,12 +96,57 @@ class Acceptor ( paxos : Paxos, storage: Storage, network : Network)
   */
 
    def onPropose(message : Propose, sender : Integer) : Unit =
+  {
+       val accept = acceptPropose(message, sender)
+       if (accept != null) {
+           // the accepted value must be on stable storage before voting for it
+           storage.whenDurable(new Runnable {
+               def run() : Unit = network.sendToOthers(accept)
+           })
+       }
+       afterPropose(message.getInstanceId())
+  }
+  
+  /**
+   * Accepts all proposals of the frame and answers them with a single
+   * <code>AcceptBatch</code>.
+   * 
+   * @param message - received frame of propose messages
+   * @param sender - the id of replica that send the message
+   */
+  def onProposeBatch(message : ProposeBatch, sender : Integer) : Unit =
+  {
+       val proposes = message.getProposes()
+       val accepts = new java.util.ArrayList[Accept](proposes.size())
+       for (i <- 0 until proposes.size()) {
+           val accept = acceptPropose(proposes.get(i), sender)
+           if (accept != null) {
+               accepts.add(accept)
+           }
+       }
+       if (!accepts.isEmpty()) {
+           val sendMsg = new AcceptBatch(message.getView(), accepts)
+           storage.whenDurable(new Runnable {
+               def run() : Unit = network.sendToOthers(sendMsg)
+           })
+       }
+       for (i <- 0 until proposes.size()) {
+           afterPropose(proposes.get(i).getInstanceId())
+       }
+  }
+  
+  /**
+   * Runs the proposal through the protocol and stores the accepted value.
+   * 
+   * @return the <code>Accept</code> to send, or null if none should be sent
+   */
+  private def acceptPropose(message : Propose, sender : Integer) : Accept =
   {
        assert(message.getView() == storage.getView(), "Msg.view: " + message.getView() +
                                                         ", view: " + storage.getView());
 
        /* Get the current state */ 
-        val s : state_ext[Array[Byte],Unit] = storage.getCurrState
+        val s : state_ext[Array[Byte],Unit] = storage.getCurrState(message.getInstanceId())
         
         val ballot = message.getBallot()
         val inst = message.getInstanceId()
@@ -108,7 +154,7 @@ class Acceptor ( paxos : Paxos, storage: Storage, network : Network)
         // leader will not send the accept message;
         if (!paxos.isLeader()) 
         {
-            startRead = System.nanoTime
+            val start = System.nanoTime
               
               /* Recreate the Scala state message */
             val scmsg = new Phase2a[Array[Byte]](inst, ballot, Comd(message.getValue))
@@ -125,9 +171,12 @@ class Acceptor ( paxos : Paxos, storage: Storage, network : Network)
             {
                 /* This should not happen */
                 logger.info("On Receive 2a returned an empty set");
-                return;
+                return null;
+            }
+            receive2a.recordSince(start)
+            if (Tracer.isSampled(message.getValue)) {
+                Tracer.instance(Tracer.ACCEPT_2A, inst, sender)
             }
-            endRead = System.nanoTime
             
             /* Update the current state */
             storage.updateState(state) 
@@ -139,43 +188,24 @@ class Acceptor ( paxos : Paxos, storage: Storage, network : Network)
                 // the instance is so new that we must be out of date.
                 paxos.getCatchup().forceCatchup();
             }
-            /* Create the Accept (Phase 2b) message */
-            val sendMsg : Accept = new Accept(message.getView, message.getInstanceId, message.getBallot, message.getValue)
             
-            network.sendToOthers(sendMsg);
-        }
-
-        // Check if we can decide (n<=3 or if some accepts overtook propose)
-        if (storage.getLog.getInstance(inst).isMajority(descriptor.numReplicas)) {
-            paxos.decide(inst);
+            /* Create the Accept (Phase 2b) message */
+            return new Accept(message.getView, message.getInstanceId, message.getBallot, message.getValue)
         }
-      
-    
-        timesum += (endRead - startRead)/1000
-        instanceCnt = instanceCnt + 1
-  }
-
-  def getReceive2a_Avge : Long = 
-  {
-    if(instanceCnt == lastInstance)
-    {
-       -1
-    }
-    else
-    {
-      
-      val currInstance = instanceCnt - lastInstance
-      val ret = timesum/currInstance
-      lastInstance = instanceCnt
-      timesum = 0
-      ret
-    }
+        return null
   }
   
-  def getReceive2a_Count : Long = 
+  private def afterPropose(inst : Int) : Unit =
   {
-    instanceCnt - lastInstance
+        // Check if we can decide (n<=3 or if some accepts overtook propose),
+        // once our own vote is on stable storage
+        if (storage.getLog.getInstance(inst).isMajority(descriptor.numReplicas)) {
+            paxos.decideWhenDurable(inst);
+        }
+        
+        // Accepts that overtook this propose can be processed now
+        paxos.getLearner().onValueKnown(inst)
   }
-  
+
   private final var logger : Logger = LoggerFactory.getLogger(classOf[Acceptor]);
 } 
\ No newline at end of file
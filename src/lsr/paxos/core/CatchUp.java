@@ -5,6 +5,7 @@ import static lsr.common.ProcessDescriptor.processDescriptor;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.SortedMap;
 
@@ -22,6 +23,8 @@ import lsr.paxos.messages.CatchUpResponse;
 import lsr.paxos.messages.CatchUpSnapshot;
 import lsr.paxos.messages.Message;
 import lsr.paxos.messages.MessageType;
+import lsr.paxos.messages.SnapshotChunk;
+import lsr.paxos.messages.SnapshotChunkAck;
 import lsr.paxos.network.MessageHandler;
 import lsr.paxos.network.Network;
 import lsr.paxos.storage.ConsensusInstance;
@@ -40,15 +43,18 @@ public class CatchUp {
 
     private Dispatcher paxosDispatcher;
 
+    /** Sends and receives snapshots in chunks; null if not enabled */
+    private final SnapshotTransfer snapshotTransfer;
+
     /** moving average factor used for changing timeout */
     private static final double convergenceFactor = 0.2;
-    /** Initial, conservative value. Updated as a moving average. */
-    private static final long INITIAL_RETRANSMIT_TIMEOUT = processDescriptor.retransmitTimeout;
     /** Can send queries no faster than... */
     private static final long MIN_CATCHUP_QUERY_RESEND_TIMEOUT_MS = 250;
-    /** On no response, how often should catch up query be sent. */
-    private MovingAverage resendTimeout = new MovingAverage(convergenceFactor,
-            INITIAL_RETRANSMIT_TIMEOUT);
+    /**
+     * On no response, how often should catch up query be sent. Starts from
+     * the conservative retransmit timeout, then updated as a moving average.
+     */
+    private MovingAverage resendTimeout;
 
     private final Object switchingCatchUpTaskLock = new Object();
     private PriorityTask catchUpTask = null;
@@ -82,6 +88,20 @@ public class CatchUp {
     /** holds replica rating for choosing best replica for catch-up */
     private int[] replicaRating;
 
+    /*
+     * Multi-source catch-up: instead of asking the best replica for all
+     * undecided instances, each replica gets at most catchUpSourceWindow of
+     * them, and is given the next ones as soon as it answered. A replica which
+     * did not answer until the next periodic round loses its instances to the
+     * others; the ones answering with nothing are not asked until that round.
+     * Used only in the dispatcher thread.
+     */
+    /** Instances requested from each replica and not answered yet, or null */
+    private final List<List<Range>> requestedRanges;
+    private final long[] requestedTime;
+    /** Replicas which had none of the requested instances in this round */
+    private final boolean[] exhausted;
+
     public CatchUp(SnapshotProvider snapshotProvider, Paxos paxos, Storage storage, Network network) {
         this.snapshotProvider = snapshotProvider;
         this.network = network;
@@ -90,10 +110,21 @@ public class CatchUp {
         Network.addMessageListener(MessageType.CatchUpQuery, handler);
         Network.addMessageListener(MessageType.CatchUpResponse, handler);
         Network.addMessageListener(MessageType.CatchUpSnapshot, handler);
+        Network.addMessageListener(MessageType.SnapshotChunk, handler);
+        Network.addMessageListener(MessageType.SnapshotChunkAck, handler);
 
         this.paxos = paxos;
         this.storage = storage;
-        replicaRating = new int[processDescriptor.numReplicas];
+        resendTimeout = new MovingAverage(convergenceFactor,
+                processDescriptor().retransmitTimeout);
+        maxResponseSize = processDescriptor().maxUdpPacketSize;
+        replicaRating = new int[processDescriptor().numReplicas];
+        requestedRanges = new ArrayList<List<Range>>(
+                Collections.<List<Range>> nCopies(processDescriptor().numReplicas, null));
+        requestedTime = new long[processDescriptor().numReplicas];
+        exhausted = new boolean[processDescriptor().numReplicas];
+        snapshotTransfer = processDescriptor().chunkedSnapshotTransfer ? new SnapshotTransfer(
+                storage, network) : null;
     }
 
     /**
@@ -173,8 +204,12 @@ public class CatchUp {
             return;
         }
 
+        if (processDescriptor().multiSourceCatchUp && sendMultiSourceQueries(true)) {
+            return;
+        }
+
         int target = getBestContactReplica();
-        assert target != processDescriptor.localId : "Selected self for catch-up";
+        assert target != processDescriptor().localId : "Selected self for catch-up";
 
         CatchUpQuery query = new CatchUpQuery(storage.getView(), new int[0], new Range[0]);
         int requestedInstanceCount = fillUnknownList(query);
@@ -187,7 +222,189 @@ public class CatchUp {
 
         replicaRating[target] -= requestedInstanceCount;
 
-        logger.debug(processDescriptor.logMark_Benchmark, "Sent {} to [p{}]", query, target);
+        logger.debug(processDescriptor().logMark_Benchmark, "Sent {} to [p{}]", query, target);
+    }
+
+    /**
+     * Splits the undecided instances not requested yet among the replicas not
+     * busy with a previous query.
+     * 
+     * @param periodic - true if called on the catch-up timer, which also
+     *            starts a new round
+     * @return false if no instance is undecided, so the query for the
+     *         following instances should be sent the usual way
+     */
+    private boolean sendMultiSourceQueries(boolean periodic) {
+        long now = System.currentTimeMillis();
+        if (periodic) {
+            for (int i = 0; i < requestedRanges.size(); i++) {
+                if (requestedRanges.get(i) != null &&
+                    now - requestedTime[i] > resendTimeout.get()) {
+                    logger.info("Catch-up from [p{}] timed out", i);
+                    requestedRanges.set(i, null);
+                }
+                exhausted[i] = false;
+            }
+        }
+
+        SortedMap<Integer, ConsensusInstance> log = storage.getLog().getInstanceRange(
+                storage.getFirstUncommitted(), storage.getLog().getNextId());
+        List<Range> missing = missingRanges(log);
+        if (missing.isEmpty()) {
+            return !periodic || isRequested(-1);
+        }
+
+        List<Integer> sources = new ArrayList<Integer>();
+        for (int i = 0; i < requestedRanges.size(); i++) {
+            if (i == processDescriptor().localId || requestedRanges.get(i) != null ||
+                exhausted[i]) {
+                continue;
+            }
+            if (replicaRating[i] < 0 && i != paxos.getLeaderId()) {
+                // skip a slow replica for this round only
+                if (periodic) {
+                    replicaRating[i] = 0;
+                }
+                continue;
+            }
+            sources.add(i);
+        }
+        if (sources.isEmpty()) {
+            return true;
+        }
+        // best rated first
+        Collections.sort(sources, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return replicaRating[b] - replicaRating[a];
+            }
+        });
+
+        long count = 0;
+        for (Range range : missing) {
+            count += range.getValue() - range.getKey() + 1;
+        }
+        int share = (int) Math.min(processDescriptor().catchUpSourceWindow,
+                (count + sources.size() - 1) / sources.size());
+
+        for (int source : sources) {
+            if (missing.isEmpty()) {
+                break;
+            }
+            List<Range> ranges = takeInstances(missing, share);
+
+            List<Integer> ids = new ArrayList<Integer>();
+            List<Range> idRanges = new ArrayList<Range>();
+            int requested = 0;
+            for (Range range : ranges) {
+                if (range.getKey().equals(range.getValue())) {
+                    ids.add(range.getKey());
+                } else {
+                    idRanges.add(range);
+                }
+                requested += range.getValue() - range.getKey() + 1;
+            }
+            // as in fillUnknownList, also ask for the next instance
+            ids.add(log.lastKey() + 1);
+
+            CatchUpQuery query = new CatchUpQuery(storage.getView(), ids, idRanges);
+            network.sendMessage(query, source);
+            requestedRanges.set(source, ranges);
+            requestedTime[source] = now;
+            replicaRating[source] -= requested;
+
+            logger.debug(processDescriptor().logMark_Benchmark, "Sent {} to [p{}]", query, source);
+        }
+        lastQuerySent = now;
+        return true;
+    }
+
+    /** Returns the undecided instances not requested from any replica */
+    private List<Range> missingRanges(SortedMap<Integer, ConsensusInstance> log) {
+        List<Range> missing = new ArrayList<Range>();
+        if (log.isEmpty()) {
+            return missing;
+        }
+        int lastKey = log.lastKey();
+        int begin = -1;
+        int start = Math.max(storage.getFirstUncommitted(), log.firstKey());
+        for (int i = start; i <= lastKey + 1; ++i) {
+            ConsensusInstance instance = i <= lastKey ? log.get(i) : null;
+            boolean needed = instance != null && !instance.isDecidable() && !isRequested(i);
+            if (needed && begin == -1) {
+                begin = i;
+            } else if (!needed && begin != -1) {
+                missing.add(new Range(begin, i - 1));
+                begin = -1;
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Checks if the instance was requested from some replica; for a negative
+     * id, checks if any instance was.
+     */
+    private boolean isRequested(int instanceId) {
+        for (List<Range> ranges : requestedRanges) {
+            if (ranges == null) {
+                continue;
+            }
+            if (instanceId < 0) {
+                return true;
+            }
+            for (Range range : ranges) {
+                if (range.getKey() <= instanceId && instanceId <= range.getValue()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Removes the first count instances from missing */
+    private List<Range> takeInstances(List<Range> missing, int count) {
+        List<Range> taken = new ArrayList<Range>();
+        while (count > 0 && !missing.isEmpty()) {
+            Range first = missing.get(0);
+            int size = first.getValue() - first.getKey() + 1;
+            if (size <= count) {
+                taken.add(missing.remove(0));
+                count -= size;
+            } else {
+                taken.add(new Range(first.getKey(), first.getKey() + count - 1));
+                first.setKey(first.getKey() + count);
+                count = 0;
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * Multi-source catch-up: the replica answered the query or a part of it.
+     */
+    private void onSourceAnswered(CatchUpResponse response, int sender) {
+        paxosDispatcher.checkInDispatcher();
+        if (response.isLastPart()) {
+            requestedRanges.set(sender, null);
+            if (response.getDecided().isEmpty()) {
+                exhausted[sender] = true;
+            }
+        }
+
+        if (assumeSucceded()) {
+            logger.info("Catch-up succeedd");
+            Collections.fill(requestedRanges, null);
+            finished();
+        } else if (response.isLastPart()) {
+            // give the replica the next instances right away; the catch-up
+            // timer is not postponed, so that slow replicas are noticed
+            synchronized (switchingCatchUpTaskLock) {
+                if (catchUpTask == null) {
+                    return;
+                }
+            }
+            sendMultiSourceQueries(false);
+        }
     }
 
     /**
@@ -217,9 +434,9 @@ public class CatchUp {
         }
 
         // BitSet candidates has all processes without his and the leader
-        BitSet candidates = new BitSet(processDescriptor.numReplicas);
-        candidates.set(0, processDescriptor.numReplicas);
-        candidates.clear(processDescriptor.localId);
+        BitSet candidates = new BitSet(processDescriptor().numReplicas);
+        candidates.set(0, processDescriptor().numReplicas);
+        candidates.clear(processDescriptor().localId);
         candidates.clear(paxos.getLeaderId());
 
         // replica with greatest rating is used
@@ -260,20 +477,22 @@ public class CatchUp {
         List<Integer> unknownList = new ArrayList<Integer>();
         List<Range> unknownRange = new ArrayList<Range>();
 
-        SortedMap<Integer, ConsensusInstance> log = storage.getLog().getInstanceMap();
-
-        if (log.isEmpty()) {
+        if (storage.getLog().size() == 0) {
             query.setInstanceIdList(Collections.singletonList(storage.getLog().getNextId()));
             return 0;
         }
 
+        // only the undecided part of the log is needed
+        SortedMap<Integer, ConsensusInstance> log = storage.getLog().getInstanceRange(
+                storage.getFirstUncommitted(), storage.getLog().getNextId());
+
         int begin = -1;
         boolean previous = false;
-        int lastKey = log.lastKey();
+        int lastKey = log.isEmpty() ? storage.getFirstUncommitted() - 1 : log.lastKey();
         int count = 1;
 
         ConsensusInstance instance;
-        for (int i = Math.max(storage.getFirstUncommitted(), log.firstKey()); i <= lastKey; ++i) {
+        for (int i = storage.getFirstUncommitted(); i <= lastKey; ++i) {
             instance = log.get(i);
 
             if (instance == null) {
@@ -324,6 +543,37 @@ public class CatchUp {
         snapshotProvider.handleSnapshot(snapshot);
     }
 
+    /**
+     * Handles a part of a snapshot; once the snapshot is complete, it is
+     * handled as a <code>CatchUpSnapshot</code>.
+     * 
+     * @return true if the snapshot was completed
+     */
+    private boolean handleSnapshotChunk(SnapshotChunk msg, int sender) {
+        if (snapshotTransfer == null) {
+            logger.warn("Chunked snapshot transfer not enabled, dropping {}", msg);
+            return false;
+        }
+
+        Snapshot snapshot = snapshotTransfer.onChunk(msg, sender);
+        if (snapshot == null) {
+            // data is coming, do not ask again meanwhile
+            synchronized (switchingCatchUpTaskLock) {
+                if (catchUpTask != null) {
+                    dispatchCatchUp(false);
+                }
+            }
+            return false;
+        }
+
+        logger.info("Catch-up snapshot from [p{}] : {}", sender, snapshot);
+
+        replicaRating[sender] = Math.max(replicaRating[sender], 5);
+
+        snapshotProvider.handleSnapshot(snapshot);
+        return true;
+    }
+
     /**
      * Procedure handling the catch-up response - if it's empty, it's dropped,
      * otherwise we're adding proper event for the dispatcher
@@ -364,9 +614,7 @@ public class CatchUp {
     private void handleQuery(CatchUpQuery query, int sender) {
         logger.info("Got {} from [p{}]", query, sender);
 
-        SortedMap<Integer, ConsensusInstance> log = storage.getLog().getInstanceMap();
-
-        if (log.isEmpty()) {
+        if (storage.getLog().size() == 0) {
             if (storage.getLastSnapshot() != null) {
                 sendSnapshotResponse(query, sender);
             } else {
@@ -377,14 +625,25 @@ public class CatchUp {
 
         assert query.getInstanceIdArray().length > 0;
 
+        // only the part of the log from the lowest requested ID is needed
+        int lowest = query.getInstanceIdArray()[0];
+        for (Pair<Integer, Integer> range : query.getInstanceIdRangeArray()) {
+            lowest = Math.min(lowest, range.key());
+        }
+        SortedMap<Integer, ConsensusInstance> log = storage.getLog().getInstanceRange(lowest,
+                storage.getLog().getNextId());
+
+        // all requested instances may be newer than the log
+        int lastKey = log.isEmpty() ? lowest - 1 : log.lastKey();
+
         // check if the lowest single ID is available
-        if (query.getInstanceIdArray()[0] < log.firstKey()) {
+        int lowestId = query.getInstanceIdArray()[0];
+        if (lowestId <= lastKey && !log.containsKey(lowestId)) {
             // if no, send snapshot
             sendSnapshotResponse(query, sender);
             return;
         }
 
-        Integer lastKey = log.lastKey();
         ResponseSender responseSender = new ResponseSender(query.getSentTime(), sender);
 
         // Adding instances from the requested ranges
@@ -429,9 +688,13 @@ public class CatchUp {
     private void sendSnapshotResponse(CatchUpQuery query, int sender) {
         Snapshot lastSnapshot = storage.getLastSnapshot();
         assert lastSnapshot != null;
-        Message m = new CatchUpSnapshot(storage.getView(), query.getSentTime(), lastSnapshot);
-        logger.debug("Sending snapshot {} to [p{}]", m, sender);
-        network.sendMessage(m, sender);
+        if (snapshotTransfer != null) {
+            snapshotTransfer.startUpload(lastSnapshot, sender, query.getSentTime());
+        } else {
+            Message m = new CatchUpSnapshot(storage.getView(), query.getSentTime(), lastSnapshot);
+            logger.debug("Sending snapshot {} to [p{}]", m, sender);
+            network.sendMessage(m, sender);
+        }
 
         CatchUpQuery newQuery = trimQuery(query, lastSnapshot.getNextInstanceId());
 
@@ -513,17 +776,29 @@ public class CatchUp {
                     if (msg.getView() > storage.getView())
                         paxosDispatcher.execute(new Runnable() {
                             public void run() {
-                                paxos.advanceView(msg.getView());
+                                // unless promised to the leader meanwhile
+                                if (msg.getView() > storage.getView() &&
+                                    paxos.mayAdvanceView()) {
+                                    paxos.advanceView(msg.getView());
+                                }
                             }
                         });
 
-                    logger.debug(processDescriptor.logMark_Benchmark, "Received {}", msg);
+                    logger.debug(processDescriptor().logMark_Benchmark, "Received {}", msg);
 
                     // Handle the message itself
                     switch (msg.getType()) {
                         case CatchUpResponse:
                             handleResponse((CatchUpResponse) msg, sender);
-                            checkCatchupSucceded(((CatchUpResponse) msg).isLastPart());
+                            if (processDescriptor().multiSourceCatchUp) {
+                                paxosDispatcher.dispatch(new Runnable() {
+                                    public void run() {
+                                        onSourceAnswered((CatchUpResponse) msg, sender);
+                                    }
+                                });
+                            } else {
+                                checkCatchupSucceded(((CatchUpResponse) msg).isLastPart());
+                            }
                             break;
                         case CatchUpQuery:
                             handleQuery((CatchUpQuery) msg, sender);
@@ -532,6 +807,16 @@ public class CatchUp {
                             handleSnapshot((CatchUpSnapshot) msg, sender);
                             checkCatchupSucceded(false);
                             break;
+                        case SnapshotChunk:
+                            if (handleSnapshotChunk((SnapshotChunk) msg, sender)) {
+                                checkCatchupSucceded(false);
+                            }
+                            break;
+                        case SnapshotChunkAck:
+                            if (snapshotTransfer != null) {
+                                snapshotTransfer.onAck((SnapshotChunkAck) msg, sender);
+                            }
+                            break;
                         default:
                             assert false : "Unexpected message type: " + msg.getType();
                     }
@@ -555,7 +840,7 @@ public class CatchUp {
 
     private final static long EMPTY_RESPONSE_SIZE = (new CatchUpResponse(0, 0,
             new ArrayList<ConsensusInstance>())).toByteArray().length;
-    private static final int MAX_RESPONSE_SIZE = processDescriptor.maxUdpPacketSize;
+    private final int maxResponseSize;
 
     /**
      * Collects instances to be sent
@@ -581,7 +866,7 @@ public class CatchUp {
         public void add(ConsensusInstance instance) {
             long instanceSize = instance.byteSize();
 
-            if (currentSize + instanceSize > MAX_RESPONSE_SIZE) {
+            if (currentSize + instanceSize > maxResponseSize) {
                 sendAvailablePart();
                 currentSize = EMPTY_RESPONSE_SIZE;
             }
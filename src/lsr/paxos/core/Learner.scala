@@ -1,6 +1,8 @@
 package lsr.paxos.core
 
+import lsr.common.Metrics
 import lsr.common.ProcessDescriptor
+import lsr.common.Tracer
 import lsr.paxos.messages.Accept
 import lsr.paxos.storage.Storage
 
@@ -14,11 +16,10 @@ import org.slf4j.LoggerFactory;
 
 class Learner (paxos : Paxos, proposer : Proposer, storage : Storage) 
 {
-    var startRead : Long = 0
-    var endRead : Long = 0
-    @volatile var instanceCnt : Long = 0
-    @volatile var timesum : Long = 0;
-    @volatile var lastInstance : Long = 0;
+    private val receive2b = Metrics.histogram("2b")
+ 
+    /* Accepts received before the Propose carrying their value, by instance */
+    private val pendingAccepts = new java.util.TreeMap[Integer, java.util.List[(Accept, Integer)]]()
  
     def onAccept(message : Accept, sender : Integer) : Unit = 
     {
@@ -26,67 +27,97 @@ class Learner (paxos : Paxos, proposer : Proposer, storage : Storage)
                                                         ", view: " + storage.getView());
         assert(paxos.getDispatcher().amIInDispatcher(), "Thread should not be here: " +
                                                          Thread.currentThread());
-        /* Get the current state */
-        val s : state_ext[Array[Byte], Unit] = storage.getCurrState
-
-        val curView = def_getBallot(s)
+        val curView = storage.getView()
         val curInst = message.getInstanceId()
-        val value = message.getValue()
         
         if (message.getView() < curView) 
         {
             return
         }
         
-        if (storage.getLog.getInstance(curInst).isDecided()) {
+        val instance = storage.getLog.getInstance(curInst)
+        if (instance.isDecided()) {
             logger.info("Ignoring Accept. Instance already decided: {}", message.getInstanceId());
             return;
         }
+        
+        /* Accepts do not carry the value, it must come from the Propose */
+        val value = instance.getValue()
+        if (value == null || instance.getView() != message.getBallot() || !message.matches(value)) {
+            addPendingAccept(message, sender)
+            return
+        }
+
+        /* Get the current state */
+        val s : state_ext[Array[Byte], Unit] = storage.getCurrState(curInst)
        
        /* Create the Phase 2b scala state message */  
        val msg : Phase2b[Array[Byte]] = new Phase2b(curInst, message.getBallot(), Comd(value))
 
        /* Update the state by calling the scala function */
-       startRead = System.nanoTime
+       val start = System.nanoTime
        //val x = lsr.paxos.MultiPaxos4.last_decision(s)
        val (state, packetList) = processExternalEvent[Array[Byte]](sender, msg, s)
        //val y = lsr.paxos.MultiPaxos4.last_decision(state)
-       endRead = System.nanoTime  
-       timesum += (endRead - startRead)/1000
-       instanceCnt = instanceCnt + 1;  
+       receive2b.recordSince(start)
+       if (Tracer.isSampled(value)) {
+           Tracer.instance(Tracer.ACCEPT_2B, curInst, sender)
+       }
          
        /* Update the state */
        storage.updateState(state)
        
+       // the majority may count our own vote, which must be durable first
        if (storage.getLog.getInstance(curInst).isMajority(ProcessDescriptor.getInstance().numReplicas)) {
-            if (value != null) {
-                paxos.decide(curInst);
-            }
+            paxos.decideWhenDurable(curInst);
         }
     }
-
-    def getAccept_Avge : Long = 
+    
+    /**
+     * Called once the value proposed for the instance is held locally.
+     * Processes the Accepts that arrived before it.
+     * 
+     * @param instanceId - the instance whose value became known
+     */
+    def onValueKnown(instanceId : Integer) : Unit =
     {
-      if(instanceCnt == lastInstance)
-      {
-          -1
-      }
-      else
-      {
-        
-        val currInstance = instanceCnt - lastInstance
-        val ret = timesum/currInstance
-        lastInstance = instanceCnt
-        timesum = 0
-        ret
-      }
+        val pending = pendingAccepts.remove(instanceId)
+        if (pending != null) {
+            for (i <- 0 until pending.size()) {
+                val (message, sender) = pending.get(i)
+                if (message.getView() == storage.getView()) {
+                    onAccept(message, sender)
+                }
+            }
+        }
     }
     
-    def getAccept_Count : Long = 
+    private def addPendingAccept(message : Accept, sender : Integer) : Unit =
     {
-      instanceCnt - lastInstance
+        // instances below firstUncommitted were decided meanwhile
+        pendingAccepts.headMap(storage.getFirstUncommitted()).clear()
+        
+        var pending = pendingAccepts.get(message.getInstanceId())
+        if (pending == null) {
+            pending = new java.util.ArrayList[(Accept, Integer)]()
+            pendingAccepts.put(message.getInstanceId(), pending)
+        }
+        pending.add((message, sender))
+        logger.info("Value of instance {} not known yet, keeping the Accept", message.getInstanceId())
+        
+        /* A majority accepted a value we do not hold: fetch it from a peer */
+        val voters = new java.util.BitSet()
+        for (i <- 0 until pending.size()) {
+            val (m, voter) = pending.get(i)
+            if (m.getBallot() == message.getBallot()) {
+                voters.set(voter)
+            }
+        }
+        if (voters.cardinality() * 2 > ProcessDescriptor.getInstance().numReplicas) {
+            paxos.getCatchup().forceCatchup()
+        }
     }
-    
+
     private final var logger : Logger = LoggerFactory.getLogger(classOf[Learner]);
 }
 
@@ -8,10 +8,13 @@ import java.util.BitSet;
 import lsr.common.Dispatcher;
 import lsr.common.Dispatcher.Priority;
 import lsr.common.DispatcherImpl;
+import lsr.common.MpscDispatcher;
 import lsr.common.Request;
+import lsr.common.Tracer;
 import lsr.paxos.Batcher;
 import lsr.paxos.DecideCallback;
 import lsr.paxos.FailureDetector;
+import lsr.paxos.LeaderLease;
 import lsr.paxos.core.Learner;
 import lsr.paxos.core.Proposer;
 import lsr.paxos.Snapshot;
@@ -22,6 +25,8 @@ import lsr.paxos.messages.*;
 import lsr.paxos.network.GenericNetwork;
 import lsr.paxos.network.MessageHandler;
 import lsr.paxos.network.Network;
+import lsr.paxos.network.NioNetwork;
+import lsr.paxos.network.SimulatedNetwork;
 import lsr.paxos.network.TcpNetwork;
 import lsr.paxos.network.UdpNetwork;
 import lsr.paxos.storage.ConsensusInstance;
@@ -65,12 +70,15 @@ public class Paxos {
 
 	private final CatchUp catchUp;
     private final FailureDetector failureDetector;
+    /** Null unless the leader answers reads under a lease */
+    private final LeaderLease leaderLease;
     
     private final SnapshotMaintainer snapshotMaintainer;
 
 	private final Dispatcher dispatcher;
     private final Network network;
-    private final UdpNetwork udpNetwork;
+    /** Network of the failure detector and of the lease */
+    private final Network udpNetwork;
     
     private Proposer proposer;
     private Acceptor acceptor;
@@ -98,7 +106,11 @@ public class Paxos {
     	this.storage = storage;
 	
        // Handles the replication protocol and writes messages to the network
-       dispatcher = new DispatcherImpl("Dispatcher");
+       if (processDescriptor().lockFreeDispatcher) {
+           dispatcher = new MpscDispatcher("Dispatcher");
+       } else {
+           dispatcher = new DispatcherImpl("Dispatcher");
+       }
 
        if (snapshotProvider != null) {
     	   //logger.info("Starting snapshot maintainer");
@@ -110,30 +122,45 @@ public class Paxos {
     	   snapshotMaintainer = null;
        }
 
-       // UDPNetwork is always needed because of the failure detector
-       this.udpNetwork = new UdpNetwork();
-       if (processDescriptor.network.equals("TCP")) 
+       // UDPNetwork is always needed because of the failure detector, unless
+       // the simulated network carries its messages
+       UdpNetwork udp = processDescriptor().network.equals("Simulated") ? null : new UdpNetwork();
+       if (processDescriptor().network.equals("TCP")) 
        {
     	   network = new TcpNetwork();
        } 
-       else if (processDescriptor.network.equals("UDP")) 
+       else if (processDescriptor().network.equals("NIO")) 
+       {
+    	   network = new NioNetwork();
+       } 
+       else if (processDescriptor().network.equals("UDP")) 
        {
-    	   network = udpNetwork;
-       } else if (processDescriptor.network.equals("Generic")) 
+    	   network = udp;
+       } else if (processDescriptor().network.equals("Generic")) 
        {
     	   TcpNetwork tcp = new TcpNetwork();
-    	   network = new GenericNetwork(tcp, udpNetwork);
+    	   network = new GenericNetwork(tcp, udp);
+       } 
+       else if (processDescriptor().network.equals("Simulated")) 
+       {
+    	   network = new SimulatedNetwork();
        } 
        else 
        {
-    	   	throw new IllegalArgumentException("Unknown network type: " + processDescriptor.network +
+    	   	throw new IllegalArgumentException("Unknown network type: " + processDescriptor().network +
                                       ". Check paxos.properties configuration.");
        }
+       this.udpNetwork = udp != null ? udp : network;
 
        failureDetector = new FailureDetector(this, udpNetwork, this.storage);
+       if (processDescriptor().leaderLeaseReads) {
+           leaderLease = new LeaderLease(this, udpNetwork, this.storage);
+       } else {
+           leaderLease = null;
+       }
 
        // create acceptors and learners
-       proposer = new Proposer(this, network, failureDetector, this.storage, processDescriptor.crashModel);
+       proposer = new Proposer(this, network, failureDetector, this.storage, processDescriptor().crashModel);
        acceptor = new Acceptor(this, this.storage, network);
        learner = new Learner(this, proposer, this.storage);
        
@@ -156,8 +183,12 @@ public class Paxos {
         Network.addMessageListener(MessageType.Phase1b, handler);
         Network.addMessageListener(MessageType.Propose, handler);
         Network.addMessageListener(MessageType.Accept, handler);
+        Network.addMessageListener(MessageType.ProposeBatch, handler);
+        Network.addMessageListener(MessageType.AcceptBatch, handler);
         Network.addMessageListener(MessageType.CatchUpQuery, handler);
         Network.addMessageListener(MessageType.CatchUpResponse, handler);
+        Network.addMessageListener(MessageType.LeaseAck, handler);
+        Network.addMessageListener(MessageType.ReadIndexQuery, handler);
 
         udpNetwork.start();
         network.start();
@@ -198,6 +229,20 @@ public class Paxos {
     public void startProposer() {
         assert proposer.getState() == ProposerState.INACTIVE : "Already in proposer role.";
 
+        long promised = leaderLease == null ? 0 : leaderLease.getPromiseRemaining();
+        if (promised > 0) {
+            // The leader may still answer reads under the lease
+            logger.info("Lease promised to the leader, starting proposer in {} ms", promised);
+            dispatcher.schedule(new Runnable() {
+                public void run() {
+                    if (proposer.getState() == ProposerState.INACTIVE) {
+                        startProposer();
+                    }
+                }
+            }, Priority.Normal, promised);
+            return;
+        }
+
         logger.info("start proposer event");
         StartProposerEvent event = new StartProposerEvent(proposer);
         if (dispatcher.amIInDispatcher()) {
@@ -215,7 +260,7 @@ public class Paxos {
      */
     public boolean isLeader() {
         
-    	return getLeaderId() == processDescriptor.localId;
+    	return getLeaderId() == processDescriptor().localId;
 
     }
     
@@ -225,7 +270,7 @@ public class Paxos {
      * @return id of replica which is leader
      */
     public int getLeaderId() {
-        return storage.getView() % processDescriptor.numReplicas;
+        return storage.getView() % processDescriptor().numReplicas;
     }
 
     /**
@@ -265,7 +310,7 @@ public class Paxos {
 //            proposer.proposeNext();
 //        } else {
 //            // not leader. Should we start the catchup?
-//            if (ci.getInst() > storage.getFirstUncommitted() + processDescriptor.windowSize) {
+//            if (ci.getInst() > storage.getFirstUncommitted() + processDescriptor().windowSize) {
 //                	// The last uncommitted value was already decided, since
 //                	// the decision just reached is outside the ordering window
 //                	// So start catchup.
@@ -284,12 +329,15 @@ public class Paxos {
         assert dispatcher.amIInDispatcher() : "Incorrect thread: " + Thread.currentThread();
 
         ConsensusInstance ci = storage.getLog().getInstance(instanceId);
-        logger.info(processDescriptor.logMark_OldBenchmark, "Decided on the instance {}", ci.getInst());
+        logger.info(processDescriptor().logMark_OldBenchmark, "Decided on the instance {}", ci.getInst());
         
         assert ci != null : "Deciding on instance already removed from logs";
         //assert ci.getState() != LogEntryState.DECIDED : "Deciding on already decided instance";
 
         ci.setDecided();
+        if (Tracer.isSampled(ci.getValue())) {
+            Tracer.instance(Tracer.DECIDE, instanceId, processDescriptor().localId);
+        }
 
         storage.updateFirstUncommitted();
 
@@ -301,7 +349,7 @@ public class Paxos {
         else 
         {
             // not leader. Should we start the catch-up?
-            if (ci.getInst() > storage.getFirstUncommitted() + processDescriptor.windowSize) {
+            if (ci.getInst() > storage.getFirstUncommitted() + processDescriptor().windowSize) {
                 // The last uncommitted value was already decided, since
                 // the decision just reached is outside the ordering window
                 // So start catch-up.
@@ -315,6 +363,37 @@ public class Paxos {
         decideCallback.onRequestOrdered(instanceId, ci);
     }
 
+    /**
+     * Decides the instance once everything written to the storage so far, in
+     * particular the local vote for it, is on stable storage. A decision must
+     * not count a vote that this replica could lose in a crash.
+     * 
+     * @param instanceId - the id of the instance accepted by a majority
+     */
+    public void decideWhenDurable(final int instanceId) {
+        assert dispatcher.amIInDispatcher() : "Incorrect thread: " + Thread.currentThread();
+
+        final Runnable decideIfStillMajority = new Runnable() {
+            public void run() {
+                // the view or the log may have changed while waiting
+                ConsensusInstance ci = storage.getLog().getInstance(instanceId);
+                if (ci != null && !ci.isDecided() &&
+                    ci.isMajority(processDescriptor().numReplicas)) {
+                    decide(instanceId);
+                }
+            }
+        };
+        storage.whenDurable(new Runnable() {
+            public void run() {
+                if (dispatcher.amIInDispatcher()) {
+                    decideIfStillMajority.run();
+                } else {
+                    dispatcher.dispatch(decideIfStillMajority);
+                }
+            }
+        });
+    }
+
     /**
      * Increases the view of this process to specified value. The new view has
      * to be greater than the current one.
@@ -326,7 +405,7 @@ public class Paxos {
         assert newView > storage.getView() : "Can't advance to the same or lower view";
 
         logger.info("Advancing to view " + newView + ", Leader = " +
-                    (newView % processDescriptor.numReplicas) + ", original view is = " + storage.getView());
+                    (newView % processDescriptor().numReplicas) + ", original view is = " + storage.getView());
 
         if (isLeader()) {
         	logger.info("In advanceView, is leader, going to stop proposer");
@@ -339,6 +418,34 @@ public class Paxos {
         failureDetector.leaderChange(getLeaderId());
     }
 
+    /**
+     * Tells if this replica may join a higher view, that is if it did not
+     * promise the leader of the current view not to.
+     * 
+     * @return <code>false</code> while the lease of the leader may be valid
+     */
+    public boolean mayAdvanceView() {
+        return leaderLease == null || leaderLease.getPromiseRemaining() <= 0;
+    }
+
+    /**
+     * Returns the read index for a read-only request received now: every
+     * request decided so far is in an instance below it, so the request may
+     * be answered once all instances below were executed. Called on the
+     * dispatcher thread.
+     * 
+     * @return the id of the next instance, or -1 if this replica is not a
+     *         prepared leader holding the lease
+     */
+    public int getReadIndex() {
+        assert dispatcher.amIInDispatcher();
+        if (leaderLease == null || !isLeader() ||
+            proposer.getState() != ProposerState.PREPARED || !leaderLease.isValid()) {
+            return -1;
+        }
+        return storage.getLog().getNextId();
+    }
+
     public boolean getViewChange()
     {
     	return viewChange;
@@ -360,7 +467,7 @@ public class Paxos {
             MessageEvent event = new MessageEvent(msg, sender);
             	
             // prioritize Alive messages
-            if (msg instanceof Alive) {
+            if (msg instanceof Alive || msg instanceof LeaseAck) {
                 dispatcher.dispatch(event, Priority.High);
             } else {
                 dispatcher.dispatch(event);
@@ -402,6 +509,10 @@ public class Paxos {
                 }
 
                 if (msg.getView() > storage.getView()) {
+                    if (!mayAdvanceView()) {
+                        logger.debug("Lease promised, ignoring {}", msg);
+                        return;
+                    }
                     assert msg.getType() != MessageType.Phase1b : "Received PrepareOK for view " +
                                                                     msg.getView() +
                                                                     " without having sent a Prepare";
@@ -438,6 +549,24 @@ public class Paxos {
                         learner.onAccept((Accept)msg, sender);
                     	///learner.onAccept((Accept) msg, sender);
                         break;
+
+                    case ProposeBatch: {
+                        ProposeBatch batch = (ProposeBatch) msg;
+                        acceptor.onProposeBatch(batch, sender);
+                        for (Propose propose : batch.getProposes()) {
+                            if (!storage.isInWindow(propose.getInstanceId())) {
+                                activateCatchup();
+                                break;
+                            }
+                        }
+                        break;
+                    }
+
+                    case AcceptBatch:
+                        for (Accept accept : ((AcceptBatch) msg).getAccepts()) {
+                            learner.onAccept(accept, sender);
+                        }
+                        break;
                     
                     case Alive:
                         // The function checkIfCatchUpNeeded also creates
@@ -445,6 +574,20 @@ public class Paxos {
                         if (!isLeader() && checkIfCatchUpNeeded(((Alive) msg).getLogSize())) {
                             activateCatchup();
                         }
+                        if (leaderLease != null) {
+                            leaderLease.onAlive((Alive) msg, sender);
+                        }
+                        break;
+
+                    case LeaseAck:
+                        if (leaderLease != null) {
+                            leaderLease.onLeaseAck((LeaseAck) msg, sender);
+                        }
+                        break;
+
+                    case ReadIndexQuery:
+                        network.sendMessage(new ReadIndexReply(storage.getView(),
+                                ((ReadIndexQuery) msg).getQueryId(), getReadIndex()), sender);
                         break;
 					
                     default:
@@ -466,6 +609,9 @@ public class Paxos {
                 System.out.println("Mesg = " + msg.toString());
                 System.out.println("Mesg type = " + msg.getType() + " Msg class = " + msg.getClass().getName());
                 System.exit(1);
+            } finally {
+                // values needed later were copied by the handlers
+                msg.release();
             }
         }
         
@@ -482,7 +628,7 @@ public class Paxos {
 
             // We check if all ballots outside the window finished
             int i = storage.getFirstUncommitted();
-            for (; i < log.getNextId() - processDescriptor.windowSize; i++) {
+            for (; i < log.getNextId() - processDescriptor().windowSize; i++) {
                 if (log.getInstance(i).getState() != LogEntryState.DECIDED) {
                     return true;
                 }
@@ -10,12 +10,15 @@ import java.util.HashMap;
 import java.util.Map;
 
 import lsr.common.Dispatcher.Priority
+import lsr.common.Metrics
 import lsr.common.ProcessDescriptor
 import lsr.common.Request
+import lsr.common.Tracer
 import lsr.paxos.messages.Message
 import lsr.paxos.messages.Send1a
 import lsr.paxos.messages.Send1b
 import lsr.paxos.messages.Propose;
+import lsr.paxos.messages.ProposeBatch;
 import lsr.paxos.network.Network;
 import lsr.common.CrashModel;
 import lsr.paxos.FailureDetector;
@@ -38,11 +41,11 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
     val descriptor = ProcessDescriptor.getInstance();
     var propState : ProposerState = ProposerState.INACTIVE
     
-    @volatile var startRead : Long = 0
-    @volatile var endRead : Long = 0
-    @volatile var instanceCnt : Long = 0
-    @volatile var timesum : Long = 0;
-    @volatile var lastInstance : Long = 0;
+    private val proposeTime = Metrics.histogram("propose")
+    private val decideTime = Metrics.histogram("decide")
+    
+    /** when each instance proposed in this view was opened, by instance */
+    private final val openTimes : Map[Integer, java.lang.Long] = new HashMap[Integer, java.lang.Long]();
 
     /** Keeps track of the processes that have prepared for this view */
     private final var retransmitter : Retransmitter = new Retransmitter(network, "Retransmitter");
@@ -51,6 +54,10 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
     private final var proposeRetransmitters : Map[Integer, RetransmittedMessage]  =
         new HashMap[Integer, RetransmittedMessage]();
     
+    /** number of undecided instances in each retransmitted ProposeBatch */
+    private final val batchInstances : Map[RetransmittedMessage, Integer] =
+        new HashMap[RetransmittedMessage, Integer]();
+    
     /** retransmitted message for prepare request */
     private var transmitter : Transmitter = new Transmitter(retransmitter);
     
@@ -70,7 +77,7 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
     {
         propState = ProposerState.PREPARING;
         
-        val s : state_ext[Array[Byte], Unit] = storage.getCurrState
+        val s : state_ext[Array[Byte], Unit] = storage.getCurrState()
         
         val repId: Integer = descriptor.localId
         
@@ -103,7 +110,7 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
                */
               val prepare: Send1a = new Send1a(ballot, firstUncommitted);
 
-              transmitter.startTransmitting(prepare, Network.OTHERS);
+              transmitter.startTransmitting(prepare, Network.getOthers());
 
               // tell that local process is already prepared
               transmitter.update(repId);
@@ -118,7 +125,7 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
     def onReceive1b(message : Send1b, sender : Integer) : Unit =
     {
          /*Get current state */
-         val s : state_ext[Array[Byte],Unit] = storage.getCurrState
+         val s : state_ext[Array[Byte],Unit] = storage.getCurrState()
 
          val msg : Phase1b[Array[Byte]] = message.getPhase1b()
          val (state, packetList) = processExternalEvent[Array[Byte]](sender, msg, s)
@@ -226,6 +233,10 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
     }
     
     def proposeNext() : Unit = {
+        if (descriptor.multiInstancePropose) {
+            proposeNextBatch();
+            return;
+        }
         while (!storage.isWindowFull()) {
             val proposal = paxos.requestBatch();
             if (proposal == null)
@@ -237,6 +248,39 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
             propose(proposal);
         }
     }
+    
+    /**
+     * Version of <code>proposeNext</code> which sends all instances opened in
+     * this pass in a single <code>ProposeBatch</code> frame.
+     */
+    private def proposeNextBatch() : Unit = {
+        val opened = new ArrayList[Propose]();
+        var done = false;
+        while (!done && !storage.isWindowFull()) {
+            val proposal = paxos.requestBatch();
+            if (proposal == null) {
+                logger.info("The new proposal is null, stop proposing");
+                done = true;
+            } else {
+                val message = openInstance(proposal);
+                if (message == null) {
+                    done = true;
+                } else {
+                    opened.add(message);
+                }
+            }
+        }
+        
+        if (opened.size() == 1) {
+            startProposal(opened.get(0));
+        } else if (opened.size() > 1) {
+            val msg = retransmitter.startTransmitting(new ProposeBatch(storage.getView(), opened));
+            for (i <- 0 until opened.size()) {
+                proposeRetransmitters.put(opened.get(i).getInstanceId(), msg);
+            }
+            batchInstances.put(msg, opened.size());
+        }
+    }
      
      /**
      * Asks the proposer to propose the given value. If there are currently too
@@ -247,6 +291,21 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
      * @param value - the value to propose
      */
     def propose(value : Array[Byte]) : Unit = 
+    {
+        val message = openInstance(value);
+        if (message != null) {
+            startProposal(message);
+        }
+    }
+    
+    /**
+     * Appends the value to the log as a new instance accepted locally.
+     * 
+     * @param value - the value to propose
+     * @return the <code>Propose</code> message for the new instance, or null
+     *         if the proposer is not prepared
+     */
+    private def openInstance(value : Array[Byte]) : Propose =
     {
         assert(paxos.getDispatcher().amIInDispatcher());
         if (propState != ProposerState.PREPARED) {
@@ -255,23 +314,35 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
              * Dispatcher when the view changes.
              */
             logger.warn("Cannot propose in INACTIVE or PREPARING state. Discarding batch");
-            return;
+            return null;
         }
 
+        val start = System.nanoTime();
         logger.info(descriptor.logMark_OldBenchmark, "Proposing for instance: " +
             storage.getLog().getNextId() + ", view: " + storage.getView() + ", value: " + value);
 
         var instance : ConsensusInstance = storage.getLog().append(storage.getView(), value);
+        openTimes.put(instance.getInst(), start);
+        if (Tracer.isSampled(value)) {
+            Tracer.instance(Tracer.PROPOSE, instance.getInst(), descriptor.localId);
+        }
 
         // Mark the instance as accepted locally
         instance.getAccepts().set(descriptor.localId);
         if (instance.isMajority(descriptor.numReplicas)) {
             logger.warn("Either you use one replica only (what for?) or something is very wrong.");
-            paxos.decide(instance.getInst());
+            paxos.decideWhenDurable(instance.getInst());
         }
 
-        val msg = retransmitter.startTransmitting(new Propose(instance));
-        proposeRetransmitters.put(instance.getInst(), msg);
+        val message = new Propose(instance);
+        proposeTime.recordSince(start);
+        return message;
+    }
+    
+    private def startProposal(message : Propose) : Unit =
+    {
+        val msg = retransmitter.startTransmitting(message);
+        proposeRetransmitters.put(message.getInstanceId(), msg);
     }
      
      /**
@@ -297,10 +368,10 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
     }
     
     private def fillWithNoOperation(instance : ConsensusInstance ) {
-        var bb = ByteBuffer.allocate(4 + 4 + 4);
+        var bb = ByteBuffer.allocate(4 + 4 + Request.NOP.byteSize());
         bb.putInt(1); // Size of batch
-        bb.putInt(-1);
-        bb.putInt(-1);// NOP request
+        bb.putInt(Request.NOP.byteSize());
+        Request.NOP.writeTo(bb); // NOP request
         instance.updateStateFromKnown(storage.getView(), bb.array());
         continueProposal(instance);
     }
@@ -314,9 +385,22 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
      */
     def stopPropose(instanceId : Integer) : Unit = 
     {
+        val opened = openTimes.remove(instanceId);
+        if (opened != null) {
+            decideTime.recordSince(opened);
+        }
         val r = proposeRetransmitters.remove(instanceId);
         if (r != null) {
-            r.stop();
+            val left = batchInstances.get(r);
+            if (left == null) {
+                r.stop();
+            } else if (left > 1) {
+                // other instances of the frame are still undecided
+                batchInstances.put(r, left - 1);
+            } else {
+                batchInstances.remove(r);
+                r.stop();
+            }
         }
     }
     
@@ -345,24 +429,8 @@ class Proposer (paxos : Paxos, network : Network ,failureDetector : FailureDetec
         transmitter.stop();
         retransmitter.stopAll();
         proposeRetransmitters.clear();
-    }
-     
-    def getPropose_Avge : Long = 
-    {
-        if(instanceCnt == lastInstance) -1
-        else
-        {
-            val currInstance = instanceCnt - lastInstance
-            val ret = timesum/currInstance
-            lastInstance = instanceCnt
-            timesum = 0
-            ret
-        }
-    }
-    
-    def getPropose_Count : Long = 
-    {
-        instanceCnt - lastInstance
+        batchInstances.clear();
+        openTimes.clear();
     }
     
     def notifyAboutNewBatch() : Unit =
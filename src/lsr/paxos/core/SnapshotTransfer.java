@@ -0,0 +1,291 @@
+package lsr.paxos.core;
+
+import static lsr.common.ProcessDescriptor.processDescriptor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import lsr.paxos.Snapshot;
+import lsr.paxos.messages.SnapshotChunk;
+import lsr.paxos.messages.SnapshotChunkAck;
+import lsr.paxos.network.Network;
+import lsr.paxos.storage.Storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends and receives snapshots for the catch-up mechanism in chunks, instead
+ * of as a single <code>CatchUpSnapshot</code> message.
+ * <p>
+ * The sender serializes the chunks on demand from the snapshot it holds, and
+ * keeps at most <code>SnapshotChunksInFlight</code> chunks not acknowledged.
+ * The receiver appends the chunks to a temporary file in order, checking the
+ * checksum of each, and acknowledges the bytes received. A corrupted or
+ * missing chunk is requested again with a single resend acknowledgment; if
+ * that is lost too, the next catch-up query to a sender that saw no progress
+ * restarts the sending from the last acknowledged offset. The snapshot is read
+ * from the file once complete, so only the restored snapshot itself is kept in
+ * memory.
+ * <p>
+ * A download is bound to a single sender, as the serialized form of the same
+ * snapshot may differ between replicas. Other replicas sending the same
+ * snapshot meanwhile, as with the multi-source catch-up, are told to stop,
+ * unless the download made no progress for the retransmit timeout.
+ * <p>
+ * Not thread-safe; used only by the thread handling catch-up messages.
+ */
+final class SnapshotTransfer {
+    private final Storage storage;
+    private final Network network;
+    private final int chunkSize;
+    private final int chunksInFlight;
+
+    /** Snapshots being sent, indexed by receiver */
+    private final Upload[] uploads;
+    /** Snapshot being received, or null */
+    private Download download = null;
+
+    SnapshotTransfer(Storage storage, Network network) {
+        this.storage = storage;
+        this.network = network;
+        this.chunkSize = processDescriptor().snapshotChunkSize;
+        this.chunksInFlight = processDescriptor().snapshotChunksInFlight;
+        this.uploads = new Upload[processDescriptor().numReplicas];
+    }
+
+    /**
+     * Starts or resumes sending the snapshot to the given replica, in reply to
+     * a catch-up query.
+     *
+     * @param snapshot - the snapshot to send
+     * @param target - id of the replica which sent the query
+     * @param requestTime - time the query was sent
+     */
+    void startUpload(Snapshot snapshot, int target, long requestTime) {
+        Upload upload = uploads[target];
+        if (upload != null && upload.snapshot == snapshot) {
+            // The receiver asks again; restart from where it is if it is not
+            // receiving anything
+            if (upload.acked == upload.ackedAtLastQuery) {
+                upload.next = upload.acked;
+            }
+            upload.ackedAtLastQuery = upload.acked;
+        } else {
+            try {
+                upload = new Upload(snapshot);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            uploads[target] = upload;
+            logger.info("Sending snapshot {} of {} bytes to [p{}]", upload.id, upload.total,
+                    target);
+        }
+        upload.requestTime = requestTime;
+        sendChunks(upload, target);
+    }
+
+    void onAck(SnapshotChunkAck ack, int sender) {
+        Upload upload = uploads[sender];
+        if (upload == null || upload.id != ack.getSnapshotId()) {
+            return;
+        }
+        if (ack.getOffset() >= upload.total) {
+            logger.info("Snapshot {} sent to [p{}]", upload.id, sender);
+            uploads[sender] = null;
+            return;
+        }
+        if (ack.isResend()) {
+            upload.acked = ack.getOffset();
+            upload.next = ack.getOffset();
+        } else {
+            upload.acked = Math.max(upload.acked, ack.getOffset());
+            upload.next = Math.max(upload.next, upload.acked);
+        }
+        sendChunks(upload, sender);
+    }
+
+    private void sendChunks(Upload upload, int target) {
+        long window = (long) chunksInFlight * chunkSize;
+        while (upload.next < upload.total && upload.next - upload.acked < window) {
+            int length = (int) Math.min(chunkSize, upload.total - upload.next);
+            SnapshotChunk chunk = new SnapshotChunk(storage.getView(), upload.requestTime,
+                    upload.id, upload.total, upload.next, upload.read(upload.next, length));
+            network.sendMessage(chunk, target);
+            upload.next += length;
+        }
+    }
+
+    /**
+     * Handles a received chunk.
+     *
+     * @return the received snapshot if this was its last chunk, null otherwise
+     */
+    Snapshot onChunk(SnapshotChunk chunk, int sender) {
+        Snapshot lastSnapshot = storage.getLastSnapshot();
+        if (lastSnapshot != null && chunk.getSnapshotId() <= lastSnapshot.getNextInstanceId()) {
+            // not needed any more; let the sender stop
+            network.sendMessage(new SnapshotChunkAck(storage.getView(), chunk.getSnapshotId(),
+                    chunk.getTotalSize(), false), sender);
+            return null;
+        }
+
+        if (download == null || download.sender != sender ||
+            download.id != chunk.getSnapshotId()) {
+            if (download != null && chunk.getSnapshotId() < download.id) {
+                return null;
+            }
+            if (download != null && chunk.getSnapshotId() == download.id &&
+                System.currentTimeMillis() - download.lastProgress <
+                        processDescriptor().retransmitTimeout) {
+                network.sendMessage(new SnapshotChunkAck(storage.getView(), chunk.getSnapshotId(),
+                        chunk.getTotalSize(), false), sender);
+                return null;
+            }
+            abortDownload();
+            try {
+                download = new Download(sender, chunk.getSnapshotId(), chunk.getTotalSize());
+            } catch (IOException e) {
+                logger.error("Cannot create file for the snapshot", e);
+                return null;
+            }
+        }
+
+        if (chunk.getOffset() != download.received || !chunk.isValid()) {
+            // chunks below the offset are duplicates, others are dropped
+            if ((chunk.getOffset() >= download.received) && !download.resendRequested) {
+                logger.warn("Dropped {} from [p{}], expected offset {}", chunk, sender,
+                        download.received);
+                download.resendRequested = true;
+                network.sendMessage(new SnapshotChunkAck(storage.getView(), download.id,
+                        download.received, true), sender);
+            }
+            return null;
+        }
+
+        try {
+            download.output.write(chunk.getData());
+            download.received += chunk.getData().length;
+            download.lastProgress = System.currentTimeMillis();
+            download.resendRequested = false;
+            network.sendMessage(new SnapshotChunkAck(storage.getView(), download.id,
+                    download.received, false), sender);
+
+            if (download.received < download.total) {
+                return null;
+            }
+
+            download.output.close();
+            DataInputStream input = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(download.file), chunkSize));
+            try {
+                return new Snapshot(input);
+            } finally {
+                input.close();
+                abortDownload();
+            }
+        } catch (IOException e) {
+            logger.error("Receiving snapshot " + download.id + " failed", e);
+            abortDownload();
+            return null;
+        }
+    }
+
+    private void abortDownload() {
+        if (download == null) {
+            return;
+        }
+        try {
+            download.output.close();
+        } catch (IOException e) {
+            logger.warn("Error closing snapshot file: " + e.getMessage());
+        }
+        if (!download.file.delete()) {
+            logger.warn("Cannot delete " + download.file);
+        }
+        download = null;
+    }
+
+    /** State of a snapshot being sent */
+    private static final class Upload {
+        final Snapshot snapshot;
+        final int id;
+        /* The serialized snapshot is head, value and tail */
+        final byte[] head;
+        final byte[] value;
+        final byte[] tail;
+        final long total;
+
+        long requestTime;
+        /* All bytes below were received */
+        long acked = 0;
+        long ackedAtLastQuery = 0;
+        /* Next byte to send */
+        long next = 0;
+
+        Upload(Snapshot snapshot) throws IOException {
+            this.snapshot = snapshot;
+            this.id = snapshot.getNextInstanceId();
+            this.value = snapshot.getValue();
+            this.head = ByteBuffer.allocate(8).putInt(id).putInt(value.length).array();
+            ByteArrayOutputStream tailStream = new ByteArrayOutputStream();
+            snapshot.writeTailTo(new DataOutputStream(tailStream));
+            this.tail = tailStream.toByteArray();
+            this.total = (long) head.length + value.length + tail.length;
+        }
+
+        /** Copies a part of the serialized snapshot */
+        byte[] read(long offset, int length) {
+            byte[] data = new byte[length];
+            int copied = 0;
+            copied += copy(head, 0, offset, data, copied);
+            copied += copy(value, head.length, offset + copied, data, copied);
+            copied += copy(tail, head.length + value.length, offset + copied, data, copied);
+            assert copied == length;
+            return data;
+        }
+
+        /** Copies the part of src, starting at start in the snapshot */
+        private static int copy(byte[] src, long start, long offset, byte[] data, int at) {
+            long from = offset - start;
+            if (from < 0 || from >= src.length || at == data.length) {
+                return 0;
+            }
+            int length = (int) Math.min(src.length - from, data.length - at);
+            System.arraycopy(src, (int) from, data, at, length);
+            return length;
+        }
+    }
+
+    /** State of a snapshot being received */
+    private static final class Download {
+        final int sender;
+        final int id;
+        final long total;
+        final File file;
+        final FileOutputStream output;
+        long received = 0;
+        long lastProgress = System.currentTimeMillis();
+        boolean resendRequested = false;
+
+        Download(int sender, int id, long total) throws IOException {
+            this.sender = sender;
+            this.id = id;
+            this.total = total;
+            File directory = new File(processDescriptor().logPath,
+                    Integer.toString(processDescriptor().localId));
+            directory.mkdirs();
+            file = File.createTempFile("snapshot." + id + ".", ".part", directory);
+            output = new FileOutputStream(file);
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(SnapshotTransfer.class);
+}
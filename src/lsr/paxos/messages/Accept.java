@@ -1,5 +1,7 @@
 package lsr.paxos.messages;
 
+import static lsr.common.ProcessDescriptor.processDescriptor;
+
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -7,12 +9,19 @@ import java.nio.ByteBuffer;
 /**
  * Represents the <code>Accept</code> message. This message is sent as a
  * response to <code>Propose</code> message from the leader.
+ * <p>
+ * The message does not carry the proposed value. The receiver matches it
+ * against the value from the <code>Propose</code> it holds for the same
+ * instance and ballot. If <code>AcceptDigest</code> is enabled, a 64-bit
+ * digest of the value is added, so that the match is also checked on the
+ * value itself.
  */
 public class Accept extends Message {
     private static final long serialVersionUID = 1L;
-    private final byte[] value;
     private final int instanceId;
     private final int ballot;
+    private final long digest;
+
     /**
      * Creates new <code>Accept</code> message as a response to
      * <code>Propose</code> message.
@@ -20,10 +29,8 @@ public class Accept extends Message {
      * @param message - the propose message
      */
     public Accept(Propose message) {
-        super(message.getView());
-        value = message.getValue();
-        instanceId = message.getInstanceId();
-        ballot = 0;
+        this(message.getView(), message.getInstanceId(), message.getBallot(),
+                message.getValue());
     }
 
     /**
@@ -32,12 +39,14 @@ public class Accept extends Message {
      * 
      * @param view - the view number
      * @param instanceId - the instance id
+     * @param ballot - the ballot of the accepted proposal
+     * @param value - the accepted value, used only to compute the digest
      */
     public Accept(int view, int instanceId, int ballot, byte[] value) {
         super(view);
-        this.value = value;
         this.instanceId = instanceId;
         this.ballot = ballot;
+        this.digest = processDescriptor().acceptDigest ? digest(value) : 0;
     }
 
     /**
@@ -52,8 +61,18 @@ public class Accept extends Message {
         super(input);
         instanceId = input.readInt();
         ballot = input.readInt();
-        value = new byte[input.readInt()];
-        input.readFully(value);
+        digest = input.readLong();
+    }
+
+    /**
+     * Reads the fields of an <code>Accept</code> sent inside an
+     * <code>AcceptBatch</code>, which carries the view for all of them.
+     */
+    Accept(int view, DataInputStream input) throws IOException {
+        super(view);
+        instanceId = input.readInt();
+        ballot = input.readInt();
+        digest = input.readLong();
     }
 
     /**
@@ -68,15 +87,24 @@ public class Accept extends Message {
     public int getBallot() {
     	return ballot;
     }
+
     public MessageType getType() {
         return MessageType.Accept;
     }
-    
-    public byte[] getValue() {
-    	return value;
+
+    /**
+     * Checks if this message refers to the given value. Always true if
+     * <code>AcceptDigest</code> is disabled.
+     * 
+     * @param value - the value held locally for the instance
+     * @return true if the digest of the value matches the one in the message
+     */
+    public boolean matches(byte[] value) {
+        return !processDescriptor().acceptDigest || digest == digest(value);
     }
+
     public int byteSize() {
-        return super.byteSize() + 4 + 4 + 4 + value.length;
+        return super.byteSize() + 4 + 4 + 8;
     }
 
     public String toString() {
@@ -86,7 +114,16 @@ public class Accept extends Message {
     protected void write(ByteBuffer bb) {
         bb.putInt(instanceId);
         bb.putInt(ballot);
-        bb.putInt(value.length);
-        bb.put(value);
+        bb.putLong(digest);
+    }
+
+    /** 64-bit FNV-1a hash of the value */
+    public static long digest(byte[] value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 }
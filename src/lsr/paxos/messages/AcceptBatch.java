@@ -0,0 +1,76 @@
+package lsr.paxos.messages;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Several <code>Accept</code> messages sent as a single frame, in response to
+ * a <code>ProposeBatch</code>. All of them share the view of the frame.
+ */
+public class AcceptBatch extends Message {
+    private static final long serialVersionUID = 1L;
+    private final List<Accept> accepts;
+
+    /**
+     * Creates new frame with the given accepts.
+     *
+     * @param view - sender view number
+     * @param accepts - the accepts, all in the given view
+     */
+    public AcceptBatch(int view, List<Accept> accepts) {
+        super(view);
+        this.accepts = accepts;
+    }
+
+    /**
+     * Creates new <code>AcceptBatch</code> message from serialized input
+     * stream.
+     *
+     * @param input - the input stream with serialized message
+     * @throws IOException if I/O error occurs while deserializing
+     */
+    public AcceptBatch(DataInputStream input) throws IOException {
+        super(input);
+        int count = input.readInt();
+        accepts = new ArrayList<Accept>(count);
+        for (int i = 0; i < count; i++) {
+            accepts.add(new Accept(view, input));
+        }
+    }
+
+    /**
+     * Returns the accepts carried by this frame.
+     *
+     * @return the accepts, in order of instance ids
+     */
+    public List<Accept> getAccepts() {
+        return Collections.unmodifiableList(accepts);
+    }
+
+    public MessageType getType() {
+        return MessageType.AcceptBatch;
+    }
+
+    public int byteSize() {
+        int size = super.byteSize() + 4;
+        for (Accept accept : accepts) {
+            size += accept.byteSize() - Message.HEADER_SIZE;
+        }
+        return size;
+    }
+
+    public String toString() {
+        return "AcceptBatch(" + super.toString() + ", size: " + accepts.size() + ")";
+    }
+
+    protected void write(ByteBuffer bb) {
+        bb.putInt(accepts.size());
+        for (Accept accept : accepts) {
+            accept.write(bb);
+        }
+    }
+}
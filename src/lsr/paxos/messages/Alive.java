@@ -15,6 +15,11 @@ public class Alive extends Message {
      * leader.
      */
     private final int logSize;
+    /**
+     * Time the message was sent, in milliseconds of the monotonic clock of the
+     * sender. Sent back in <code>LeaseAck</code>.
+     */
+    private final long sendTime;
 
     /**
      * Creates new <code>Alive</code> message with specified view number and log
@@ -22,10 +27,12 @@ public class Alive extends Message {
      * 
      * @param view - the view number
      * @param logSize - the size of the log
+     * @param sendTime - the time the message is sent
      */
-    public Alive(int view, int logSize) {
+    public Alive(int view, int logSize, long sendTime) {
         super(view);
         this.logSize = logSize;
+        this.sendTime = sendTime;
     }
 
     /**
@@ -38,6 +45,7 @@ public class Alive extends Message {
     public Alive(DataInputStream input) throws IOException {
         super(input);
         logSize = input.readInt();
+        sendTime = input.readLong();
     }
 
     /**
@@ -49,12 +57,21 @@ public class Alive extends Message {
         return logSize;
     }
 
+    /**
+     * Returns the time the message was sent, on the clock of the sender.
+     * 
+     * @return the send time in milliseconds
+     */
+    public long getSendTime() {
+        return sendTime;
+    }
+
     public MessageType getType() {
         return MessageType.Alive;
     }
 
     public int byteSize() {
-        return super.byteSize() + 4;
+        return super.byteSize() + 4 + 8;
     }
 
     public String toString() {
@@ -63,5 +80,6 @@ public class Alive extends Message {
 
     protected void write(ByteBuffer bb) {
         bb.putInt(logSize);
+        bb.putLong(sendTime);
     }
 }
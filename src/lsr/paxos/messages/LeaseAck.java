@@ -0,0 +1,59 @@
+package lsr.paxos.messages;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Answer of a follower to an <code>Alive</code> message of the leader. The
+ * follower promised not to join a higher view for
+ * <code>FDSuspectTimeout</code> after receiving the <code>Alive</code>, whose
+ * send time is sent back so the leader knows since when the promise holds.
+ */
+public class LeaseAck extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private final long aliveSendTime;
+
+    /**
+     * Creates new acknowledgment.
+     *
+     * @param view - sender view number
+     * @param aliveSendTime - send time of the acknowledged <code>Alive</code>
+     */
+    public LeaseAck(int view, long aliveSendTime) {
+        super(view);
+        this.aliveSendTime = aliveSendTime;
+    }
+
+    /**
+     * Creates new <code>LeaseAck</code> message from serialized input stream.
+     *
+     * @param input - the input stream with serialized message
+     * @throws IOException if I/O error occurs while deserializing
+     */
+    public LeaseAck(DataInputStream input) throws IOException {
+        super(input);
+        aliveSendTime = input.readLong();
+    }
+
+    public long getAliveSendTime() {
+        return aliveSendTime;
+    }
+
+    public MessageType getType() {
+        return MessageType.LeaseAck;
+    }
+
+    public int byteSize() {
+        return super.byteSize() + 8;
+    }
+
+    public String toString() {
+        return "LeaseAck (" + super.toString() + ") alive sent: " + aliveSendTime;
+    }
+
+    protected void write(ByteBuffer bb) {
+        bb.putLong(aliveSendTime);
+    }
+}
@@ -15,6 +15,8 @@ import java.nio.ByteBuffer;
  */
 public abstract class Message implements Serializable {
     private static final long serialVersionUID = 1L;
+    /** Size of the fields written by <code>toByteArray()</code> for every message */
+    static final int HEADER_SIZE = 1 + 4 + 8;
     protected final int view;
     private long sentTime;
 
@@ -49,6 +51,17 @@ public abstract class Message implements Serializable {
         sentTime = input.readLong();
     }
 
+    /**
+     * Creates new message from a buffer with serialized message inside,
+     * starting at its position.
+     * 
+     * @param input - the buffer with serialized message
+     */
+    protected Message(ByteBuffer input) {
+        view = input.getInt();
+        sentTime = input.getLong();
+    }
+
     /**
      * Sets the time when the message was sent.
      * 
@@ -89,7 +102,7 @@ public abstract class Message implements Serializable {
      * @return the size of the message in bytes
      */
     public int byteSize() {
-        return 1 + 4 + 8;
+        return HEADER_SIZE;
     }
 
     /**
@@ -124,6 +137,14 @@ public abstract class Message implements Serializable {
         return "view:" + getView();
     }
 
+    /**
+     * Releases the pooled buffer this message was decoded from, if any. Must
+     * be called once by the handler after the message was processed; the
+     * message content that was not copied is not accessible afterwards.
+     */
+    public void release() {
+    }
+
     /**
      * When serializing message to byte array, this function is called on the
      * message. Implementation of message-specific fields serialization must go
@@ -4,6 +4,10 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import lsr.common.ByteBufferInputStream;
+import lsr.common.PooledBuffer;
 
 /**
  * This class is responsible for serializing and deserializing messages to /
@@ -46,6 +50,34 @@ public class MessageFactory {
         return message;
     }
 
+    /**
+     * Creates a <code>Message</code> from a pooled buffer, starting at its
+     * position. Proposed values are not copied out of the buffer; such
+     * messages keep a reference to <code>owner</code> until
+     * {@link Message#release()} is called. Other messages are read through a
+     * stream over the buffer and do not refer to it.
+     * 
+     * @param input - the buffer with serialized message
+     * @param owner - the pooled buffer <code>input</code> belongs to
+     * @return deserialized message
+     */
+    public static Message create(ByteBuffer input, PooledBuffer owner) {
+        try {
+            MessageType type = MessageType.values()[input.get() & 0xff];
+            switch (type) {
+                case Propose:
+                    return new Propose(input, owner);
+                case ProposeBatch:
+                    return new ProposeBatch(input, owner);
+                default:
+                    return createMessage(type, new DataInputStream(
+                            new ByteBufferInputStream(input)));
+            }
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Exception deserializing message occured!", e);
+        }
+    }
+
     /**
      * Serializes message to byte array.
      * 
@@ -106,6 +138,27 @@ public class MessageFactory {
             case ForwardedClientRequests:
                 message = new ForwardClientRequests(input);
                 break;
+            case ProposeBatch:
+                message = new ProposeBatch(input);
+                break;
+            case AcceptBatch:
+                message = new AcceptBatch(input);
+                break;
+            case SnapshotChunk:
+                message = new SnapshotChunk(input);
+                break;
+            case SnapshotChunkAck:
+                message = new SnapshotChunkAck(input);
+                break;
+            case LeaseAck:
+                message = new LeaseAck(input);
+                break;
+            case ReadIndexQuery:
+                message = new ReadIndexQuery(input);
+                break;
+            case ReadIndexReply:
+                message = new ReadIndexReply(input);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown message type given to deserialize!");
         }
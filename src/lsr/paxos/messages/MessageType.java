@@ -17,6 +17,17 @@ public enum MessageType {
 	RecoveryAnswer,
     
     ForwardedClientRequests,
+
+    ProposeBatch,
+    AcceptBatch,
+
+    SnapshotChunk,
+    SnapshotChunkAck,
+
+    LeaseAck,
+    ReadIndexQuery,
+    ReadIndexReply,
+
         // Special markers used by the network implementation to raise callbacks
     // There are no classes with this messages types
     ANY, // any message
@@ -4,6 +4,7 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import lsr.common.PooledBuffer;
 import lsr.paxos.core.MultiPaxosImpl.Comd;
 import lsr.paxos.core.MultiPaxosImpl.Phase2a;
 import lsr.paxos.core.MultiPaxosImpl.cmd;
@@ -17,7 +18,10 @@ import lsr.paxos.storage.ConsensusInstance;
  */
 public class Propose extends Message {
     private static final long serialVersionUID = 1L;
-    private final byte[] value;
+    private byte[] value;
+    /* Set instead of value when decoded from a pooled buffer */
+    private ByteBuffer valueSlice;
+    private PooledBuffer owner;
     private final int instanceId;
     private int ballot; 							/* This field is only added for compatibility with HOL generated code */
     /**
@@ -51,7 +55,7 @@ public class Propose extends Message {
     
     public Phase2a<byte[]> getPhase2a()
     {
-    	cmd<byte[]> comd = new Comd<byte[]>(value);
+    	cmd<byte[]> comd = new Comd<byte[]>(getValue());
     	Phase2a<byte[]> msg = new Phase2a<byte[]>(instanceId, ballot, comd);
         return msg;
     }
@@ -71,6 +75,53 @@ public class Propose extends Message {
         input.readFully(value);
     }
 
+    /**
+     * Creates new <code>Propose</code> message from a pooled buffer. The value
+     * is not copied, it stays in the buffer until {@link #getValue()} is
+     * called or the message is released.
+     * 
+     * @param input - the buffer with serialized message, at its position
+     * @param owner - the pooled buffer <code>input</code> belongs to
+     */
+    Propose(ByteBuffer input, PooledBuffer owner) {
+        super(input);
+        instanceId = input.getInt();
+        ballot = input.getInt();
+        readValue(input, owner);
+    }
+
+    /**
+     * Reads the fields of a <code>Propose</code> sent inside a
+     * <code>ProposeBatch</code> from a pooled buffer.
+     */
+    Propose(int view, ByteBuffer input, PooledBuffer owner) {
+        super(view);
+        instanceId = input.getInt();
+        ballot = input.getInt();
+        readValue(input, owner);
+    }
+
+    private void readValue(ByteBuffer input, PooledBuffer owner) {
+        int length = input.getInt();
+        valueSlice = input.slice();
+        valueSlice.limit(length);
+        input.position(input.position() + length);
+        this.owner = owner;
+        owner.retain();
+    }
+
+    /**
+     * Reads the fields of a <code>Propose</code> sent inside a
+     * <code>ProposeBatch</code>, which carries the view for all of them.
+     */
+    Propose(int view, DataInputStream input) throws IOException {
+        super(view);
+        instanceId = input.readInt();
+        ballot = input.readInt();
+        value = new byte[input.readInt()];
+        input.readFully(value);
+    }
+
     public void setBallot(int b)
     {
     	ballot = b;
@@ -95,15 +146,51 @@ public class Propose extends Message {
      * @return value of proposed instance
      */
     public byte[] getValue() {
+        if (value == null) {
+            if (valueSlice == null) {
+                throw new IllegalStateException("Value accessed after release");
+            }
+            // The only copy of the value, kept by the log
+            value = new byte[valueSlice.remaining()];
+            valueSlice.duplicate().get(value);
+        }
         return value;
     }
 
+    /**
+     * Returns read-only view of the proposed value, without copying it if the
+     * message was decoded from a pooled buffer. Valid until release.
+     * 
+     * @return the value of proposed instance
+     */
+    public ByteBuffer getValueBuffer() {
+        if (value != null) {
+            return ByteBuffer.wrap(value).asReadOnlyBuffer();
+        }
+        if (valueSlice == null) {
+            throw new IllegalStateException("Value accessed after release");
+        }
+        return valueSlice.asReadOnlyBuffer();
+    }
+
+    public void release() {
+        if (owner != null) {
+            valueSlice = null;
+            owner.release();
+            owner = null;
+        }
+    }
+
+    private int valueLength() {
+        return value != null ? value.length : valueSlice.remaining();
+    }
+
     public MessageType getType() {
         return MessageType.Propose;
     }
 
     public int byteSize() {
-        return super.byteSize() + 4 + 4 + 4 + value.length;
+        return super.byteSize() + 4 + 4 + 4 + valueLength();
     }
 
     public String toString() {
@@ -113,7 +200,11 @@ public class Propose extends Message {
     protected void write(ByteBuffer bb) {
         bb.putInt(instanceId);
         bb.putInt(ballot);
-        bb.putInt(value.length);
-        bb.put(value);
+        bb.putInt(valueLength());
+        if (value != null) {
+            bb.put(value);
+        } else {
+            bb.put(valueSlice.duplicate());
+        }
     }
 }
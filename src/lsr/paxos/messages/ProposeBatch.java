@@ -0,0 +1,100 @@
+package lsr.paxos.messages;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lsr.common.PooledBuffer;
+
+/**
+ * Several <code>Propose</code> messages for consecutive instances sent by the
+ * leader as a single frame. All of them share the view of the frame.
+ */
+public class ProposeBatch extends Message {
+    private static final long serialVersionUID = 1L;
+    private final List<Propose> proposes;
+
+    /**
+     * Creates new frame with the given proposals.
+     *
+     * @param view - sender view number
+     * @param proposes - the proposals, all in the given view
+     */
+    public ProposeBatch(int view, List<Propose> proposes) {
+        super(view);
+        this.proposes = proposes;
+    }
+
+    /**
+     * Creates new <code>ProposeBatch</code> message from serialized input
+     * stream.
+     *
+     * @param input - the input stream with serialized message
+     * @throws IOException if I/O error occurs while deserializing
+     */
+    public ProposeBatch(DataInputStream input) throws IOException {
+        super(input);
+        int count = input.readInt();
+        proposes = new ArrayList<Propose>(count);
+        for (int i = 0; i < count; i++) {
+            proposes.add(new Propose(view, input));
+        }
+    }
+
+    /**
+     * Creates new <code>ProposeBatch</code> message from a pooled buffer,
+     * without copying the values.
+     *
+     * @param input - the buffer with serialized message, at its position
+     * @param owner - the pooled buffer <code>input</code> belongs to
+     */
+    ProposeBatch(ByteBuffer input, PooledBuffer owner) {
+        super(input);
+        int count = input.getInt();
+        proposes = new ArrayList<Propose>(count);
+        for (int i = 0; i < count; i++) {
+            proposes.add(new Propose(view, input, owner));
+        }
+    }
+
+    public void release() {
+        for (Propose propose : proposes) {
+            propose.release();
+        }
+    }
+
+    /**
+     * Returns the proposals carried by this frame.
+     *
+     * @return the proposals, in order of instance ids
+     */
+    public List<Propose> getProposes() {
+        return Collections.unmodifiableList(proposes);
+    }
+
+    public MessageType getType() {
+        return MessageType.ProposeBatch;
+    }
+
+    public int byteSize() {
+        int size = super.byteSize() + 4;
+        for (Propose propose : proposes) {
+            size += propose.byteSize() - Message.HEADER_SIZE;
+        }
+        return size;
+    }
+
+    public String toString() {
+        return "ProposeBatch(" + super.toString() + ", size: " + proposes.size() + ")";
+    }
+
+    protected void write(ByteBuffer bb) {
+        bb.putInt(proposes.size());
+        for (Propose propose : proposes) {
+            propose.write(bb);
+        }
+    }
+}
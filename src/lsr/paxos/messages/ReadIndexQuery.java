@@ -0,0 +1,59 @@
+package lsr.paxos.messages;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sent by a follower to the leader to learn the read index for the read-only
+ * requests received since its previous query. Answered with a
+ * <code>ReadIndexReply</code>.
+ */
+public class ReadIndexQuery extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private final int queryId;
+
+    /**
+     * Creates new query.
+     *
+     * @param view - sender view number
+     * @param queryId - id of the query, sent back in the reply
+     */
+    public ReadIndexQuery(int view, int queryId) {
+        super(view);
+        this.queryId = queryId;
+    }
+
+    /**
+     * Creates new <code>ReadIndexQuery</code> message from serialized input
+     * stream.
+     *
+     * @param input - the input stream with serialized message
+     * @throws IOException if I/O error occurs while deserializing
+     */
+    public ReadIndexQuery(DataInputStream input) throws IOException {
+        super(input);
+        queryId = input.readInt();
+    }
+
+    public int getQueryId() {
+        return queryId;
+    }
+
+    public MessageType getType() {
+        return MessageType.ReadIndexQuery;
+    }
+
+    public int byteSize() {
+        return super.byteSize() + 4;
+    }
+
+    public String toString() {
+        return "ReadIndexQuery (" + super.toString() + ") id: " + queryId;
+    }
+
+    protected void write(ByteBuffer bb) {
+        bb.putInt(queryId);
+    }
+}
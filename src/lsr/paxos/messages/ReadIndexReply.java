@@ -0,0 +1,70 @@
+package lsr.paxos.messages;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Answer of the leader to a <code>ReadIndexQuery</code>. Every request decided
+ * before the query was received is in an instance below the read index. The
+ * read index is -1 if the leader does not hold its lease, in which case the
+ * reads must be ordered.
+ */
+public class ReadIndexReply extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private final int queryId;
+    private final int readIndex;
+
+    /**
+     * Creates new reply.
+     *
+     * @param view - sender view number
+     * @param queryId - id of the answered query
+     * @param readIndex - the read index, or -1
+     */
+    public ReadIndexReply(int view, int queryId, int readIndex) {
+        super(view);
+        this.queryId = queryId;
+        this.readIndex = readIndex;
+    }
+
+    /**
+     * Creates new <code>ReadIndexReply</code> message from serialized input
+     * stream.
+     *
+     * @param input - the input stream with serialized message
+     * @throws IOException if I/O error occurs while deserializing
+     */
+    public ReadIndexReply(DataInputStream input) throws IOException {
+        super(input);
+        queryId = input.readInt();
+        readIndex = input.readInt();
+    }
+
+    public int getQueryId() {
+        return queryId;
+    }
+
+    public int getReadIndex() {
+        return readIndex;
+    }
+
+    public MessageType getType() {
+        return MessageType.ReadIndexReply;
+    }
+
+    public int byteSize() {
+        return super.byteSize() + 4 + 4;
+    }
+
+    public String toString() {
+        return "ReadIndexReply (" + super.toString() + ") id: " + queryId + ", read index: " +
+               readIndex;
+    }
+
+    protected void write(ByteBuffer bb) {
+        bb.putInt(queryId);
+        bb.putInt(readIndex);
+    }
+}
@@ -86,7 +86,7 @@ public class Send1b extends Message {
     public Phase1b<byte[]> getPhase1b() {
     	ListBuffer<consensus_ext<byte[], BoxedUnit>> lastvs = new ListBuffer<consensus_ext<byte[], BoxedUnit>>();
     	int length = prepared.length;
-    	int numReplicas = processDescriptor.numReplicas;
+    	int numReplicas = processDescriptor().numReplicas;
     	for(int i = 0; i < length; i++)
     	{
     		lastvs.$plus$eq(prepared[i].getConsensus(numReplicas));
@@ -0,0 +1,120 @@
+package lsr.paxos.messages;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Part of a serialized snapshot sent by the catch-up mechanism, answered with
+ * a <code>SnapshotChunkAck</code>. The snapshot is identified by the id of
+ * the next instance it covers; the parts are sent in order of their offsets.
+ */
+public class SnapshotChunk extends Message {
+    private static final long serialVersionUID = 1L;
+
+    /** Forwards the time of request, allowing dynamic timeouts for catch-up */
+    private final long requestTime;
+    private final int snapshotId;
+    private final long totalSize;
+    private final long offset;
+    private final int checksum;
+    private final byte[] data;
+
+    /**
+     * Creates new chunk, computing the checksum of the data.
+     *
+     * @param view - sender view number
+     * @param requestTime - the time the catch-up query was sent
+     * @param snapshotId - next instance id of the snapshot
+     * @param totalSize - size of the whole serialized snapshot
+     * @param offset - position of the data in the serialized snapshot
+     * @param data - the part of the serialized snapshot
+     */
+    public SnapshotChunk(int view, long requestTime, int snapshotId, long totalSize, long offset,
+                         byte[] data) {
+        super(view);
+        this.requestTime = requestTime;
+        this.snapshotId = snapshotId;
+        this.totalSize = totalSize;
+        this.offset = offset;
+        this.data = data;
+        this.checksum = computeChecksum(data);
+    }
+
+    /**
+     * Creates new <code>SnapshotChunk</code> message from serialized input
+     * stream.
+     *
+     * @param input - the input stream with serialized message
+     * @throws IOException if I/O error occurs while deserializing
+     */
+    public SnapshotChunk(DataInputStream input) throws IOException {
+        super(input);
+        requestTime = input.readLong();
+        snapshotId = input.readInt();
+        totalSize = input.readLong();
+        offset = input.readLong();
+        checksum = input.readInt();
+        data = new byte[input.readInt()];
+        input.readFully(data);
+    }
+
+    private static int computeChecksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Checks the data against the checksum computed by the sender.
+     *
+     * @return true if the data was not corrupted
+     */
+    public boolean isValid() {
+        return computeChecksum(data) == checksum;
+    }
+
+    public long getRequestTime() {
+        return requestTime;
+    }
+
+    public int getSnapshotId() {
+        return snapshotId;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public MessageType getType() {
+        return MessageType.SnapshotChunk;
+    }
+
+    public int byteSize() {
+        return super.byteSize() + 8 + 4 + 8 + 8 + 4 + 4 + data.length;
+    }
+
+    public String toString() {
+        return "SnapshotChunk (" + super.toString() + ") snapshot: " + snapshotId + ", offset: " +
+               offset + ", size: " + data.length + "/" + totalSize;
+    }
+
+    protected void write(ByteBuffer bb) {
+        bb.putLong(requestTime);
+        bb.putInt(snapshotId);
+        bb.putLong(totalSize);
+        bb.putLong(offset);
+        bb.putInt(checksum);
+        bb.putInt(data.length);
+        bb.put(data);
+    }
+}
@@ -0,0 +1,78 @@
+package lsr.paxos.messages;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Acknowledges the parts of a snapshot received so far. All bytes below the
+ * offset were received; the sender continues (or, if <code>resend</code> is
+ * set, restarts) sending from the offset.
+ */
+public class SnapshotChunkAck extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private final int snapshotId;
+    private final long offset;
+    private final boolean resend;
+
+    /**
+     * Creates new acknowledgment.
+     *
+     * @param view - sender view number
+     * @param snapshotId - next instance id of the snapshot
+     * @param offset - the number of bytes received in order
+     * @param resend - true if the chunks following the offset were dropped
+     */
+    public SnapshotChunkAck(int view, int snapshotId, long offset, boolean resend) {
+        super(view);
+        this.snapshotId = snapshotId;
+        this.offset = offset;
+        this.resend = resend;
+    }
+
+    /**
+     * Creates new <code>SnapshotChunkAck</code> message from serialized input
+     * stream.
+     *
+     * @param input - the input stream with serialized message
+     * @throws IOException if I/O error occurs while deserializing
+     */
+    public SnapshotChunkAck(DataInputStream input) throws IOException {
+        super(input);
+        snapshotId = input.readInt();
+        offset = input.readLong();
+        resend = input.readBoolean();
+    }
+
+    public int getSnapshotId() {
+        return snapshotId;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public boolean isResend() {
+        return resend;
+    }
+
+    public MessageType getType() {
+        return MessageType.SnapshotChunkAck;
+    }
+
+    public int byteSize() {
+        return super.byteSize() + 4 + 8 + 1;
+    }
+
+    public String toString() {
+        return "SnapshotChunkAck (" + super.toString() + ") snapshot: " + snapshotId +
+               ", offset: " + offset + (resend ? ", resend" : "");
+    }
+
+    protected void write(ByteBuffer bb) {
+        bb.putInt(snapshotId);
+        bb.putLong(offset);
+        bb.put((byte) (resend ? 1 : 0));
+    }
+}
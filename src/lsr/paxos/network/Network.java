@@ -7,6 +7,8 @@ import java.util.Collections;
 import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import lsr.paxos.messages.Message;
@@ -23,13 +25,12 @@ public abstract class Network {
     // // // Public interface - send, send to all and add / remove listeners //
     // // //
 	
-	public final static BitSet OTHERS = OTHERS_initializer();
-
-    private static BitSet OTHERS_initializer() {
-        BitSet bs = new BitSet(processDescriptor.numReplicas);
-        bs.set(0, processDescriptor.numReplicas);
-        bs.clear(processDescriptor.localId);
-        return bs;
+    /**
+     * Returns the set of all replicas except the local one. Must not be
+     * modified.
+     */
+    public static BitSet getOthers() {
+        return currentScope().others;
     }
 
     /**
@@ -70,7 +71,7 @@ public abstract class Network {
      * same message - this causes a {@link RuntimeException}.
      */
     final public static void addMessageListener(MessageType mType, MessageHandler handler) {
-        CopyOnWriteArrayList<MessageHandler> handlers = msgListeners.get(mType);
+        CopyOnWriteArrayList<MessageHandler> handlers = currentScope().listeners.get(mType);
         boolean wasAdded = handlers.addIfAbsent(handler);
         if (!wasAdded) {
             throw new RuntimeException("Handler already registered");
@@ -82,7 +83,7 @@ public abstract class Network {
      * if the listener is not on list.
      */
     final public static void removeMessageListener(MessageType mType, MessageHandler handler) {
-        CopyOnWriteArrayList<MessageHandler> handlers = msgListeners.get(mType);
+        CopyOnWriteArrayList<MessageHandler> handlers = currentScope().listeners.get(mType);
         boolean wasPresent = handlers.remove(handler);
         if (!wasPresent) {
             throw new RuntimeException("Handler not registered");
@@ -90,28 +91,57 @@ public abstract class Network {
     }
 
     public static void removeAllMessageListeners() {
-        msgListeners.clear();
+        Map<MessageType, CopyOnWriteArrayList<MessageHandler>> listeners =
+                currentScope().listeners;
         for (MessageType ms : MessageType.values()) {
-            msgListeners.put(ms, new CopyOnWriteArrayList<MessageHandler>());
+            listeners.put(ms, new CopyOnWriteArrayList<MessageHandler>());
         }
     }
 
     // // // Protected part - for implementing the subclasses // // //
 
     /**
-     * For each message type, keeps a list of it's listeners.
-     * 
-     * The list is shared between networks
+     * The listeners and the other replicas, of one replica. The listeners
+     * are shared between the networks of the replica.
      */
-    protected static final Map<MessageType, CopyOnWriteArrayList<MessageHandler>> msgListeners;
-    static {
-        msgListeners = Collections.synchronizedMap(
-                new EnumMap<MessageType, CopyOnWriteArrayList<MessageHandler>>(MessageType.class));
-        for (MessageType ms : MessageType.values()) {
-            msgListeners.put(ms, new CopyOnWriteArrayList<MessageHandler>());
+    private static final class ReplicaScope {
+        /** For each message type, keeps a list of it's listeners */
+        final Map<MessageType, CopyOnWriteArrayList<MessageHandler>> listeners;
+        final BitSet others;
+
+        ReplicaScope() {
+            listeners = Collections.synchronizedMap(
+                    new EnumMap<MessageType, CopyOnWriteArrayList<MessageHandler>>(
+                            MessageType.class));
+            for (MessageType ms : MessageType.values()) {
+                listeners.put(ms, new CopyOnWriteArrayList<MessageHandler>());
+            }
+            others = new BitSet(processDescriptor().numReplicas);
+            others.set(0, processDescriptor().numReplicas);
+            others.clear(processDescriptor().localId);
         }
     }
 
+    /* By replica id; a single one unless several replicas run in this JVM */
+    private static final ConcurrentMap<Integer, ReplicaScope> scopes =
+            new ConcurrentHashMap<Integer, ReplicaScope>();
+
+    private static ReplicaScope currentScope() {
+        int localId = processDescriptor().localId;
+        ReplicaScope scope = scopes.get(localId);
+        if (scope == null) {
+            ReplicaScope created = new ReplicaScope();
+            scope = scopes.putIfAbsent(localId, created);
+            if (scope == null) {
+                scope = created;
+            }
+        }
+        return scope;
+    }
+
+    /** The scope of the replica which created this network */
+    private final ReplicaScope scope = currentScope();
+
     /**
      * Notifies all active network listeners that new message was received.
      */
@@ -129,7 +159,7 @@ public abstract class Network {
      * Notifies all active network listeners that message was sent.
      */
     protected final void fireSentMessage(Message msg, BitSet dest) {
-        List<MessageHandler> handlers = msgListeners.get(MessageType.SENT);
+        List<MessageHandler> handlers = scope.listeners.get(MessageType.SENT);
         for (MessageHandler listener : handlers) {
             
         	listener.onMessageSent(msg, dest);
@@ -142,7 +172,7 @@ public abstract class Network {
      * Returns if there was at least one listener.
      */
     private final boolean broadcastToListeners(MessageType type, Message msg, int sender) {
-        List<MessageHandler> handlers = msgListeners.get(type);
+        List<MessageHandler> handlers = scope.listeners.get(type);
         boolean handled = false;
         for (MessageHandler listener : handlers) {
             listener.onMessageReceived(msg, sender);
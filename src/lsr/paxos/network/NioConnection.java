@@ -0,0 +1,357 @@
+package lsr.paxos.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import lsr.common.PID;
+import lsr.common.ProcessDescriptor;
+import lsr.paxos.messages.Message;
+import lsr.paxos.messages.MessageFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking TCP connection to other replica, handled by a
+ * <code>NioSelectorLoop</code>. As in <code>TcpConnection</code>, the replica
+ * with lower id waits for the connection and the other one connects actively,
+ * then sends its id.
+ * <p>
+ * Outgoing messages are framed with their length and copied by the sending
+ * thread into a direct ring buffer. The selector thread writes the unsent part
+ * of the ring with a single gathering write, so messages queued meanwhile are
+ * coalesced. A sender blocks while the ring is full. Messages sent while the
+ * connection is down are dropped, as in <code>TcpConnection</code>.
+ * <p>
+ * Incoming data is read into a reusable buffer and messages are deserialized
+ * directly from it.
+ *
+ * @see NioNetwork
+ */
+final class NioConnection implements NioSelectorLoop.Handler {
+    private final NioNetwork network;
+    private final PID replica;
+    private final boolean active;
+    private final NioSelectorLoop loop;
+
+    /* Selector thread only */
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer input = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer[] outputSlices = new ByteBuffer[2];
+
+    /* Output ring; the bytes in [flushed, written) wait to be sent */
+    private final ByteBuffer ring;
+    private final int capacity;
+    /* Guarded by this */
+    private long written = 0;
+    private long flushed = 0;
+    private boolean connected = false;
+    private boolean writeScheduled = false;
+    /* Changed on each (dis)connection; aborts messages being copied */
+    private int generation = 0;
+
+    /* Serializes the senders, so that the frames do not interleave */
+    private final Object sendLock = new Object();
+    /* Used only with sendLock held */
+    private final ByteBuffer ringInput;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+
+    NioConnection(NioNetwork network, PID replica, boolean active, NioSelectorLoop loop,
+                  int bufferSize) {
+        this.network = network;
+        this.replica = replica;
+        this.active = active;
+        this.loop = loop;
+        this.capacity = bufferSize;
+        ring = ByteBuffer.allocateDirect(bufferSize);
+        ringInput = ring.duplicate();
+        outputSlices[0] = ring.duplicate();
+        outputSlices[1] = ring.duplicate();
+        logger.info("Creating connection: " + replica + " - " + active);
+    }
+
+    NioSelectorLoop getLoop() {
+        return loop;
+    }
+
+    void start() {
+        if (active) {
+            loop.invoke(new Runnable() {
+                public void run() {
+                    connect();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues the message for sending. Blocks while the output ring is full.
+     *
+     * @param message - serialized message
+     * @return false if the connection is down and the message was dropped
+     */
+    boolean send(byte[] message) {
+        synchronized (sendLock) {
+            int startGeneration;
+            synchronized (this) {
+                if (!connected) {
+                    return false;
+                }
+                startGeneration = generation;
+            }
+            header.clear();
+            header.putInt(message.length);
+            return copyToRing(header.array(), startGeneration) &&
+                   copyToRing(message, startGeneration);
+        }
+    }
+
+    private boolean copyToRing(byte[] data, int startGeneration) {
+        int offset = 0;
+        while (offset < data.length) {
+            int start;
+            int length;
+            synchronized (this) {
+                while (connected && generation == startGeneration && written - flushed == capacity) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException("Thread interrupted", e);
+                    }
+                }
+                if (!connected || generation != startGeneration) {
+                    return false;
+                }
+                start = (int) (written % capacity);
+                length = (int) Math.min(capacity - (written - flushed), data.length - offset);
+                length = Math.min(length, capacity - start);
+            }
+
+            // The region is not read by the selector thread until published
+            ringInput.limit(capacity);
+            ringInput.position(start);
+            ringInput.put(data, offset, length);
+            offset += length;
+
+            synchronized (this) {
+                if (generation != startGeneration) {
+                    return false;
+                }
+                written += length;
+                if (!writeScheduled) {
+                    writeScheduled = true;
+                    loop.invoke(enableWrite);
+                }
+            }
+        }
+        return true;
+    }
+
+    private final Runnable enableWrite = new Runnable() {
+        public void run() {
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    };
+
+    public void handleReady(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                connected(SelectionKey.OP_READ);
+                return;
+            }
+            if (key.isReadable()) {
+                handleRead();
+            }
+            if (key.isValid() && key.isWritable()) {
+                handleWrite();
+            }
+        } catch (IOException e) {
+            logger.warn("Connection with replica " + replica.getId() + " failed: " +
+                        e.getMessage());
+            close();
+        } catch (IllegalArgumentException e) {
+            // problem with deserialization, so establish the connection again
+            logger.error("Error deserializing msg", e);
+            close();
+        }
+    }
+
+    /**
+     * Takes over the channel accepted from the replica. Must be called in the
+     * selector thread of this connection.
+     *
+     * @param channel - the accepted channel, after the handshake
+     * @param key - the key of the channel in this connection's selector, or
+     *            null if not registered there
+     */
+    void adopt(SocketChannel channel, SelectionKey key) {
+        close();
+        this.channel = channel;
+        this.key = key;
+        try {
+            if (key == null) {
+                this.key = channel.register(loop.getSelector(), 0, this);
+            } else {
+                key.attach(this);
+            }
+            connected(SelectionKey.OP_READ);
+        } catch (ClosedChannelException e) {
+            logger.warn("Accepted connection closed: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void connect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setReceiveBufferSize(128 * 1024);
+            channel.socket().setSendBufferSize(128 * 1024);
+            channel.socket().setTcpNoDelay(true);
+            logger.info("Connecting to: " + replica);
+            key = channel.register(loop.getSelector(), 0, this);
+            if (channel.connect(new InetSocketAddress(replica.getHostname(),
+                    replica.getReplicaPort()))) {
+                connected(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            logger.warn("TCP connection with replica " + replica.getId() + " failed");
+            close();
+        }
+    }
+
+    /** Starts a new generation of the connection */
+    private void connected(int ops) {
+        logger.info("Tcp connected " + replica.getId());
+        // senders of the previous generation give up once they notice it
+        synchronized (sendLock) {
+            synchronized (this) {
+                written = 0;
+                flushed = 0;
+                generation++;
+                if (active) {
+                    // the first bytes on the connection identify this replica
+                    ringInput.limit(capacity);
+                    ringInput.position(0);
+                    ringInput.putInt(ProcessDescriptor.getInstance().localId);
+                    written = 4;
+                }
+                writeScheduled = written > 0;
+                connected = true;
+                notifyAll();
+            }
+        }
+        input.clear();
+        key.interestOps(writeScheduled ? ops | SelectionKey.OP_WRITE : ops);
+    }
+
+    private void handleRead() throws IOException {
+        int read = channel.read(input);
+        if (read < 0) {
+            throw new IOException("End of stream");
+        }
+
+        input.flip();
+        while (input.remaining() >= 4) {
+            int length = input.getInt(input.position());
+            if (input.remaining() < 4 + length) {
+                if (4 + length > input.capacity()) {
+                    // grow for the message; data read so far is kept
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                    bigger.put(input);
+                    input = bigger;
+                    return;
+                }
+                break;
+            }
+            Message message = MessageFactory.create(new DataInputStream(
+                    new ByteArrayInputStream(input.array(), input.arrayOffset() +
+                                                            input.position() + 4, length)));
+            input.position(input.position() + 4 + length);
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("Received [" + replica.getId() + "], message : " + message +
+                             " size: " + length);
+            }
+            network.fireReceiveMessage(message, replica.getId());
+        }
+        input.compact();
+    }
+
+    private void handleWrite() throws IOException {
+        long from;
+        long to;
+        synchronized (this) {
+            from = flushed;
+            to = written;
+        }
+
+        int start = (int) (from % capacity);
+        int length = (int) (to - from);
+        int first = Math.min(length, capacity - start);
+        outputSlices[0].limit(start + first);
+        outputSlices[0].position(start);
+        outputSlices[1].limit(length - first);
+        outputSlices[1].position(0);
+
+        long sent = channel.write(outputSlices, 0, length > first ? 2 : 1);
+
+        synchronized (this) {
+            flushed += sent;
+            notifyAll();
+            if (flushed == written) {
+                writeScheduled = false;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /** Closes the channel; an active connection reconnects after a while */
+    private void close() {
+        synchronized (this) {
+            if (connected) {
+                logger.info("Closing connection to " + replica.getId());
+            }
+            connected = false;
+            generation++;
+            written = 0;
+            flushed = 0;
+            writeScheduled = false;
+            notifyAll();
+        }
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Error closing socket: " + e.getMessage());
+            }
+            channel = null;
+
+            if (active) {
+                loop.schedule(new Runnable() {
+                    public void run() {
+                        connect();
+                    }
+                }, ProcessDescriptor.getInstance().tcpReconnectTimeout);
+            }
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(NioConnection.class);
+}
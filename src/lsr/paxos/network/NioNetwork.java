@@ -0,0 +1,215 @@
+package lsr.paxos.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+
+import lsr.common.ProcessDescriptor;
+import lsr.paxos.messages.Message;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replica-to-replica network using non-blocking sockets. All connections are
+ * handled by a few <code>NioSelectorLoop</code> threads, instead of a sender
+ * and a receiver thread per connection as in <code>TcpNetwork</code>.
+ * <p>
+ * Messages are framed with their length, so all replicas must use the same
+ * network implementation.
+ *
+ * @see NioConnection
+ */
+public class NioNetwork extends Network {
+    private final NioConnection[] connections;
+    private final NioSelectorLoop[] loops;
+    private final ProcessDescriptor p;
+    private final ServerSocketChannel server;
+    private boolean started = false;
+
+    /**
+     * Creates new network for handling connections with other replicas.
+     *
+     * @throws IOException if opening server socket fails
+     */
+    public NioNetwork() throws IOException {
+        this.p = ProcessDescriptor.getInstance();
+        this.connections = new NioConnection[p.numReplicas];
+
+        this.loops = new NioSelectorLoop[Math.max(1, Math.min(p.replicaSelectorThreads,
+                p.numReplicas - 1))];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioSelectorLoop(i);
+        }
+
+        logger.info("Opening port: " + p.getLocalProcess().getReplicaPort());
+        server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(256 * 1024);
+        server.socket().bind(new InetSocketAddress((InetAddress) null,
+                p.getLocalProcess().getReplicaPort()));
+        server.configureBlocking(false);
+    }
+
+    @Override
+    public void start() {
+        if (!started) {
+            for (int i = 0; i < connections.length; i++) {
+                if (i != p.localId) {
+                    connections[i] = new NioConnection(this, p.config.getProcess(i), i > p.localId,
+                            loops[i % loops.length], p.replicaSendBufferSize);
+                }
+            }
+            for (NioSelectorLoop loop : loops) {
+                loop.start();
+            }
+            for (NioConnection connection : connections) {
+                if (connection != null) {
+                    connection.start();
+                }
+            }
+            // Accept connections once the connections are initialized
+            final NioSelectorLoop acceptLoop = loops[0];
+            acceptLoop.invoke(new Runnable() {
+                public void run() {
+                    try {
+                        server.register(acceptLoop.getSelector(), SelectionKey.OP_ACCEPT,
+                                new Acceptor(acceptLoop));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            started = true;
+        }
+    }
+
+    /** Accepts incoming connections */
+    private final class Acceptor implements NioSelectorLoop.Handler {
+        private final NioSelectorLoop loop;
+
+        Acceptor(NioSelectorLoop loop) {
+            this.loop = loop;
+        }
+
+        public void handleReady(SelectionKey key) {
+            try {
+                SocketChannel channel = server.accept();
+                if (channel == null) {
+                    return;
+                }
+                logger.info("Received connection from " +
+                            channel.socket().getRemoteSocketAddress());
+                channel.configureBlocking(false);
+                channel.socket().setSendBufferSize(128 * 1024);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(loop.getSelector(), SelectionKey.OP_READ, new Handshake(loop,
+                        channel));
+            } catch (IOException e) {
+                // TODO: probably too many open files exception occurred
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /** Reads the id of the replica on an accepted connection */
+    private final class Handshake implements NioSelectorLoop.Handler {
+        private final NioSelectorLoop loop;
+        private final SocketChannel channel;
+        private final ByteBuffer id = ByteBuffer.allocate(4);
+
+        Handshake(NioSelectorLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        public void handleReady(final SelectionKey key) {
+            try {
+                if (channel.read(id) < 0) {
+                    throw new IOException("End of stream");
+                }
+                if (id.hasRemaining()) {
+                    return;
+                }
+                int replicaId = id.getInt(0);
+
+                if (replicaId < 0 || replicaId >= p.numReplicas) {
+                    logger.warn("Remote host id is out of range: " + replicaId);
+                    key.cancel();
+                    channel.close();
+                    return;
+                }
+                if (replicaId == p.localId) {
+                    logger.warn("Remote replica has same id as local: " + replicaId);
+                    key.cancel();
+                    channel.close();
+                    return;
+                }
+
+                final NioConnection connection = connections[replicaId];
+                if (connection.getLoop() == loop) {
+                    connection.adopt(channel, key);
+                } else {
+                    key.cancel();
+                    connection.getLoop().invoke(new Runnable() {
+                        public void run() {
+                            connection.adopt(channel, null);
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                logger.warn("Initialization of accepted connection failed.", e);
+                key.cancel();
+                try {
+                    channel.close();
+                } catch (IOException e1) {
+                }
+            }
+        }
+    }
+
+    public void sendMessage(Message message, BitSet destinations) {
+        assert !destinations.isEmpty() : "Sending a message to no one";
+
+        byte[] bytes = message.toByteArray();
+        // do not send message to us (just fire event)
+        if (destinations.get(p.localId)) {
+            fireReceiveMessage(message, p.localId);
+        }
+
+        for (int i = destinations.nextSetBit(0); i >= 0; i = destinations.nextSetBit(i + 1)) {
+            if (i != p.localId) {
+                connections[i].send(bytes);
+            }
+        }
+
+        // Not really sent, only queued for sending,
+        // but it's good enough for the notification
+        fireSentMessage(message, destinations);
+    }
+
+    public void sendMessage(Message message, int destination) {
+        BitSet target = new BitSet();
+        target.set(destination);
+        sendMessage(message, target);
+    }
+
+    public void sendToAll(Message message) {
+        BitSet all = new BitSet(p.numReplicas);
+        all.set(0, p.numReplicas);
+        sendMessage(message, all);
+    }
+
+    public void sendToOthers(Message message) {
+        BitSet dests = new BitSet(p.numReplicas);
+        dests.set(0, p.numReplicas);
+        dests.clear(p.localId);
+        sendMessage(message, dests);
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(NioNetwork.class);
+}
@@ -0,0 +1,136 @@
+package lsr.paxos.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import lsr.common.KillOnExceptionHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread handling the channels of <code>NioNetwork</code> registered in its
+ * selector. Each selected key is passed to the {@link Handler} attached to it.
+ * <p>
+ * Channels may only be registered and changed from this thread; other threads
+ * use {@link #invoke(Runnable)} and {@link #schedule(Runnable, long)}.
+ */
+final class NioSelectorLoop extends Thread {
+    /** Reacts on the readiness of a channel */
+    interface Handler {
+        void handleReady(SelectionKey key);
+    }
+
+    private final Selector selector;
+
+    /* Guarded by tasks */
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final List<TimedTask> timedTasks = new ArrayList<TimedTask>();
+
+    /** Upper bound on the time spent in select, in ms */
+    private static final long MAX_SELECT_TIME = 100;
+
+    NioSelectorLoop(int i) throws IOException {
+        super("ReplicaIO-" + i);
+        setDaemon(true);
+        setUncaughtExceptionHandler(new KillOnExceptionHandler());
+        selector = Selector.open();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Runs the task in this thread as soon as possible. May be called from any
+     * thread.
+     */
+    void invoke(Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task in this thread after the given delay in ms. May be called
+     * from any thread.
+     */
+    void schedule(Runnable task, long delay) {
+        synchronized (tasks) {
+            timedTasks.add(new TimedTask(task, System.currentTimeMillis() + delay));
+        }
+        selector.wakeup();
+    }
+
+    public void run() {
+        logger.info(getName() + " thread started");
+        while (!Thread.interrupted()) {
+            long timeout = runTasks();
+            try {
+                if (selector.select(timeout) > 0) {
+                    processSelectedKeys();
+                }
+            } catch (IOException e) {
+                // it shouldn't happen in normal situation
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            if (key.isValid()) {
+                ((Handler) key.attachment()).handleReady(key);
+            }
+        }
+    }
+
+    /**
+     * Runs the pending and due tasks.
+     *
+     * @return time in ms until the next timed task is due
+     */
+    private long runTasks() {
+        List<Runnable> ready = new ArrayList<Runnable>();
+        long timeout = MAX_SELECT_TIME;
+        long now = System.currentTimeMillis();
+        synchronized (tasks) {
+            ready.addAll(tasks);
+            tasks.clear();
+            Iterator<TimedTask> it = timedTasks.iterator();
+            while (it.hasNext()) {
+                TimedTask timed = it.next();
+                if (timed.deadline <= now) {
+                    ready.add(timed.task);
+                    it.remove();
+                } else {
+                    timeout = Math.min(timeout, timed.deadline - now);
+                }
+            }
+        }
+        for (Runnable task : ready) {
+            task.run();
+        }
+        return timeout;
+    }
+
+    private static final class TimedTask {
+        final Runnable task;
+        final long deadline;
+
+        TimedTask(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(NioSelectorLoop.class);
+}
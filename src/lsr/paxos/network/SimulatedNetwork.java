@@ -0,0 +1,219 @@
+package lsr.paxos.network;
+
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import lsr.common.Configuration;
+import lsr.common.ProcessDescriptor;
+import lsr.paxos.messages.Message;
+import lsr.paxos.messages.MessageFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replica-to-replica network in memory, for a cluster running in a single JVM
+ * (see {@link ProcessDescriptor#initializeForThread}). Each link between two
+ * replicas has the latency and bandwidth set in the configuration, drops each
+ * message with probability <code>SimulatedLoss</code>, and may be cut by a
+ * partition. Messages are serialized and deserialized as on a real network.
+ * <p>
+ * The messages of a link are delivered in order, by a delivery thread of the
+ * receiving replica, when their delivery time on the wall clock has come. The
+ * losses are drawn from a generator seeded with <code>SimulatedSeed</code> and
+ * the id of the sender. The simulation is not deterministic: the order in
+ * which the replicas send their messages depends on thread scheduling, so two
+ * runs with the same seed may interleave and drop different messages.
+ * <p>
+ * The replicas sharing the same <code>Configuration</code> object form a
+ * cluster; several clusters may run in the same JVM.
+ * <p>
+ * It also carries the messages of the failure detector, so a replica using it
+ * opens no socket to the other replicas.
+ */
+public class SimulatedNetwork extends Network {
+
+    /* The networks of the replicas of each cluster in this JVM, by replica id */
+    private static final Map<Configuration, SimulatedNetwork[]> clusters =
+            new IdentityHashMap<Configuration, SimulatedNetwork[]>();
+    /* Replicas on one side of the partition; null if there is none */
+    private static volatile BitSet partition = null;
+
+    private final ProcessDescriptor p;
+    /* The networks of the replicas of this cluster; guarded by clusters */
+    private final SimulatedNetwork[] replicas;
+    private final long latencyNanos;
+    /* Nanoseconds to transmit a byte; 0 if the bandwidth is unlimited */
+    private final double nanosPerByte;
+    private final double loss;
+
+    /* Guarded by this */
+    private final Random random;
+    /* When each outgoing link finishes transmitting the queued messages */
+    private final long[] linkFree;
+
+    private final DelayQueue<Delivery> deliveries = new DelayQueue<Delivery>();
+    private final Thread deliveryThread;
+    private boolean started = false;
+
+    public SimulatedNetwork() {
+        p = ProcessDescriptor.getInstance();
+        latencyNanos = p.simulatedLatency * 1000L;
+        nanosPerByte = p.simulatedBandwidth > 0 ? 8000.0 / p.simulatedBandwidth : 0;
+        loss = p.simulatedLoss;
+        random = new Random(p.simulatedSeed + p.localId);
+        linkFree = new long[p.numReplicas];
+
+        deliveryThread = new Thread("SimulatedNetwork-" + p.localId) {
+            public void run() {
+                deliver();
+            }
+        };
+        deliveryThread.setDaemon(true);
+
+        synchronized (clusters) {
+            SimulatedNetwork[] cluster = clusters.get(p.config);
+            if (cluster == null) {
+                cluster = new SimulatedNetwork[p.numReplicas];
+                clusters.put(p.config, cluster);
+            }
+            cluster[p.localId] = this;
+            replicas = cluster;
+        }
+    }
+
+    /**
+     * Drops from now on all messages between the given replicas and the
+     * others.
+     *
+     * @param side - the replicas on one side of the partition
+     */
+    public static void partition(BitSet side) {
+        partition = (BitSet) side.clone();
+    }
+
+    /** Ends the partition */
+    public static void heal() {
+        partition = null;
+    }
+
+    public synchronized void start() {
+        // also started as the network of the failure detector
+        if (!started) {
+            deliveryThread.start();
+            started = true;
+        }
+    }
+
+    public void sendMessage(Message message, BitSet destinations) {
+        assert !destinations.isEmpty() : "Sending a message to no one";
+
+        byte[] bytes = message.toByteArray();
+        // do not send message to us (just fire event)
+        if (destinations.get(p.localId)) {
+            fireReceiveMessage(message, p.localId);
+        }
+
+        for (int i = destinations.nextSetBit(0); i >= 0; i = destinations.nextSetBit(i + 1)) {
+            if (i != p.localId) {
+                send(bytes, i);
+            }
+        }
+
+        fireSentMessage(message, destinations);
+    }
+
+    public void sendMessage(Message message, int destination) {
+        BitSet target = new BitSet();
+        target.set(destination);
+        sendMessage(message, target);
+    }
+
+    public void sendToAll(Message message) {
+        BitSet all = new BitSet(p.numReplicas);
+        all.set(0, p.numReplicas);
+        sendMessage(message, all);
+    }
+
+    public void sendToOthers(Message message) {
+        sendMessage(message, getOthers());
+    }
+
+    private void send(byte[] bytes, int destination) {
+        SimulatedNetwork receiver;
+        synchronized (clusters) {
+            receiver = replicas[destination];
+        }
+        BitSet side = partition;
+        if (receiver == null || side != null && side.get(p.localId) != side.get(destination)) {
+            return;
+        }
+
+        long deliveryTime;
+        synchronized (this) {
+            if (loss > 0 && random.nextDouble() < loss) {
+                return;
+            }
+            long now = System.nanoTime();
+            linkFree[destination] = Math.max(linkFree[destination], now) +
+                                    (long) (bytes.length * nanosPerByte);
+            deliveryTime = linkFree[destination] + latencyNanos;
+        }
+        receiver.deliveries.add(new Delivery(bytes, p.localId, deliveryTime));
+    }
+
+    private void deliver() {
+        while (true) {
+            Delivery delivery;
+            try {
+                delivery = deliveries.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Message message = MessageFactory.readByteArray(delivery.bytes);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Received from " + delivery.sender + ":" + message);
+            }
+            fireReceiveMessage(message, delivery.sender);
+        }
+    }
+
+    /** A message in flight to this replica */
+    private static final class Delivery implements Delayed {
+        private static long nextSeqNo = 0;
+
+        final byte[] bytes;
+        final int sender;
+        final long time;
+        /* Orders the messages due at the same time, as sent */
+        final long seqNo;
+
+        Delivery(byte[] bytes, int sender, long time) {
+            this.bytes = bytes;
+            this.sender = sender;
+            this.time = time;
+            synchronized (Delivery.class) {
+                seqNo = nextSeqNo++;
+            }
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            Delivery delivery = (Delivery) other;
+            if (time != delivery.time) {
+                return time < delivery.time ? -1 : 1;
+            }
+            return seqNo < delivery.seqNo ? -1 : (seqNo == delivery.seqNo ? 0 : 1);
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(SimulatedNetwork.class);
+}
@@ -11,6 +11,7 @@ import java.net.Socket;
 import java.util.concurrent.ArrayBlockingQueue;
 
 import lsr.common.KillOnExceptionHandler;
+import lsr.common.Metrics;
 import lsr.common.PID;
 import lsr.common.ProcessDescriptor;
 import lsr.paxos.messages.Message;
@@ -66,6 +67,11 @@ public class TcpConnection {
         this.senderThread = new Thread(new Sender(), "TcpSender" + this.replica.getId());
         receiverThread.setUncaughtExceptionHandler(new KillOnExceptionHandler());
         senderThread.setUncaughtExceptionHandler(new KillOnExceptionHandler());
+        Metrics.gauge("queue.TcpSender" + replica.getId(), new Metrics.Gauge() {
+            public long get() {
+                return sendQueue.size();
+            }
+        });
     }
 
     /**
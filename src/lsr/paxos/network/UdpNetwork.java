@@ -1,19 +1,19 @@
 package lsr.paxos.network;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.BitSet;
 
+import lsr.common.BufferPool;
 import lsr.common.Config;
 import lsr.common.KillOnExceptionHandler;
 import lsr.common.PID;
+import lsr.common.PooledBuffer;
 import lsr.common.ProcessDescriptor;
 import lsr.paxos.messages.Message;
 import lsr.paxos.messages.MessageFactory;
@@ -26,19 +26,24 @@ import org.slf4j.LoggerFactory;
  * other replicas and receiving messages. This class didn't provide any
  * guarantee that sent message will be received by target. It is possible that
  * some messages will be lost.
+ * <p>
+ * Datagrams are received into buffers from a pool and deserialized in place;
+ * proposed values stay in the buffer until the message is released.
  * 
  */
 public class UdpNetwork extends Network {
+    private final DatagramChannel channel;
     private final DatagramSocket datagramSocket;
+    private final BufferPool receivePool;
     private final Thread readThread;
     private final SocketAddress[] addresses;
     private final ProcessDescriptor p;
     private boolean started = false;
 
     /**
-     * @throws SocketException
+     * @throws IOException if opening the socket fails
      */
-    public UdpNetwork() throws SocketException {
+    public UdpNetwork() throws IOException {
         this.p = ProcessDescriptor.getInstance();
 
         addresses = new SocketAddress[p.numReplicas];
@@ -49,11 +54,16 @@ public class UdpNetwork extends Network {
 
         int localPort = p.getLocalProcess().getReplicaPort();
         logger.info("Opening port: " + localPort);
-        datagramSocket = new DatagramSocket(localPort);
+        channel = DatagramChannel.open();
+        datagramSocket = channel.socket();
+        datagramSocket.bind(new InetSocketAddress(localPort));
 
         datagramSocket.setReceiveBufferSize(Config.UDP_RECEIVE_BUFFER_SIZE);
         datagramSocket.setSendBufferSize(Config.UDP_SEND_BUFFER_SIZE);
 
+        receivePool = new BufferPool(p.maxUdpPacketSize + 4, p.directReceiveBuffers,
+                RECEIVE_POOL_SIZE);
+
         readThread = new Thread(new SocketReader(), "UdpReader");
         readThread.setUncaughtExceptionHandler(new KillOnExceptionHandler());
     }
@@ -76,27 +86,31 @@ public class UdpNetwork extends Network {
                         " thread started. Waiting for UDP messages");
             try {
                 while (true) {
-                    // byte[] buffer = new byte[Config.MAX_UDP_PACKET_SIZE + 4];
-                    byte[] buffer = new byte[p.maxUdpPacketSize + 4];
-                    // Read message and enqueue it for processing.
-                    DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-                    datagramSocket.receive(dp);
-
-                    ByteArrayInputStream bais = new ByteArrayInputStream(dp.getData(),
-                            dp.getOffset(), dp.getLength());
-                    DataInputStream dis = new DataInputStream(bais);
-
-                    int sender = dis.readInt();
-                    byte[] data = new byte[dp.getLength() - 4];
-                    dis.read(data);
-
-                    Message message = MessageFactory.readByteArray(data);
-
-//                    if (logger.isInfoEnabled()) {
-//                        logger.info("Received from " + sender + ":" + message);
-//                    }
-
-                    fireReceiveMessage(message, sender);
+                    PooledBuffer pooled = receivePool.acquire();
+                    try {
+                        ByteBuffer buffer = pooled.buffer();
+                        // Read message and enqueue it for processing.
+                        channel.receive(buffer);
+                        buffer.flip();
+
+                        int sender = buffer.getInt();
+                        Message message;
+                        try {
+                            message = MessageFactory.create(buffer, pooled);
+                        } catch (IllegalArgumentException e) {
+                            logger.error("Error deserializing msg from " + sender, e);
+                            continue;
+                        }
+
+//                        if (logger.isInfoEnabled()) {
+//                            logger.info("Received from " + sender + ":" + message);
+//                        }
+
+                        fireReceiveMessage(message, sender);
+                    } finally {
+                        // the message keeps its own reference if needed
+                        pooled.release();
+                    }
                 }
             } catch (IOException e) {
                 logger.error("Fatal error.", e);
@@ -174,5 +188,8 @@ public class UdpNetwork extends Network {
         sendMessage(message, dests);
 	}
 
+    /** Number of free receive buffers kept for reuse */
+    private static final int RECEIVE_POOL_SIZE = 64;
+
     private final static Logger logger = LoggerFactory.getLogger(UdpNetwork.class.getCanonicalName());
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -16,7 +16,7 @@ public class CrashStopRecovery extends RecoveryAlgorithm {
     public CrashStopRecovery(SnapshotProvider snapshotProvider)
             throws IOException {
         Storage storage = new StateReplica();
-        if (storage.getView() % processDescriptor.numReplicas == processDescriptor.localId) {
+        if (storage.getView() % processDescriptor().numReplicas == processDescriptor().localId) {
             storage.setView(storage.getView() + 1);
         }
         
@@ -42,8 +42,8 @@ public class EpochSSRecovery extends RecoveryAlgorithm implements Runnable {
                            String logPath)
             throws IOException {
         epochFile = new SingleNumberWriter(logPath, EPOCH_FILE_NAME);
-        localId = processDescriptor.localId;
-        numReplicas = processDescriptor.numReplicas;
+        localId = processDescriptor().localId;
+        numReplicas = processDescriptor().numReplicas;
         storage = createStorage();
         paxos = new Paxos(snapshotProvider, storage);
         dispatcher = paxos.getDispatcher();
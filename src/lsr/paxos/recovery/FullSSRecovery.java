@@ -6,7 +6,10 @@ import java.io.IOException;
 
 import lsr.paxos.SnapshotProvider;
 import lsr.paxos.core.Paxos;
+import lsr.paxos.storage.DiscWriter;
 import lsr.paxos.storage.FullSSDiscWriter;
+import lsr.paxos.storage.GroupCommitDiscWriter;
+import lsr.paxos.storage.MappedSegmentDiscWriter;
 import lsr.paxos.storage.Storage;
 import lsr.paxos.storage.SynchronousStorage;
 
@@ -31,9 +34,16 @@ public class FullSSRecovery extends RecoveryAlgorithm {
 
     private Storage createStorage() throws IOException {
         logger.info("Reading log from: " + logPath);
-        FullSSDiscWriter writer = new FullSSDiscWriter(logPath);
+        DiscWriter writer;
+        if (processDescriptor().mappedLog) {
+            writer = new MappedSegmentDiscWriter(logPath, processDescriptor().logSegmentSize);
+        } else if (processDescriptor().groupCommit) {
+            writer = new GroupCommitDiscWriter(logPath, processDescriptor().groupCommitWindow);
+        } else {
+            writer = new FullSSDiscWriter(logPath);
+        }
         Storage storage = new SynchronousStorage(writer);
-        if (storage.getView() % processDescriptor.numReplicas == processDescriptor.localId) {
+        if (storage.getView() % processDescriptor().numReplicas == processDescriptor().localId) {
             storage.setView(storage.getView() + 1);
         }
         return storage;
@@ -39,6 +39,10 @@ public class ViewRecoveryRequestHandler implements MessageHandler {
                 Storage storage = paxos.getStorage();
 
                 if (recovery.getView() > storage.getView()) {
+                    if (!paxos.mayAdvanceView()) {
+                        // the recovering replica retries
+                        return;
+                    }
                     paxos.advanceView(recovery.getView());
                     return;
                 }
@@ -35,8 +35,8 @@ public class ViewSSRecovery extends RecoveryAlgorithm implements Runnable {
 
     public ViewSSRecovery(SnapshotProvider snapshotProvider, SingleNumberWriter writer)
             throws IOException {
-        numReplicas = processDescriptor.numReplicas;
-        localId = processDescriptor.localId;
+        numReplicas = processDescriptor().numReplicas;
+        localId = processDescriptor().localId;
 
         storage = createStorage(writer);
         paxos = new Paxos(snapshotProvider, storage);
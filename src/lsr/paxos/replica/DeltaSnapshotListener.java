@@ -0,0 +1,23 @@
+package lsr.paxos.replica;
+
+import lsr.service.DeltaSnapshotService;
+
+/**
+ * A SnapshotListener which also accepts delta snapshots, holding only the
+ * changes made since the previous snapshot.
+ */
+public interface DeltaSnapshotListener extends SnapshotListener {
+    /**
+     * Called by {@link DeltaSnapshotService} when a new delta snapshot has been
+     * made.
+     * 
+     * @param nextRequestSeqNo ordinal number of next request to execute
+     * @param delta the changes since the previous snapshot made by the service
+     *            or restored in it
+     * @param response the response to the last request, if the snapshot is
+     *            made from within execute()
+     * @return false if the delta was dropped, so the next snapshot of the
+     *         service must be a full one
+     */
+    boolean onDeltaSnapshotMade(int nextRequestSeqNo, byte[] delta, byte[] response);
+}
@@ -0,0 +1,163 @@
+package lsr.paxos.replica;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lsr.common.Histogram;
+import lsr.common.Metrics;
+import lsr.common.Request;
+import lsr.service.ParallelService;
+
+/**
+ * Executes the requests of a {@link ParallelService} on a pool of threads.
+ * <p>
+ * The requests are submitted in the order they were decided, forming a wave,
+ * and then executed together by {@link #executeAll()}. A request waits for
+ * the last request of the wave with a common conflict key; the others are
+ * executed as soon as a thread is free. A request conflicting with all others
+ * is executed alone, after the requests submitted before it.
+ * <p>
+ * Used only by the replica thread.
+ */
+final class ParallelExecutor {
+    private final ParallelService service;
+    private final ExecutorService pool;
+
+    /** Requests submitted and not executed yet, in order */
+    private final List<Task> wave = new ArrayList<Task>();
+    /** Last request of the wave with given key */
+    private final Map<Long, Task> lastByKey = new HashMap<Long, Task>();
+    /** Released once for each request of the wave executed */
+    private final Semaphore executed = new Semaphore(0);
+    private volatile Throwable failure = null;
+    private final Histogram executeTime = Metrics.histogram("execute");
+
+    /** Request executed or to be executed, and its result */
+    final class Task implements Runnable {
+        private final Request request;
+        private final int seqNo;
+        private byte[] result;
+        /* Requests waiting for this one */
+        private final List<Task> successors = new ArrayList<Task>(2);
+        /* Requests this one waits for, plus one until the wave is started */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private Task(Request request, int seqNo) {
+            this.request = request;
+            this.seqNo = seqNo;
+        }
+
+        public Request getRequest() {
+            return request;
+        }
+
+        /** Valid once the wave of the request is executed */
+        public byte[] getResult() {
+            return result;
+        }
+
+        public void run() {
+            try {
+                long start = System.nanoTime();
+                result = service.execute(request.getValue(), seqNo);
+                executeTime.recordSince(start);
+            } catch (Throwable e) {
+                failure = e;
+            }
+            for (Task successor : successors) {
+                successor.ready();
+            }
+            executed.release();
+        }
+
+        private void ready() {
+            if (pending.decrementAndGet() == 0) {
+                pool.execute(this);
+            }
+        }
+    }
+
+    ParallelExecutor(ParallelService service, int threads) {
+        this.service = service;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int created = 0;
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Executor-" + created++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the result of a request which is not executed, e.g. one with a
+     * reply cached in the snapshot the state was restored from.
+     */
+    Task executed(Request request, byte[] result) {
+        Task task = new Task(request, -1);
+        task.result = result;
+        return task;
+    }
+
+    /**
+     * Adds the request to the wave.
+     * 
+     * @param request - the request to execute
+     * @param seqNo - the sequence number to pass to the service
+     * @return the task which holds the result once executed
+     */
+    Task submit(Request request, int seqNo) {
+        Task task = new Task(request, seqNo);
+        long[] keys = service.conflictKeys(request.getValue());
+        if (keys == null) {
+            executeAll();
+            long start = System.nanoTime();
+            task.result = service.execute(request.getValue(), seqNo);
+            executeTime.recordSince(start);
+            return task;
+        }
+
+        for (long key : keys) {
+            Task previous = lastByKey.put(key, task);
+            // the task is the last successor if already added for other key
+            if (previous != null && previous != task &&
+                (previous.successors.isEmpty() ||
+                 previous.successors.get(previous.successors.size() - 1) != task)) {
+                previous.successors.add(task);
+                task.pending.incrementAndGet();
+            }
+        }
+        wave.add(task);
+        return task;
+    }
+
+    /**
+     * Executes the requests of the wave and waits until all are executed.
+     */
+    void executeAll() {
+        if (wave.isEmpty()) {
+            return;
+        }
+        for (Task task : wave) {
+            task.ready();
+        }
+        executed.acquireUninterruptibly(wave.size());
+        wave.clear();
+        lastByKey.clear();
+        if (failure != null) {
+            throw new RuntimeException("Executing a request failed", failure);
+        }
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+}
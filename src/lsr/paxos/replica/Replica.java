@@ -2,7 +2,9 @@ package lsr.paxos.replica;
 
 import static lsr.common.ProcessDescriptor.processDescriptor;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
@@ -12,23 +14,29 @@ import java.util.NavigableMap;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentHashMap;
 
+import lsr.common.ClientReply;
+import lsr.common.ClientReply.Result;
 import lsr.common.Configuration;
 import lsr.common.CrashModel;
+import lsr.common.IdGenerator;
+import lsr.common.Metrics;
 import lsr.common.ProcessDescriptor;
 import lsr.common.Reply;
+import lsr.common.ReplyCache;
 import lsr.common.Request;
 import lsr.common.RequestId;
+import lsr.common.SimpleIdGenerator;
 import lsr.common.SingleThreadDispatcher;
+import lsr.common.Tracer;
 import lsr.paxos.DecideCallback;
 import lsr.paxos.Snapshot;
 import lsr.paxos.SnapshotProvider;
 import lsr.paxos.client.ClientRequestForwarder;
 import lsr.paxos.client.ClientRequestManager;
 import lsr.paxos.client.ClientManager;
+import lsr.paxos.client.ClientProxy;
 import lsr.paxos.client.InternalClient;
-import lsr.paxos.client.NioClientProxy;
 import lsr.paxos.core.Paxos;
 import lsr.paxos.events.AfterCatchupSnapshotEvent;
 import lsr.paxos.recovery.CrashStopRecovery;
@@ -41,6 +49,8 @@ import lsr.paxos.storage.ConsensusInstance;
 import lsr.paxos.storage.LogEntryState;
 import lsr.paxos.storage.SingleNumberWriter;
 import lsr.paxos.storage.Storage;
+import lsr.service.ParallelService;
+import lsr.service.ReadOnlyService;
 import lsr.service.Service;
 
 import org.slf4j.Logger;
@@ -82,6 +92,8 @@ public class Replica {
     
     private ClientManager clientManager;
     private ClientRequestManager requestManager;
+    /* Ids of the clients of this replica; a SimpleIdGenerator if not set */
+    private IdGenerator idGenerator = null;
 
     /** Next request to be executed. */
     private int executeUB = 0;
@@ -92,29 +104,21 @@ public class Replica {
             new TreeMap<Integer, List<Reply>>();
 
     /**
-     * For each client, keeps the sequence id of the last request executed from
-     * the client.
+     * For each client, keeps the reply to the last request executed from the
+     * client.
      * 
-     * TODO: the executedRequests map grows and is NEVER cleared!
-     * 
-     * For theoretical correctness, it must stay so. In practical approach, give
-     * me unbounded storage, limit the overall client count or simply let eat
-     * some stale client requests.
-     * 
-     * Bad solution keeping correctness: record time stamp from client, his
-     * request will only be valid for 5 minutes, after that time - go away. If
-     * client resends it after 5 minutes, we ignore request. If client changes
-     * the time stamp, it's already a new request, right? Client with broken
-     * clocks will have bad luck.
+     * Clients idle for <code>ReplyCacheIdleInstances</code> instances are
+     * evicted, at the same instances on all replicas. A request sent again by
+     * an evicted client is executed again; with no limit the cache grows with
+     * the number of clients.
      */
-    private final ConcurrentHashMap<Long, Reply> executedRequests =
-            new ConcurrentHashMap<Long, Reply>();
+    private final ReplyCache executedRequests = new ReplyCache();
 
     /** Temporary storage for the instances that finished out of order. */
     private final NavigableMap<Integer, Deque<Request>> decidedWaitingExecution =
             new TreeMap<Integer, Deque<Request>>();
 
-    private final HashMap<Long, Reply> previousSnapshotExecutedRequests = new HashMap<Long, Reply>();
+    private ReplyCache previousSnapshotExecutedRequests = new ReplyCache();
 
     private final SingleThreadDispatcher dispatcher;
     private final ProcessDescriptor descriptor;
@@ -124,6 +128,14 @@ public class Replica {
     
     private ClientRequestForwarder requestForwarder;
 
+    /** Executes the requests concurrently, or null if they are executed here */
+    private final ParallelExecutor parallelExecutor;
+
+    /** Whether read-only requests may be answered without ordering them */
+    private final boolean localReads;
+    /** Read-only requests waiting for execution to reach their read index */
+    private final Deque<PendingRead> pendingReads = new ArrayDeque<PendingRead>();
+
     /**
      * Initializes new instance of <code>Replica</code> class.
      * <p>
@@ -148,10 +160,28 @@ public class Replica {
         
         serviceProxy = new ServiceProxy(service, executedDifference, dispatcher);
         serviceProxy.addSnapshotListener(innerSnapshotListener2);
+
+        if (service instanceof ParallelService && descriptor.executionThreads > 1) {
+            parallelExecutor = new ParallelExecutor((ParallelService) service,
+                    descriptor.executionThreads);
+        } else {
+            parallelExecutor = null;
+        }
+        localReads = descriptor.leaderLeaseReads && service instanceof ReadOnlyService;
         	
         executedDifference.put(executeUB, new ArrayList<Reply>(2048));
     }
 
+    /**
+     * Sets the generator of the ids given to the clients connecting to this
+     * replica. Must be called before {@link #start()}.
+     * 
+     * @param idGenerator - the generator of client ids
+     */
+    public void setIdGenerator(IdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+    }
+
     /**
      * Starts the replica.
      * <p>
@@ -162,6 +192,17 @@ public class Replica {
      */
     public void start() throws IOException {
         logger.info("Recovery phase started.");
+
+        Metrics.registerMBean();
+        if (descriptor.benchmarkRun) {
+            new File(logPath).mkdirs();
+            Metrics.startDump(logPath + "/metrics.txt", descriptor.metricsDumpInterval);
+        }
+        if (descriptor.traceSampling > 0) {
+            new File(logPath).mkdirs();
+            Tracer.start(descriptor.localId, descriptor.traceSampling, logPath + "/trace.txt",
+                    descriptor.metricsDumpInterval);
+        }
         
         dispatcher.start();
 
@@ -195,6 +236,9 @@ public class Replica {
 
     public void forceExit() {
         dispatcher.shutdownNow();
+        if (parallelExecutor != null) {
+            parallelExecutor.shutdown();
+        }
     }
 
     /**
@@ -264,7 +308,7 @@ public class Replica {
                     // add request to executed history
                     cache.add(reply);
 
-                    executedRequests.put(request.getRequestId().getClientId(), reply);
+                    executedRequests.put(reply, executeUB);
                 }
             }
 
@@ -272,6 +316,7 @@ public class Replica {
             serviceProxy.instanceExecuted(executeUB);
 
             executeUB++;
+            executedRequests.evictIdle(executeUB, processDescriptor().replyCacheIdleInstances);
         }
     }
 
@@ -282,7 +327,7 @@ public class Replica {
     private class InnerRecoveryListener implements RecoveryListener {
         public void recoveryFinished() {
             
-            if (CrashModel.FullSS.equals(processDescriptor.crashModel))
+            if (CrashModel.FullSS.equals(processDescriptor().crashModel))
                 paxos.getDispatcher().executeAndWait(new Runnable() {
                     public void run() {
                         recoverReplicaFromStorage();
@@ -293,17 +338,19 @@ public class Replica {
                 executedRequests, requestForwarder, paxos);
             requestForwarder.setClientRequestManager(requestManager);
             
-            intCli = new InternalClient(dispatcher, requestManager);
+            if (idGenerator == null) {
+                idGenerator = new SimpleIdGenerator();
+            }
+            intCli = new InternalClient(dispatcher, requestManager, idGenerator);
 
             try {
-                NioClientProxy.createIdGenerator(paxos.getStorage());
-                clientManager = new ClientManager(requestManager);
+                clientManager = new ClientManager(requestManager, idGenerator);
                 clientManager.start();
             } catch (IOException e) {
                 throw new RuntimeException("Could not prepare the socket for clients! Aborting.");
             }
 
-            logger.info(processDescriptor.logMark_Benchmark,
+            logger.info(processDescriptor().logMark_Benchmark,
                     "Recovery phase finished. Starting paxos protocol.");
             paxos.startPaxos();
 
@@ -317,18 +364,19 @@ public class Replica {
         private void recoverReplicaFromStorage() {
             Storage storage = paxos.getStorage();
 
-            // we need a read-write copy of the map
-            SortedMap<Integer, ConsensusInstance> instances =
-                    new TreeMap<Integer, ConsensusInstance>();
-            instances.putAll(storage.getLog().getInstanceMap());
-
             // We take the snapshot
             Snapshot snapshot = storage.getLastSnapshot();
+            int first = 0;
             if (snapshot != null) {
                 innerSnapshotProvider.handleSnapshot(snapshot);
-                instances = instances.tailMap(snapshot.getNextInstanceId());
+                first = snapshot.getNextInstanceId();
             }
 
+            // we need a copy, as executing may truncate the log
+            SortedMap<Integer, ConsensusInstance> instances =
+                    new TreeMap<Integer, ConsensusInstance>(storage.getLog().getInstanceRange(
+                            first, storage.getLog().getNextId()));
+
             for (ConsensusInstance instance : instances.values()) {
                 if (instance.getState() == LogEntryState.DECIDED) {
                 	decideCallback.onRequestOrdered(instance.getInst(), instance);
@@ -348,8 +396,7 @@ public class Replica {
             }
 
             // add header to snapshot
-            Map<Long, Reply> requestHistory = new HashMap<Long, Reply>(
-                    previousSnapshotExecutedRequests);
+            ReplyCache requestHistory = previousSnapshotExecutedRequests.copy();
 
             // Get previous snapshot next instance id
             int prevSnapshotNextInstId;
@@ -365,19 +412,18 @@ public class Replica {
                 List<Reply> ides = executedDifference.remove(i);
 
                 // this is null only when NoOp
-                if (ides == null) {
-                    continue;
-                }
-
-                for (Reply reply : ides) {
-                    requestHistory.put(reply.getRequestId().getClientId(), reply);
+                if (ides != null) {
+                    for (Reply reply : ides) {
+                        requestHistory.put(reply, i);
+                    }
                 }
+                // evicts as executedRequests did after this instance
+                requestHistory.evictIdle(i + 1, processDescriptor().replyCacheIdleInstances);
             }
 
             snapshot.setLastReplyForClient(requestHistory);
 
-            previousSnapshotExecutedRequests.clear();
-            previousSnapshotExecutedRequests.putAll(requestHistory);
+            previousSnapshotExecutedRequests = requestHistory;
 
             paxos.onSnapshotMade(snapshot);
         }
@@ -429,11 +475,9 @@ public class Replica {
             
             decideCallback.atRestoringStateFromSnapshot(snapshot.getNextInstanceId());
 
-            executedRequests.clear();
+            executedRequests.setTo(snapshot.getLastReplyForClient());
             executedDifference.clear();
-            executedRequests.putAll(snapshot.getLastReplyForClient());
-            previousSnapshotExecutedRequests.clear();
-            previousSnapshotExecutedRequests.putAll(snapshot.getLastReplyForClient());
+            previousSnapshotExecutedRequests = snapshot.getLastReplyForClient();
             executeUB = snapshot.getNextInstanceId();
             executedDifference.put(executeUB, new ArrayList<Reply>(2048));
 
@@ -454,6 +498,7 @@ public class Replica {
             }
 
             executeDecided();
+            answerReads();
         }
     }
 
@@ -499,6 +544,10 @@ public class Replica {
             @Override
             public void run() {
                 innerInstanceExecuted(instance, requests);
+                // the replies of the instance are already recorded
+                executedRequests.evictIdle(executeUB,
+                        processDescriptor().replyCacheIdleInstances);
+                answerReads();
             }
         });
     }
@@ -546,7 +595,10 @@ public class Replica {
 
             Reply reply = new Reply(cRequest.getRequestId(), result);
 
-            executedRequests.put(rID.getClientId(), reply);
+            executedRequests.put(reply, instance);
+            if (Tracer.isSampled(rID)) {
+                Tracer.execute(rID, instance);
+            }
 
             // req manager can be null on fullss disk read
             if (requestManager != null)
@@ -554,6 +606,118 @@ public class Replica {
         }
     }
 
+    /**
+     * Executes the requests of consecutive instances, with the requests
+     * without common conflict keys executed concurrently. The replies are
+     * recorded and passed to the clients in order, once all requests are
+     * executed.
+     * 
+     * @param firstInstance - the id of the first instance
+     * @param instances - the requests of each instance
+     */
+    private void innerExecuteInstances(int firstInstance, List<Request[]> instances) {
+        assert dispatcher.amIInDispatcher() : "Wrong thread: " +
+                                              Thread.currentThread().getName();
+
+        List<ParallelExecutor.Task> tasks = new ArrayList<ParallelExecutor.Task>();
+        // Only the cached reply is sent for a request ordered again
+        List<Boolean> resent = new ArrayList<Boolean>();
+        // The instance of each task
+        List<Integer> taskInstances = new ArrayList<Integer>();
+        // The last request of each client in this call, and its instance
+        Map<Long, ParallelExecutor.Task> lastTasks = new HashMap<Long, ParallelExecutor.Task>();
+        Map<Long, Integer> lastTaskInstances = new HashMap<Long, Integer>();
+        int idleInstances = processDescriptor().replyCacheIdleInstances;
+
+        int instance = firstInstance;
+        for (Request[] requests : instances) {
+            for (Request cRequest : requests) {
+                RequestId rID = cRequest.getRequestId();
+                long clientId = rID.getClientId();
+                ParallelExecutor.Task lastTask = lastTasks.get(clientId);
+                Reply lastReply = executedRequests.get(clientId);
+                int lastInstance = lastTask != null ? lastTaskInstances.get(clientId)
+                        : executedRequests.getInstance(clientId);
+                int lastSequenceNumberFromClient = -1;
+                if (ReplyCache.isEvictedBefore(lastInstance, instance, idleInstances)) {
+                    // evicted in serial execution too, so executed again
+                } else if (lastTask != null) {
+                    lastSequenceNumberFromClient = lastTask.getRequest().getRequestId()
+                            .getSeqNumber();
+                } else if (lastReply != null) {
+                    lastSequenceNumberFromClient = lastReply.getRequestId().getSeqNumber();
+                }
+
+                // Do not execute the same request several times.
+                if (rID.getSeqNumber() <= lastSequenceNumberFromClient) {
+                    logger.warn("Request ordered multiple times. inst: {}, req: {}", instance,
+                            cRequest);
+                    if (rID.getSeqNumber() == lastSequenceNumberFromClient) {
+                        if (lastTask != null) {
+                            // the reply is sent once executed
+                            tasks.add(lastTask);
+                            resent.add(true);
+                            taskInstances.add(instance);
+                        } else if (requestManager != null) {
+                            requestManager.onRequestExecuted(cRequest, lastReply);
+                        }
+                    }
+                    continue;
+                }
+
+                ParallelExecutor.Task task = serviceProxy.submit(cRequest, parallelExecutor);
+                lastTasks.put(clientId, task);
+                lastTaskInstances.put(clientId, instance);
+                tasks.add(task);
+                resent.add(false);
+                taskInstances.add(instance);
+            }
+            innerInstanceExecuted(instance, requests);
+            instance++;
+        }
+
+        parallelExecutor.executeAll();
+
+        // The replies of each instance are recorded before the eviction which
+        // follows it, as in serial execution, so that the cache does not
+        // depend on how many instances are executed together.
+        int i = 0;
+        for (int executed = firstInstance; executed < instance; executed++) {
+            for (; i < tasks.size() && taskInstances.get(i) == executed; i++) {
+                ParallelExecutor.Task task = tasks.get(i);
+                Reply reply = new Reply(task.getRequest().getRequestId(), task.getResult());
+                if (!resent.get(i)) {
+                    executedRequests.put(reply, executed);
+                    if (Tracer.isSampled(reply.getRequestId())) {
+                        Tracer.execute(reply.getRequestId(), executed);
+                    }
+                }
+                // req manager can be null on fullss disk read
+                if (requestManager != null)
+                    requestManager.onRequestExecuted(task.getRequest(), reply);
+            }
+            executedRequests.evictIdle(executed + 1, idleInstances);
+        }
+        answerReads();
+    }
+
+    /**
+     * Tells if the decided requests are executed by
+     * {@link #executeInstancesAndWait(int, List)} instead of
+     * {@link #executeClientBatchAndWait(int, Request[])}.
+     */
+    public boolean isParallelExecution() {
+        return parallelExecutor != null;
+    }
+
+    public void executeInstancesAndWait(final int firstInstance, final List<Request[]> instances) {
+        dispatcher.executeAndWait(new Runnable() {
+            public void run() {
+                innerExecuteInstances(firstInstance, instances);
+            }
+        });
+    }
+
 	public void executeClientBatchAndWait(final int instance, final Request[] requests) {
 	   dispatcher.executeAndWait(new Runnable() {
 			@Override
@@ -563,6 +727,56 @@ public class Replica {
 		});
 	}
 
+    /**
+     * Tells if the read-only requests may be answered by
+     * {@link #executeRead(Request, int, ClientProxy)}, that is if leases are
+     * enabled and the service is a {@link ReadOnlyService}.
+     */
+    public boolean isLocalReadEnabled() {
+        return localReads;
+    }
+
+    /**
+     * Answers the read-only request without ordering it, once all instances
+     * below the read index are executed. The reads are answered in the order
+     * given, so a read waits for the ones given before it.
+     * 
+     * @param request - the read-only request
+     * @param readIndex - the id of the first instance not needed by the read
+     * @param client - the client waiting for the reply
+     */
+    public void executeRead(final Request request, final int readIndex,
+                            final ClientProxy client) {
+        dispatcher.execute(new Runnable() {
+            public void run() {
+                pendingReads.add(new PendingRead(request, readIndex, client));
+                answerReads();
+            }
+        });
+    }
+
+    private void answerReads() {
+        assert dispatcher.amIInDispatcher();
+        while (!pendingReads.isEmpty() && pendingReads.peek().readIndex <= executeUB) {
+            PendingRead read = pendingReads.poll();
+            byte[] result = serviceProxy.executeRead(read.request);
+            Reply reply = new Reply(read.request.getRequestId(), result);
+            read.client.send(new ClientReply(Result.OK, reply.toByteArray()));
+        }
+    }
+
+    private static final class PendingRead {
+        final Request request;
+        final int readIndex;
+        final ClientProxy client;
+
+        PendingRead(Request request, int readIndex, ClientProxy client) {
+            this.request = request;
+            this.readIndex = readIndex;
+            this.client = client;
+        }
+    }
+
 	public SingleThreadDispatcher getReplicaDispatcher() {
 		return dispatcher;
 	}
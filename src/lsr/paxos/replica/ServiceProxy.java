@@ -1,16 +1,23 @@
 package lsr.paxos.replica;
 
+import static lsr.common.ProcessDescriptor.processDescriptor;
+
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Vector;
 
+import lsr.common.Histogram;
+import lsr.common.Metrics;
 import lsr.common.Pair;
 import lsr.common.Reply;
 import lsr.common.Request;
 import lsr.common.SingleThreadDispatcher;
 import lsr.paxos.Snapshot;
+import lsr.service.DeltaSnapshotService;
+import lsr.service.ReadOnlyService;
 import lsr.service.Service;
 
 import org.slf4j.Logger;
@@ -79,9 +86,14 @@ import org.slf4j.LoggerFactory;
  * proxy.updateToSnapshot(snapshot);
  * </pre>
  * 
+ * A delta snapshot made by a {@link DeltaSnapshotService} is chained to the
+ * previous snapshot: the created <code>Snapshot</code> holds the value and
+ * deltas of the previous one, followed by the new delta. Once the chain is too
+ * long, it is compacted into a new full snapshot on a background thread.
+ * 
  * @see Service
  */
-public class ServiceProxy implements SnapshotListener {
+public class ServiceProxy implements DeltaSnapshotListener {
 
     /**
      * Sorted list of request sequence number starting each consensus instance.
@@ -119,6 +131,13 @@ public class ServiceProxy implements SnapshotListener {
     /** The sequence number of first request executed after last snapshot. */
     private int lastSnapshotNextSeqNo = -1;
 
+    /** Last snapshot made by the service or restored, or null */
+    private Snapshot lastSnapshot = null;
+
+    /** Merges delta snapshots; created on first use */
+    private SingleThreadDispatcher compactor;
+    private boolean compacting = false;
+
     /**
      * Describes how many requests on should be skipped. Used only after
      * updating from snapshot.
@@ -137,6 +156,7 @@ public class ServiceProxy implements SnapshotListener {
     private final Service service;
     private final Vector<SnapshotListener2> listeners = new Vector<SnapshotListener2>();
     private final Map<Integer, List<Reply>> responsesCache;
+    private final Histogram executeTime = Metrics.histogram("execute");
     private final SingleThreadDispatcher replicaDispatcher;
 
     /**
@@ -171,7 +191,42 @@ public class ServiceProxy implements SnapshotListener {
         else {
             currentRequest = request;
             logger.info("Execute innerExecuteClientBatch, Request = {}", request);
-            return service.execute(request.getValue(), nextSeqNo - 1);
+            long start = System.nanoTime();
+            byte[] result = service.execute(request.getValue(), nextSeqNo - 1);
+            executeTime.recordSince(start);
+            return result;
+        }
+    }
+
+    /**
+     * Answers a read-only request from the current state of the service,
+     * without giving it a sequence number.
+     * 
+     * @param request - the read-only request
+     * @return the reply from service
+     */
+    public byte[] executeRead(Request request) {
+        return ((ReadOnlyService) service).executeReadOnly(request.getValue());
+    }
+
+    /**
+     * Submits the request to the parallel executor with correct sequence
+     * number. As {@link #execute(Request)}, but the request is executed by
+     * {@link ParallelExecutor#executeAll()}.
+     * 
+     * @param request - the request to execute on service
+     * @param executor - the executor of the service
+     * @return the task holding the reply once executed
+     */
+    ParallelExecutor.Task submit(Request request, ParallelExecutor executor) {
+        nextSeqNo++;
+        if (skip > 0) {
+            skip--;
+            assert !skippedCache.isEmpty();
+            return executor.executed(request, skippedCache.poll().getValue());
+        } else {
+            currentRequest = request;
+            return executor.submit(request, nextSeqNo - 1);
         }
     }
 
@@ -232,6 +287,15 @@ public class ServiceProxy implements SnapshotListener {
         }
 
         service.updateToSnapshot(lastSnapshotNextSeqNo, snapshot.getValue());
+        if (!snapshot.getDeltas().isEmpty()) {
+            if (!(service instanceof DeltaSnapshotService)) {
+                throw new IllegalStateException("The service cannot restore delta snapshots");
+            }
+            for (byte[] delta : snapshot.getDeltas()) {
+                ((DeltaSnapshotService) service).updateToDelta(delta);
+            }
+        }
+        lastSnapshot = snapshot;
     }
 
     public void onSnapshotMade(final int nextRequestSeqNo, final byte[] value,
@@ -241,66 +305,185 @@ public class ServiceProxy implements SnapshotListener {
                 if (value == null) {
                     throw new IllegalArgumentException("The snapshot value cannot be null");
                 }
-                if (nextRequestSeqNo < lastSnapshotNextSeqNo) {
-                    throw new IllegalArgumentException("The snapshot is older than previous");
+                Snapshot snapshot = createSnapshot(nextRequestSeqNo, response);
+                if (snapshot == null) {
+                    return;
+                }
+                snapshot.setValue(value);
+                snapshotCreated(snapshot);
+            }
+        });
+    }
+
+    public boolean onDeltaSnapshotMade(final int nextRequestSeqNo, final byte[] delta,
+                                       final byte[] response) {
+        final boolean[] chained = new boolean[1];
+        replicaDispatcher.executeAndWait(new Runnable() {
+            public void run() {
+                if (delta == null) {
+                    throw new IllegalArgumentException("The snapshot delta cannot be null");
                 }
-                if (nextRequestSeqNo > nextSeqNo) {
+                if (lastSnapshot == null) {
                     throw new IllegalArgumentException(
-                            "The snapshot marked as newer than current state");
+                            "The delta snapshot has no previous snapshot to chain to");
                 }
+                Snapshot snapshot = createSnapshot(nextRequestSeqNo, response);
+                if (snapshot == null) {
+                    return;
+                }
+                List<byte[]> deltas = new ArrayList<byte[]>(lastSnapshot.getDeltas());
+                deltas.add(delta);
+                snapshot.setValue(lastSnapshot.getValue());
+                snapshot.setDeltas(deltas);
+                snapshotCreated(snapshot);
+                compactIfNeeded();
+                chained[0] = true;
+            }
+        });
+        return chained[0];
+    }
 
-                truncateStartingSeqNo(nextRequestSeqNo);
-                Pair<Integer, Integer> nextInstanceEntry = startingSeqNo.getFirst();
-                assert nextInstanceEntry.getValue() <= nextRequestSeqNo : nextInstanceEntry.getValue() +
-                                                                          " " + nextRequestSeqNo;
+    /**
+     * Creates the snapshot of the state after executing the given request,
+     * without the data from the service.
+     * 
+     * @return the snapshot, or null if it is older than the previous one
+     */
+    private Snapshot createSnapshot(int nextRequestSeqNo, byte[] response) {
+        if (nextRequestSeqNo < lastSnapshotNextSeqNo) {
+            // A snapshot serialized in background may be overtaken
+            // by one received meanwhile
+            logger.warn("Dropping snapshot older than previous: " + nextRequestSeqNo + " < " +
+                        lastSnapshotNextSeqNo);
+            return null;
+        }
+        if (nextRequestSeqNo > nextSeqNo) {
+            throw new IllegalArgumentException(
+                    "The snapshot marked as newer than current state");
+        }
 
-                Snapshot snapshot = new Snapshot();
+        truncateStartingSeqNo(nextRequestSeqNo);
+        Pair<Integer, Integer> nextInstanceEntry = startingSeqNo.getFirst();
+        assert nextInstanceEntry.getValue() <= nextRequestSeqNo : nextInstanceEntry.getValue() +
+                                                                  " " + nextRequestSeqNo;
 
-                snapshot.setNextRequestSeqNo(nextRequestSeqNo);
-                snapshot.setNextInstanceId(nextInstanceEntry.getKey());
-                snapshot.setStartingRequestSeqNo(nextInstanceEntry.getValue());
-                snapshot.setValue(value);
+        Snapshot snapshot = new Snapshot();
 
-                List<Reply> thisInstanceReplies = responsesCache.get(snapshot.getNextInstanceId());
-                if (thisInstanceReplies == null) {
-                    assert snapshot.getStartingRequestSeqNo() == nextSeqNo;
-                    snapshot.setPartialResponseCache(new Vector<Reply>(0));
-                } else {
-                    int localSkip = snapshot.getNextRequestSeqNo() -
-                                    snapshot.getStartingRequestSeqNo();
-
-                    boolean hasLastResponse;
-                    if (thisInstanceReplies.size() < localSkip) {
-                        hasLastResponse = false;
-                        snapshot.setPartialResponseCache(new Vector<Reply>(
-                                thisInstanceReplies.subList(0, localSkip - 1)));
-                    } else {
-                        snapshot.setPartialResponseCache(new Vector<Reply>(
-                                thisInstanceReplies.subList(0, localSkip)));
-                        hasLastResponse = true;
-                    }
-
-                    if (!hasLastResponse) {
-                        if (response == null) {
-                            throw new IllegalArgumentException(
-                                    "If snapshot is executed from within execute() " +
-                                            "for current request, the response has to be " +
-                                            "given with snapshot");
-                        }
-                        snapshot.getPartialResponseCache().add(
-                                new Reply(currentRequest.getRequestId(), response));
-                    }
+        snapshot.setNextRequestSeqNo(nextRequestSeqNo);
+        snapshot.setNextInstanceId(nextInstanceEntry.getKey());
+        snapshot.setStartingRequestSeqNo(nextInstanceEntry.getValue());
+
+        List<Reply> thisInstanceReplies = responsesCache.get(snapshot.getNextInstanceId());
+        if (thisInstanceReplies == null) {
+            assert snapshot.getStartingRequestSeqNo() == nextSeqNo;
+            snapshot.setPartialResponseCache(new Vector<Reply>(0));
+        } else {
+            int localSkip = snapshot.getNextRequestSeqNo() - snapshot.getStartingRequestSeqNo();
+
+            boolean hasLastResponse;
+            if (thisInstanceReplies.size() < localSkip) {
+                hasLastResponse = false;
+                snapshot.setPartialResponseCache(new Vector<Reply>(
+                        thisInstanceReplies.subList(0, localSkip - 1)));
+            } else {
+                snapshot.setPartialResponseCache(new Vector<Reply>(
+                        thisInstanceReplies.subList(0, localSkip)));
+                hasLastResponse = true;
+            }
+
+            if (!hasLastResponse) {
+                if (response == null) {
+                    throw new IllegalArgumentException(
+                            "If snapshot is executed from within execute() " +
+                                    "for current request, the response has to be " +
+                                    "given with snapshot");
                 }
+                snapshot.getPartialResponseCache().add(
+                        new Reply(currentRequest.getRequestId(), response));
+            }
+        }
+        return snapshot;
+    }
 
-                lastSnapshotNextSeqNo = nextRequestSeqNo;
+    private void snapshotCreated(Snapshot snapshot) {
+        lastSnapshotNextSeqNo = snapshot.getNextRequestSeqNo();
+        lastSnapshot = snapshot;
 
-                for (SnapshotListener2 listener : listeners) {
-                    listener.onSnapshotMade(snapshot);
+        for (SnapshotListener2 listener : listeners) {
+            listener.onSnapshotMade(snapshot);
+        }
+    }
+
+    /**
+     * Starts merging the deltas of the last snapshot in background, if there
+     * are too many of them.
+     */
+    private void compactIfNeeded() {
+        final Snapshot snapshot = lastSnapshot;
+        if (compacting ||
+            (snapshot.getDeltas().size() < processDescriptor().deltaSnapshotMaxChain &&
+             snapshot.deltasByteSize() < processDescriptor().deltaSnapshotCompactRatio *
+                                         snapshot.getValue().length)) {
+            return;
+        }
+
+        if (compactor == null) {
+            compactor = new SingleThreadDispatcher("SnapshotCompactor");
+        }
+        compacting = true;
+        compactor.execute(new Runnable() {
+            public void run() {
+                byte[] compactedValue = null;
+                try {
+                    compactedValue = ((DeltaSnapshotService) service).compact(
+                            snapshot.getValue(), snapshot.getDeltas());
+                } catch (RuntimeException e) {
+                    logger.warn("Exception while compacting snapshot " + snapshot, e);
+                } finally {
+                    // a failed compaction may be tried again by a later snapshot
+                    final byte[] value = compactedValue;
+                    replicaDispatcher.execute(new Runnable() {
+                        public void run() {
+                            compacting = false;
+                            compacted(snapshot, value);
+                        }
+                    });
                 }
             }
         });
     }
 
+    /**
+     * Replaces the deltas of the given snapshot with the compacted value in
+     * the last snapshot, and passes the result to the listeners.
+     */
+    private void compacted(Snapshot compactedSnapshot, byte[] value) {
+        if (value == null) {
+            logger.warn("Compacting snapshot " + compactedSnapshot + " failed");
+            return;
+        }
+        Snapshot last = lastSnapshot;
+        if (last != compactedSnapshot && !last.isExtensionOf(compactedSnapshot)) {
+            // replaced meanwhile by a full snapshot
+            return;
+        }
+
+        List<Reply> partialResponseCache = last.getPartialResponseCache();
+        Snapshot snapshot = new Snapshot();
+        snapshot.setNextRequestSeqNo(last.getNextRequestSeqNo());
+        snapshot.setNextInstanceId(last.getNextInstanceId());
+        snapshot.setStartingRequestSeqNo(last.getStartingRequestSeqNo());
+        snapshot.setPartialResponseCache(new Vector<Reply>(partialResponseCache));
+        snapshot.setValue(value);
+        List<byte[]> deltas = last.getDeltas();
+        snapshot.setDeltas(new ArrayList<byte[]>(
+                deltas.subList(compactedSnapshot.getDeltas().size(), deltas.size())));
+
+        logger.info("Compacted " + compactedSnapshot.getDeltas().size() + " deltas of " +
+                    compactedSnapshot + " into " + value.length + " bytes");
+        snapshotCreated(snapshot);
+    }
+
     /**
      * Informs the service that the recovery process has been finished, i.e.
      * that the service is at least at the state later than by crashing.
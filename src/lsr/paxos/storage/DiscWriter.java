@@ -29,4 +29,14 @@ public interface DiscWriter {
 
     void decideInstance(int instanceId);
 
-}
\ No newline at end of file
+    /**
+     * Executes the task once all records written so far are on disc. The task
+     * may be executed by the calling thread or by the thread writing to disc
+     * (the flusher thread of <code>GroupCommitDiscWriter</code>), so it must
+     * not block.
+     * 
+     * @param task - the task to execute
+     */
+    void whenDurable(Runnable task);
+
+}
\ No newline at end of file
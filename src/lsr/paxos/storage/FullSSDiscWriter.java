@@ -10,6 +10,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -96,10 +97,7 @@ public class FullSSDiscWriter implements DiscWriter {
             buffer.put(CHANGE_VIEW);
             buffer.putInt(instanceId);
             buffer.putInt(view);
-            logStream.write(buffer.array());
-            logStream.flush();
-            logStream.getFD().sync();
-            logger.info("Log stream sync'd (change instance view)");
+            writeRecord(buffer.array(), true);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -123,10 +121,7 @@ public class FullSSDiscWriter implements DiscWriter {
                 buffer.putInt(value.length);
                 buffer.put(value);
             }
-            logStream.write(buffer.array());
-            logStream.flush();
-            logStream.getFD().sync();
-            logger.info("Log stream sync'd (change instance value)");
+            writeRecord(buffer.array(), true);
 
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -139,12 +134,43 @@ public class FullSSDiscWriter implements DiscWriter {
             4/* int instance ID */);
             buffer.put(DECIDED);
             buffer.putInt(instanceId);
-            logStream.write(buffer.array());
+            writeRecord(buffer.array(), false);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Appends a record to the log file.
+     * 
+     * @param record - the serialized record
+     * @param sync - if the record must be on disc before returning
+     * @throws IOException if I/O error occurs
+     */
+    protected void writeRecord(byte[] record, boolean sync) throws IOException {
+        logStream.write(record);
+        if (sync) {
+            logStream.flush();
+            logStream.getFD().sync();
+            logger.info("Log stream sync'd");
+        }
+    }
+
+    /**
+     * Returns the channel of the current log file.
+     */
+    protected FileChannel getLogChannel() {
+        return logStream.getChannel();
+    }
+
+    /**
+     * Every synchronous record is on disc once its method returns, so the
+     * task is executed immediately.
+     */
+    public void whenDurable(Runnable task) {
+        task.run();
+    }
+
     public void changeViewNumber(int view) {
         try {
             viewStream.writeInt(view);
@@ -162,7 +188,19 @@ public class FullSSDiscWriter implements DiscWriter {
 
     public void newSnapshot(Snapshot snapshot) {
         try {
-            String oldSnapshotFileName = snapshotFileName();
+            if (this.snapshot != null && snapshot.isExtensionOf(this.snapshot)) {
+                // Only the new deltas are written
+                FileOutputStream fos = new FileOutputStream(snapshotFileName(), true);
+                DataOutputStream snapshotStream = new DataOutputStream(fos);
+                snapshot.writeExtensionTo(snapshotStream, this.snapshot);
+                snapshotStream.flush();
+                fos.getFD().sync();
+                snapshotStream.close();
+                this.snapshot = snapshot;
+                return;
+            }
+
+            final String oldSnapshotFileName = snapshotFileName();
             snapshotFileNumber++;
             String newSnapshotFileName = snapshotFileName();
 
@@ -175,13 +213,18 @@ public class FullSSDiscWriter implements DiscWriter {
             ByteBuffer buffer = ByteBuffer.allocate(1 + 4);
             buffer.put(SNAPSHOT);
             buffer.putInt(snapshotFileNumber);
-            logStream.write(buffer.array());
-
-            if (new File(oldSnapshotFileName).exists()) {
-                if (!new File(oldSnapshotFileName).delete()) {
-                    throw new RuntimeException("File removal failed!");
+            writeRecord(buffer.array(), true);
+
+            // The log must point to the new snapshot before the old one goes
+            whenDurable(new Runnable() {
+                public void run() {
+                    if (new File(oldSnapshotFileName).exists()) {
+                        if (!new File(oldSnapshotFileName).delete()) {
+                            throw new RuntimeException("File removal failed!");
+                        }
+                    }
                 }
-            }
+            });
 
             this.snapshot = snapshot;
         } catch (IOException e) {
@@ -223,7 +266,7 @@ public class FullSSDiscWriter implements DiscWriter {
         DataInputStream snapshotStream = new DataInputStream(
                 new FileInputStream(snapshotFileName()));
 
-        snapshot = new Snapshot(snapshotStream);
+        snapshot = Snapshot.readWithExtensions(snapshotStream);
         snapshotStream.close();
 
         return instances.values();
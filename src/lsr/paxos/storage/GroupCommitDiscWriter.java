@@ -0,0 +1,178 @@
+package lsr.paxos.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import lsr.common.KillOnExceptionHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Version of <code>FullSSDiscWriter</code> which amortizes the cost of fsync
+ * over many records (group commit).
+ *
+ * Records are appended to a shared buffer instead of being written and synced
+ * one by one. A dedicated flusher thread writes the buffer to the log file and
+ * forces it to disc once per batch window, then executes the tasks waiting for
+ * the records to become durable (see {@link #whenDurable(Runnable)}). The file
+ * format is the same as in <code>FullSSDiscWriter</code>.
+ */
+public class GroupCommitDiscWriter extends FullSSDiscWriter {
+    /* Guarded by this */
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private List<Runnable> waiting = new ArrayList<Runnable>();
+    private boolean syncRequested = false;
+    private boolean closed = false;
+    /* Set when the log cannot be written; no record becomes durable after it */
+    private Throwable failure = null;
+    /* Number of buffered records and of the records already on disc */
+    private long appended = 0;
+    private long durable = 0;
+
+    private final int window;
+    private final Thread flusher;
+
+    /**
+     * Creates a new group commit writer.
+     *
+     * @param directoryPath - the directory for the log files
+     * @param window - time in ms to wait for more records before syncing
+     * @throws FileNotFoundException if the log files cannot be created
+     */
+    public GroupCommitDiscWriter(String directoryPath, int window)
+            throws FileNotFoundException {
+        super(directoryPath);
+        this.window = window;
+        flusher = new Thread(new Flusher(), "GroupCommit");
+        flusher.setDaemon(true);
+        flusher.setUncaughtExceptionHandler(new KillOnExceptionHandler());
+        flusher.start();
+    }
+
+    /**
+     * Buffers the record. If <code>sync</code> is set, the flusher is woken up
+     * to write it to disc.
+     */
+    protected synchronized void writeRecord(byte[] record, boolean sync) {
+        if (closed) {
+            throw new IllegalStateException("Writer already closed");
+        }
+        checkNotFailed();
+        buffer.write(record, 0, record.length);
+        appended++;
+        if (sync && !syncRequested) {
+            syncRequested = true;
+            notify();
+        }
+    }
+
+    /**
+     * Executes the task once all records written so far are on disc. If some
+     * records are not synced yet, the task runs on the flusher thread after
+     * the batch is forced to disc, so it must not block.
+     */
+    public void whenDurable(Runnable task) {
+        synchronized (this) {
+            checkNotFailed();
+            if (durable < appended) {
+                waiting.add(task);
+                if (!syncRequested) {
+                    syncRequested = true;
+                    notify();
+                }
+                return;
+            }
+        }
+        task.run();
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notify();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+
+    private void checkNotFailed() {
+        if (failure != null) {
+            throw new IllegalStateException("Cannot write the log", failure);
+        }
+    }
+
+    private void writeBatch(byte[] batch) throws IOException {
+        super.writeRecord(batch, false);
+        getLogChannel().force(false);
+    }
+
+    private class Flusher implements Runnable {
+        public void run() {
+            try {
+                flush();
+            } catch (Throwable e) {
+                // The waiting tasks would never run and the replica would hang
+                logger.error("Cannot write the log. Stopping the replica.", e);
+                synchronized (GroupCommitDiscWriter.this) {
+                    failure = e;
+                    waiting.clear();
+                }
+                // Stops the replica through the thread's exception handler
+                throw new RuntimeException("Group commit failed", e);
+            }
+        }
+
+        private void flush() throws IOException, InterruptedException {
+            while (true) {
+                byte[] batch;
+                List<Runnable> tasks;
+                long batchEnd;
+
+                synchronized (GroupCommitDiscWriter.this) {
+                    while (!syncRequested && !closed) {
+                        GroupCommitDiscWriter.this.wait();
+                    }
+                    if (closed && buffer.size() == 0 && waiting.isEmpty()) {
+                        return;
+                    }
+                }
+
+                // Let more records join the batch
+                if (window > 0) {
+                    Thread.sleep(window);
+                }
+
+                synchronized (GroupCommitDiscWriter.this) {
+                    batch = buffer.toByteArray();
+                    buffer.reset();
+                    tasks = waiting;
+                    waiting = new ArrayList<Runnable>();
+                    batchEnd = appended;
+                    syncRequested = false;
+                }
+
+                writeBatch(batch);
+
+                synchronized (GroupCommitDiscWriter.this) {
+                    durable = batchEnd;
+                }
+                logger.debug("Log stream sync'd ({} bytes, {} waiting tasks)", batch.length,
+                        tasks.size());
+
+                for (Runnable task : tasks) {
+                    task.run();
+                }
+            }
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(GroupCommitDiscWriter.class);
+}
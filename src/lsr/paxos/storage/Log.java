@@ -27,7 +27,7 @@ public class Log {
     protected int nextId = 0;
 
     /** Lowest still held in memory instance number */
-    protected Integer lowestAvailable = 0;
+    protected int lowestAvailable = 0;
 
     /** List of objects to be informed about log changes */
     private List<LogListener> listeners = new Vector<LogListener>();
@@ -40,16 +40,40 @@ public class Log {
         instances = new TreeMap<Integer, ConsensusInstance>();
     }
 
-    /** Returns read-only access to the log */
+    /**
+     * Returns read-only access to the log. May copy the whole log; use
+     * {@link #getInstanceRange(int, int)} where only a part is needed.
+     */
     public SortedMap<Integer, ConsensusInstance> getInstanceMap() {
         return Collections.unmodifiableSortedMap(instances);
     }
+
+    /**
+     * Returns read-only access to the instances held with ids in
+     * <code>[startId, endId)</code>, at a cost depending on the range only.
+     */
+    public SortedMap<Integer, ConsensusInstance> getInstanceRange(int startId, int endId) {
+        if (startId >= endId) {
+            return Collections.unmodifiableSortedMap(new TreeMap<Integer, ConsensusInstance>());
+        }
+        return Collections.unmodifiableSortedMap(instances.subMap(startId, endId));
+    }
     
     /** Returns read-only access to the log */
     public TreeMap<Integer, ConsensusInstance> getInstances() {
         return instances;
     }
 
+    /** Returns instance with provided ID, or null if the log does not hold it */
+    public ConsensusInstance getInstanceIfPresent(int instanceId) {
+        return instances.get(instanceId);
+    }
+
+    /** Stores the instance in the log, replacing any with the same ID */
+    public void putInstance(ConsensusInstance instance) {
+        instances.put(instance.getInst(), instance);
+    }
+
     /** Returns, creating if needed, instance with provided ID */
     public ConsensusInstance getInstance(int instanceId) {
         int oldNextId = nextId;
@@ -228,7 +252,7 @@ public class Log {
      */
     protected void sizeChanged() {
         for (LogListener listener : listeners) {
-            listener.logSizeChanged(instances.size());
+            listener.logSizeChanged(size());
         }
     }
 
@@ -0,0 +1,431 @@
+package lsr.paxos.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import lsr.paxos.Snapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-ahead log stored in fixed-size, memory-mapped segment files.
+ *
+ * Each segment (<code>segment.N.log</code>) is preallocated and mapped into
+ * memory. Records are framed as <code>[int length][int crc32][payload]</code>,
+ * a length of 0 marks the end of the written part of the segment. The payload
+ * uses the same record types as <code>FullSSDiscWriter</code>.
+ *
+ * For every segment the range of instance ids it contains is kept in memory.
+ * Once a snapshot is written, segments holding only instances below
+ * {@link Snapshot#getNextInstanceId()} are deleted.
+ *
+ * On recovery the segments are mapped and scanned; scanning of a segment stops
+ * at the first record that is incomplete or fails the CRC check.
+ *
+ * The view number is kept in a separate file, as in
+ * <code>FullSSDiscWriter</code>.
+ */
+public class MappedSegmentDiscWriter implements DiscWriter {
+    private final String directoryPath;
+    private final File directory;
+    private final int segmentSize;
+
+    /* Segments by number, oldest first; the last one is being written */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment current = null;
+
+    private final RandomAccessFile viewFile;
+    private int snapshotFileNumber = -1;
+    private Snapshot snapshot;
+
+    private final CRC32 crc = new CRC32();
+
+    /* * Record types * */
+    /* Sync */
+    private static final byte CHANGE_VIEW = 0x01;
+    private static final byte CHANGE_VALUE = 0x02;
+    private static final byte SNAPSHOT = 0x03;
+    /* Async */
+    private static final byte DECIDED = 0x21;
+
+    /* int length + int crc */
+    private static final int HEADER_SIZE = 8;
+
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("segment\\.(\\d+)\\.log");
+
+    /**
+     * Creates the writer over the given directory.
+     *
+     * @param directoryPath - the directory for the segment files
+     * @param segmentSize - the size of a single segment in bytes
+     * @throws IOException if the view file cannot be opened
+     */
+    public MappedSegmentDiscWriter(String directoryPath, int segmentSize) throws IOException {
+        if (directoryPath.endsWith("/")) {
+            throw new RuntimeException("Directory path cannot ends with /");
+        }
+        this.directoryPath = directoryPath;
+        this.segmentSize = segmentSize;
+        directory = new File(directoryPath);
+        directory.mkdirs();
+        viewFile = new RandomAccessFile(directoryPath + "/view", "rw");
+    }
+
+    /** Part of the log stored in a single file */
+    private static class Segment {
+        final int number;
+        final File file;
+        MappedByteBuffer buffer;
+        int minInstance = Integer.MAX_VALUE;
+        int maxInstance = -1;
+
+        Segment(int number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+
+        void addInstance(int instanceId) {
+            minInstance = Math.min(minInstance, instanceId);
+            maxInstance = Math.max(maxInstance, instanceId);
+        }
+    }
+
+    public void changeInstanceView(int instanceId, int view) {
+        ByteBuffer record = ByteBuffer.allocate(1 + 4 + 4);
+        record.put(CHANGE_VIEW);
+        record.putInt(instanceId);
+        record.putInt(view);
+        append(record.array(), instanceId, true);
+    }
+
+    public void changeInstanceValue(int instanceId, int view, byte[] value) {
+        ByteBuffer record = ByteBuffer.allocate(1 + /* byte type */
+        4 + /* int instance ID */
+        4 + /* int view */
+        4 + /* int length of value */
+        (value != null ? value.length : 0));
+
+        record.put(CHANGE_VALUE);
+        record.putInt(instanceId);
+        record.putInt(view);
+        if (value == null) {
+            record.putInt(-1);
+        } else {
+            record.putInt(value.length);
+            record.put(value);
+        }
+        append(record.array(), instanceId, true);
+    }
+
+    public void decideInstance(int instanceId) {
+        ByteBuffer record = ByteBuffer.allocate(1 + 4);
+        record.put(DECIDED);
+        record.putInt(instanceId);
+        append(record.array(), instanceId, false);
+    }
+
+    /**
+     * Synchronous records are forced to disc before returning, so the task is
+     * executed immediately.
+     */
+    public void whenDurable(Runnable task) {
+        task.run();
+    }
+
+    public void changeViewNumber(int view) {
+        try {
+            viewFile.seek(0);
+            viewFile.writeInt(view);
+            viewFile.getFD().sync();
+            logger.info("View file sync'd");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int loadViewNumber() throws IOException {
+        if (viewFile.length() < 4) {
+            return 0;
+        }
+        viewFile.seek(0);
+        return viewFile.readInt();
+    }
+
+    private String snapshotFileName() {
+        return directoryPath + "/snapshot." + snapshotFileNumber;
+    }
+
+    public void newSnapshot(Snapshot snapshot) {
+        try {
+            if (this.snapshot != null && snapshot.isExtensionOf(this.snapshot)) {
+                // Only the new deltas are written
+                FileOutputStream fos = new FileOutputStream(snapshotFileName(), true);
+                DataOutputStream snapshotStream = new DataOutputStream(fos);
+                snapshot.writeExtensionTo(snapshotStream, this.snapshot);
+                snapshotStream.flush();
+                fos.getFD().sync();
+                snapshotStream.close();
+                this.snapshot = snapshot;
+                // The segment with the last snapshot record may be deleted
+                appendSnapshotRecord();
+                deleteSegmentsBelow(snapshot.getNextInstanceId());
+                return;
+            }
+
+            String oldSnapshotFileName = snapshotFileName();
+            snapshotFileNumber++;
+            String newSnapshotFileName = snapshotFileName();
+
+            FileOutputStream fos = new FileOutputStream(newSnapshotFileName, false);
+            DataOutputStream snapshotStream = new DataOutputStream(fos);
+            snapshot.writeTo(snapshotStream);
+            snapshotStream.flush();
+            fos.getFD().sync();
+            snapshotStream.close();
+
+            appendSnapshotRecord();
+
+            if (new File(oldSnapshotFileName).exists()) {
+                if (!new File(oldSnapshotFileName).delete()) {
+                    throw new RuntimeException("File removal failed!");
+                }
+            }
+
+            this.snapshot = snapshot;
+            deleteSegmentsBelow(snapshot.getNextInstanceId());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Appends the record pointing to the current snapshot file */
+    private void appendSnapshotRecord() {
+        // byte type(1) + int snapshot file number(4)
+        ByteBuffer record = ByteBuffer.allocate(1 + 4);
+        record.put(SNAPSHOT);
+        record.putInt(snapshotFileNumber);
+        append(record.array(), -1, true);
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void close() throws IOException {
+        if (current != null) {
+            current.buffer.force();
+        }
+        viewFile.close();
+    }
+
+    /**
+     * Removes the segments containing only instances below given id. The
+     * segment being written is never removed, as it holds the record of the
+     * last snapshot, appended just before.
+     */
+    private void deleteSegmentsBelow(int instanceId) {
+        Iterator<Segment> it = segments.values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == current || segment.maxInstance >= instanceId) {
+                continue;
+            }
+            // The mapping stays valid until collected; the file can be removed
+            segment.buffer = null;
+            if (!segment.file.delete()) {
+                logger.warn("Could not delete log segment {}", segment.file);
+            }
+            it.remove();
+            logger.info("Deleted log segment {} (instances {}-{})", segment.number,
+                    segment.minInstance, segment.maxInstance);
+        }
+    }
+
+    private void append(byte[] record, int instanceId, boolean sync) {
+        try {
+            int needed = HEADER_SIZE + record.length;
+            // Leave room for the end marker
+            if (current == null || current.buffer.remaining() < needed + 4) {
+                startSegment(needed + 4);
+            }
+
+            crc.reset();
+            crc.update(record, 0, record.length);
+
+            MappedByteBuffer buffer = current.buffer;
+            buffer.putInt(record.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(record);
+            if (instanceId >= 0) {
+                current.addInstance(instanceId);
+            }
+            if (sync) {
+                buffer.force();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void startSegment(int minSize) throws IOException {
+        if (current != null) {
+            current.buffer.force();
+        }
+        int number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Segment segment = new Segment(number, new File(directoryPath + "/segment." + number +
+                                                       ".log"));
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            segment.buffer = channel.map(MapMode.READ_WRITE, 0, Math.max(segmentSize, minSize));
+        } finally {
+            // the mapping stays valid after the channel is closed
+            file.close();
+        }
+        segments.put(number, segment);
+        current = segment;
+        logger.info("Started log segment {}", segment.file);
+    }
+
+    public Collection<ConsensusInstance> load() throws IOException {
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (String fileName : directory.list()) {
+            Matcher matcher = SEGMENT_PATTERN.matcher(fileName);
+            if (matcher.matches()) {
+                numbers.add(Integer.parseInt(matcher.group(1)));
+            }
+        }
+        Collections.sort(numbers);
+
+        Map<Integer, ConsensusInstance> instances = new TreeMap<Integer, ConsensusInstance>();
+        for (Integer number : numbers) {
+            Segment segment = new Segment(number, new File(directoryPath + "/segment." + number +
+                                                           ".log"));
+            loadSegment(segment, instances);
+            // Recovered segments are not written to any more
+            segment.buffer = null;
+            segments.put(number, segment);
+        }
+
+        if (snapshotFileNumber != -1) {
+            DataInputStream snapshotStream = new DataInputStream(
+                    new FileInputStream(snapshotFileName()));
+            snapshot = Snapshot.readWithExtensions(snapshotStream);
+            snapshotStream.close();
+        }
+
+        return instances.values();
+    }
+
+    private void loadSegment(Segment segment, Map<Integer, ConsensusInstance> instances)
+            throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+        MappedByteBuffer buffer;
+        try {
+            buffer = file.getChannel().map(MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            if (length == 0) {
+                break;
+            }
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                logger.warn("Log segment {} is incomplete at position {}", segment.file,
+                        buffer.position() - HEADER_SIZE);
+                break;
+            }
+
+            ByteBuffer record = buffer.slice();
+            record.limit(length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("Log segment {} is broken at position {}", segment.file,
+                        buffer.position() - HEADER_SIZE);
+                break;
+            }
+            buffer.position(buffer.position() + length);
+
+            applyRecord(record, segment, instances);
+        }
+    }
+
+    private void applyRecord(ByteBuffer record, Segment segment,
+                             Map<Integer, ConsensusInstance> instances) {
+        byte type = record.get();
+        int id = record.getInt();
+
+        switch (type) {
+            case CHANGE_VIEW: {
+                int view = record.getInt();
+                getOrCreate(instances, id).setView(view);
+                segment.addInstance(id);
+                break;
+            }
+            case CHANGE_VALUE: {
+                int view = record.getInt();
+                int length = record.getInt();
+                byte[] value;
+                if (length == -1) {
+                    value = null;
+                } else {
+                    value = new byte[length];
+                    record.get(value);
+                }
+                getOrCreate(instances, id).setValue(view, value);
+                segment.addInstance(id);
+                break;
+            }
+            case DECIDED: {
+                ConsensusInstance instance = instances.get(id);
+                // The earlier records may be in a segment removed after a snapshot
+                if (instance != null) {
+                    instance.setDecided();
+                }
+                segment.addInstance(id);
+                break;
+            }
+            case SNAPSHOT: {
+                snapshotFileNumber = id;
+                break;
+            }
+            default:
+                assert false : "Unrecognized log record type";
+        }
+    }
+
+    private ConsensusInstance getOrCreate(Map<Integer, ConsensusInstance> instances, int id) {
+        ConsensusInstance instance = instances.get(id);
+        if (instance == null) {
+            instance = new ConsensusInstance(id);
+            instances.put(id, instance);
+        }
+        return instance;
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(MappedSegmentDiscWriter.class);
+}
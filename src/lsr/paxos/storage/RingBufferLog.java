@@ -0,0 +1,268 @@
+package lsr.paxos.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import lsr.common.ProcessDescriptor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Version of <code>Log</code> keeping the instances in a growable circular
+ * array instead of a <code>TreeMap</code>.
+ *
+ * Instance ids are dense, so the instance with id <code>i</code> is stored in
+ * slot <code>i & (capacity - 1)</code>; the ring holds the ids from
+ * <code>[first, first + capacity)</code>, where <code>first</code> is the
+ * lowest id not truncated. Lookups need no boxing, truncation clears a range
+ * of slots and the size of the decided part of the log is kept as a running
+ * sum.
+ *
+ * The map views are copies built on each call. <code>getInstanceMap()</code>
+ * and <code>getInstances()</code> copy the whole log and should not be used on
+ * hot paths; <code>getInstanceRange()</code> copies the given range only.
+ */
+public class RingBufferLog extends Log {
+    private ConsensusInstance[] ring;
+    private int mask;
+    private int count = 0;
+    /*
+     * Lowest id held in the ring. Differs from lowestAvailable after
+     * clearUndecidedBelow, which keeps the decided instances below.
+     */
+    private int first = 0;
+
+    /*
+     * Running sum of byte sizes of consecutive decided instances:
+     * sizeSum[slot(i)] = sizeBase + sum of byteSize() of instances in
+     * [first, i]. Valid for ids in [first, sizedUpTo), all of them decided.
+     */
+    private long[] sizeSum;
+    private long sizeBase = 0;
+    private int sizedUpTo = 0;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    public RingBufferLog() {
+        ring = new ConsensusInstance[INITIAL_CAPACITY];
+        sizeSum = new long[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+    }
+
+    public ConsensusInstance getInstanceIfPresent(int instanceId) {
+        if (instanceId < first || instanceId - first > mask) {
+            return null;
+        }
+        ConsensusInstance instance = ring[instanceId & mask];
+        if (instance == null || instance.getInst() != instanceId) {
+            return null;
+        }
+        return instance;
+    }
+
+    public void putInstance(ConsensusInstance instance) {
+        int instanceId = instance.getInst();
+        if (instanceId < first) {
+            return;
+        }
+        ensureCapacity(instanceId);
+        int slot = instanceId & mask;
+        ConsensusInstance old = ring[slot];
+        if (old == null || old.getInst() != instanceId) {
+            count++;
+        }
+        ring[slot] = instance;
+        if (instanceId < sizedUpTo) {
+            // replaced an instance already summed up
+            sizedUpTo = instanceId;
+        }
+    }
+
+    public ConsensusInstance getInstance(int instanceId) {
+        int oldNextId = nextId;
+        while (nextId <= instanceId) {
+            putInstance(createInstance());
+            nextId++;
+        }
+        if (oldNextId != nextId) {
+            sizeChanged();
+        }
+        return getInstanceIfPresent(instanceId);
+    }
+
+    public ConsensusInstance append(int view, byte[] value) {
+        ConsensusInstance instance = createInstance(view, value);
+        putInstance(instance);
+        nextId++;
+        sizeChanged();
+        return instance;
+    }
+
+    public ConsensusInstance append(int view, byte[] value, int instID) {
+        ConsensusInstance instance = getInstanceIfPresent(instID);
+        if (instance != null) {
+            instance.updateStateFromKnown(view, value);
+        } else {
+            instance = createInstance(instID, view, value);
+            putInstance(instance);
+        }
+        if ((instID + 1) > nextId) {
+            nextId = instID + 1;
+        }
+        sizeChanged();
+        return instance;
+    }
+
+    public void truncateBelow(int instanceId) {
+        if (!ProcessDescriptor.getInstance().mayShareSnapshots) {
+            return;
+        }
+
+        assert instanceId >= lowestAvailable : "Cannot truncate below lower available.";
+
+        if (instanceId < sizedUpTo) {
+            sizeBase = sumBelow(instanceId);
+        } else {
+            sizedUpTo = instanceId;
+        }
+        removeBelow(instanceId, false);
+        first = instanceId;
+        lowestAvailable = instanceId;
+        nextId = Math.max(nextId, lowestAvailable);
+
+        if (logger.isInfoEnabled()) {
+            logger.info("Truncated log below: " + instanceId);
+        }
+    }
+
+    public void clearUndecidedBelow(int instanceId) {
+        if (!ProcessDescriptor.getInstance().mayShareSnapshots) {
+            return;
+        }
+
+        if (count == 0) {
+            return;
+        }
+
+        lowestAvailable = instanceId;
+        nextId = Math.max(nextId, lowestAvailable);
+
+        removeBelow(instanceId, true);
+        // removed instances are not counted in the running sum any more
+        sizedUpTo = Math.min(sizedUpTo, Math.max(first, instanceId));
+    }
+
+    private void removeBelow(int instanceId, boolean undecidedOnly) {
+        if (instanceId - first > mask) {
+            if (!undecidedOnly) {
+                Arrays.fill(ring, null);
+                count = 0;
+                return;
+            }
+            instanceId = first + mask + 1;
+        }
+        for (int i = first; i < instanceId; i++) {
+            ConsensusInstance instance = getInstanceIfPresent(i);
+            if (instance == null) {
+                continue;
+            }
+            if (undecidedOnly && instance.getState() == LogEntryState.DECIDED) {
+                continue;
+            }
+            ring[i & mask] = null;
+            count--;
+        }
+    }
+
+    private void ensureCapacity(int instanceId) {
+        if (instanceId - first <= mask) {
+            return;
+        }
+        int capacity = ring.length;
+        while (instanceId - first >= capacity) {
+            capacity <<= 1;
+        }
+        int newMask = capacity - 1;
+        ConsensusInstance[] newRing = new ConsensusInstance[capacity];
+        long[] newSizeSum = new long[capacity];
+        for (int i = first; i < first + ring.length; i++) {
+            newRing[i & newMask] = ring[i & mask];
+            newSizeSum[i & newMask] = sizeSum[i & mask];
+        }
+        ring = newRing;
+        sizeSum = newSizeSum;
+        mask = newMask;
+    }
+
+    /** Extends the running sum over the decided instances below end */
+    private void sumUpTo(int end) {
+        long sum = sumBelow(sizedUpTo);
+        while (sizedUpTo < end) {
+            ConsensusInstance instance = getInstanceIfPresent(sizedUpTo);
+            if (instance != null) {
+                if (instance.getState() != LogEntryState.DECIDED) {
+                    return;
+                }
+                sum += instance.byteSize();
+            }
+            sizeSum[sizedUpTo & mask] = sum;
+            sizedUpTo++;
+        }
+    }
+
+    private long sumBelow(int id) {
+        return id > first ? sizeSum[(id - 1) & mask] : sizeBase;
+    }
+
+    public long byteSizeBetween(int startId, int endId) {
+        int start = Math.max(startId, first);
+        int stop = Math.min(endId, nextId);
+        if (start >= stop) {
+            return 0;
+        }
+        sumUpTo(stop);
+
+        int summed = Math.min(stop, sizedUpTo);
+        long size = start < summed ? sumBelow(summed) - sumBelow(start) : 0;
+        for (int i = Math.max(start, summed); i < stop; ++i) {
+            ConsensusInstance current = getInstanceIfPresent(i);
+            if (current != null) {
+                size += current.byteSize();
+            }
+        }
+        return size;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public SortedMap<Integer, ConsensusInstance> getInstanceMap() {
+        return Collections.unmodifiableSortedMap(getInstances());
+    }
+
+    public TreeMap<Integer, ConsensusInstance> getInstances() {
+        return copyRange(first, nextId);
+    }
+
+    public SortedMap<Integer, ConsensusInstance> getInstanceRange(int startId, int endId) {
+        return Collections.unmodifiableSortedMap(copyRange(startId, endId));
+    }
+
+    private TreeMap<Integer, ConsensusInstance> copyRange(int startId, int endId) {
+        TreeMap<Integer, ConsensusInstance> map = new TreeMap<Integer, ConsensusInstance>();
+        int end = Math.min(Math.min(endId, nextId), first + mask + 1);
+        for (int i = Math.max(startId, first); i < end; i++) {
+            ConsensusInstance instance = getInstanceIfPresent(i);
+            if (instance != null) {
+                map.put(i, instance);
+            }
+        }
+        return map;
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(RingBufferLog.class);
+}
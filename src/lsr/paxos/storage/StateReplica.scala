@@ -24,7 +24,8 @@ class StateReplica() extends Storage
     @volatile protected var view : Integer = 0;
     @volatile protected var firstUncommitted : Integer = 0;
     
-    protected var log : Log = new Log();
+    protected var log : Log =
+        if (ProcessDescriptor.getInstance().ringBufferLog) new RingBufferLog() else new Log();
     
     private var lastSnapshot : Snapshot = new Snapshot();
     
@@ -38,19 +39,39 @@ class StateReplica() extends Storage
     private val descriptor = ProcessDescriptor.getInstance();
     val winSize = descriptor.windowSize 
     
+    /* If set, the generated code only sees the instances of the window */
+    private val incrementalState = descriptor.incrementalState
+    
+    /* Instances handed out by the last getCurrState in incremental mode,
+     * used by updateState to skip the ones the protocol did not change */
+    private val windowView = new java.util.HashMap[Integer, consensus_ext[Array[Byte], Unit]]();
+    
     def getCurrState() : state_ext[Array[Byte], scala.Unit] =
     {
-        val instances = log.getInstances();
-        val first = log.getLowestAvailableId();
+        return getCurrState(firstUncommitted);
+    }
+    
+    def getCurrState(firstNeeded : Int) : state_ext[Array[Byte], scala.Unit] =
+    {
+        var first = log.getLowestAvailableId();
         val nextID = log.getNextId();
+        if (incrementalState) {
+            // Instances below firstUncommitted are decided and are never
+            // changed by the protocol, unless a message refers to them.
+            first = Math.max(first, Math.min(firstNeeded, firstUncommitted));
+            windowView.clear();
+        }
         var insts = emptyInstances[Array[Byte]];
         val id = descriptor.localId;
         val numReplicas = descriptor.numReplicas;
         for (i <- first until nextID) {
-            val instance = instances.get(i);
-            val consensus = instance.getConsensus(numReplicas);
+            val instance = log.getInstanceIfPresent(i);
             if (instance != null) {
+                val consensus = instance.getConsensus(numReplicas);
                 insts = addInstance(i, consensus, insts);
+                if (incrementalState) {
+                    windowView.put(i, consensus);
+                }
             }
         }
         val obs = emptyOBS[Array[Byte]];
@@ -67,19 +88,20 @@ class StateReplica() extends Storage
         val insts = def_getInstances[Array[Byte],Unit](state);
         val ist = def_getInsts(insts);
         
-        val instances = log.getInstances();
-        val first = log.getLowestAvailableId();
         for (i <- ist) {
-            val instance = instances.get(i);
+            val instance = log.getInstanceIfPresent(i);
             val newinstance = finfun_apply(insts, i);
-            if (instance != null) {
+            if (incrementalState && (newinstance eq windowView.get(i))) {
+                // untouched by the protocol, the log already holds it
+            }
+            else if (instance != null) {
                 instance.readConsensus(newinstance);
             }
             else
             {
               var nInstance = new ConsensusInstance(i);
               nInstance.readConsensus(newinstance)
-              instances.put(i, nInstance);
+              log.putInstance(nInstance);
             }
         }
     }
@@ -151,8 +173,7 @@ class StateReplica() extends Storage
             firstUncommitted = Math.max(firstUncommitted, lastSnapshot.getNextInstanceId());
         }
 
-        val logs = log.getInstanceMap();
-        while (firstUncommitted < log.getNextId() && logs.get(firstUncommitted).getState() == LogEntryState.DECIDED) {
+        while (firstUncommitted < log.getNextId() && log.getInstanceIfPresent(firstUncommitted).getState() == LogEntryState.DECIDED) {
             firstUncommitted += 1;
         }
     }
@@ -217,6 +238,11 @@ class StateReplica() extends Storage
         viewChangeListeners -= l;
     }
     
+    /** Nothing is written to disc, so the task is executed immediately */
+    def whenDurable(task : Runnable) : Unit = {
+        task.run();
+    }
+    
     protected def fireViewChangeListeners() = {
         for (l <- viewChangeListeners)
             l.viewChanged(view, descriptor.getLeaderOfView(view));
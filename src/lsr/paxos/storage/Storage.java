@@ -41,6 +41,16 @@ public interface Storage {
     Log getLog();
     
 	state_ext<byte[], scala.Unit> getCurrState();
+
+    /**
+     * Returns the protocol state that is guaranteed to contain all instances
+     * from <code>firstNeeded</code> (or the first uncommitted instance, if
+     * lower) up to the next instance id.
+     * 
+     * @param firstNeeded - the lowest instance the caller is going to access
+     * @return the current protocol state
+     */
+	state_ext<byte[], scala.Unit> getCurrState(int firstNeeded);
     
     void updateState(state_ext<byte[], scala.Unit> s);
 
@@ -171,6 +181,19 @@ public interface Storage {
 
     void removeViewChangeListener(ViewChangeListener l);
 
+    /**
+     * Executes the task once all changes made to this storage so far are on
+     * stable storage. Used to delay replies which must not be sent before the
+     * state they reflect is durable.
+     * 
+     * The task may be executed by the calling thread or by the thread writing
+     * to disc, so it must not block; tasks which touch the protocol state
+     * have to dispatch themselves to the protocol thread.
+     * 
+     * @param task - the task to execute
+     */
+    void whenDurable(Runnable task);
+
     /**
      * Returns an ID that:
      * 
@@ -14,13 +14,13 @@ public class SynchronousLog extends Log {
 
         for (ConsensusInstance instance : instances) {
             while (nextId < instance.getInst()) {
-                this.instances.put(nextId, createInstance());
+                putInstance(createInstance());
                 nextId++;
             }
             nextId++;
 
             ConsensusInstance i = new SynchronousConsensusInstace(instance, this.writer);
-            this.instances.put(instance.getInst(), i);
+            putInstance(i);
         }
     }
 
@@ -45,4 +45,8 @@ class SynchronousStorage extends StateReplica {
         writer.newSnapshot(snapshot);
         super.setLastSnapshot(snapshot);
     }
+
+    override def whenDurable(task : Runnable) {
+        writer.whenDurable(task);
+    }
 }
@@ -124,7 +124,7 @@ public class DigestService extends AbstractService {
         Configuration config = new Configuration();
         DigestService service = new DigestService(localId);
         Replica replica = new Replica(config, localId, service);
-        service.initLogFile(processDescriptor.logPath);
+        service.initLogFile(processDescriptor().logPath);
         replica.start();
         System.in.read();
         System.exit(-1);
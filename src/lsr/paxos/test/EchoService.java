@@ -49,7 +49,7 @@ public class EchoService extends AbstractService {
                 if (time - lastSeenTime <= MIN_SAMPLING_MS)
                     return;
                 int seqNo = lastSeqNo;
-                logger.info(ProcessDescriptor.processDescriptor.logMark_Benchmark, "RPS: {}",
+                logger.info(ProcessDescriptor.processDescriptor().logMark_Benchmark, "RPS: {}",
                         (seqNo - lastSeenSeqNo) * (1000.0 / (time - lastSeenTime)));
                 lastSeenSeqNo = seqNo;
                 lastSeenTime = time;
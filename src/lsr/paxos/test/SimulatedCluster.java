@@ -0,0 +1,187 @@
+package lsr.paxos.test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+import lsr.common.Configuration;
+import lsr.common.Histogram;
+import lsr.common.PID;
+import lsr.common.ProcessDescriptor;
+import lsr.common.SimpleIdGenerator;
+import lsr.paxos.replica.Replica;
+import lsr.service.AbstractService;
+
+/**
+ * Runs a whole cluster in this JVM, the replicas talking over the
+ * <code>SimulatedNetwork</code>, and measures the throughput and latency of
+ * the requests that the replicas submit through their internal clients.
+ *
+ * Usage: SimulatedCluster replicas requests window requestSize [key=value]...
+ *
+ * Each replica submits <code>requests</code> requests of
+ * <code>requestSize</code> bytes, with at most <code>window</code> of them
+ * waiting to be executed. The latency of a request is measured from its
+ * submission to its execution by the replica that submitted it. The
+ * remaining arguments are added to the configuration, e.g.
+ * <code>SimulatedLatency=500 SimulatedLoss=0.01 WindowSize=4</code>.
+ *
+ * Clients still connect to the replicas through sockets, so each replica
+ * listens on the client port 3000 + its id.
+ */
+public class SimulatedCluster {
+
+    private static final int CLIENT_PORT = 3000;
+    /* Replica ports are not opened by the simulated network */
+    private static final int REPLICA_PORT = 2000;
+
+    private static final Histogram latency = new Histogram();
+
+    /** Submits requests and counts the ones executed by its replica */
+    private static class LoadService extends AbstractService {
+        private final int localId;
+        private final int requestSize;
+        private final Semaphore window;
+        private final CountDownLatch ready;
+        private final CountDownLatch go;
+        private final CountDownLatch done;
+
+        private Replica replica;
+        private int toSubmit;
+        private int toExecute;
+        private int executeSeqNo;
+
+        LoadService(int localId, int requests, int window, int requestSize,
+                    CountDownLatch ready, CountDownLatch go, CountDownLatch done) {
+            this.localId = localId;
+            this.requestSize = Math.max(requestSize, 9);
+            this.window = new Semaphore(window);
+            this.ready = ready;
+            this.go = go;
+            this.done = done;
+            toSubmit = toExecute = requests;
+        }
+
+        void setReplica(Replica replica) {
+            this.replica = replica;
+        }
+
+        public byte[] execute(byte[] value, int executeSeqNo) {
+            this.executeSeqNo = executeSeqNo;
+            if (value[0] == (byte) localId) {
+                latency.recordSince(ByteBuffer.wrap(value, 1, 8).getLong());
+                window.release();
+                if (--toExecute == 0) {
+                    done.countDown();
+                }
+            }
+            return new byte[0];
+        }
+
+        public void askForSnapshot(int lastSnapshotNextRequestSeqNo) {
+            forceSnapshot(lastSnapshotNextRequestSeqNo);
+        }
+
+        public void forceSnapshot(int lastSnapshotNextRequestSeqNo) {
+            fireSnapshotMade(executeSeqNo + 1, new byte[0], null);
+        }
+
+        public void updateToSnapshot(int nextRequestSeqNo, byte[] snapshot) {
+            executeSeqNo = nextRequestSeqNo - 1;
+        }
+
+        public void recoveryFinished() {
+            super.recoveryFinished();
+            // Started by a thread of the replica, so it sees its descriptor
+            Thread sender = new Thread("LoadSender-" + localId) {
+                public void run() {
+                    submit();
+                }
+            };
+            sender.setDaemon(true);
+            sender.start();
+            ready.countDown();
+        }
+
+        private void submit() {
+            try {
+                go.await();
+                while (toSubmit-- > 0) {
+                    window.acquire();
+                    ByteBuffer request = ByteBuffer.allocate(requestSize);
+                    request.put((byte) localId);
+                    request.putLong(System.nanoTime());
+                    replica.executeNonFifo(request.array());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println(
+                    "Usage: SimulatedCluster replicas requests window requestSize [key=value]...");
+            System.exit(1);
+        }
+        final int n = Integer.parseInt(args[0]);
+        final int requests = Integer.parseInt(args[1]);
+        final int window = Integer.parseInt(args[2]);
+        final int requestSize = Integer.parseInt(args[3]);
+
+        Properties properties = new Properties();
+        properties.setProperty("Network", "Simulated");
+        for (int i = 4; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            properties.setProperty(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        List<PID> processes = new ArrayList<PID>();
+        for (int i = 0; i < n; i++) {
+            processes.add(new PID(i, "localhost", REPLICA_PORT + i, CLIENT_PORT + i));
+        }
+        final Configuration config = new Configuration(processes, properties);
+
+        final CountDownLatch ready = new CountDownLatch(n);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(n);
+
+        for (int i = 0; i < n; i++) {
+            final int localId = i;
+            Thread starter = new Thread("Replica-" + localId) {
+                public void run() {
+                    ProcessDescriptor.initializeForThread(config, localId);
+                    LoadService service = new LoadService(localId, requests, window,
+                            requestSize, ready, go, done);
+                    try {
+                        Replica replica = new Replica(config, localId, service);
+                        // each replica gives its own client ids
+                        replica.setIdGenerator(new SimpleIdGenerator(localId, n));
+                        service.setReplica(replica);
+                        replica.start();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            starter.start();
+        }
+        ready.await();
+
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        long executed = latency.getCount();
+        System.out.println(String.format("%d replicas, %d requests in %.3f s: %.0f req/s", n,
+                executed, elapsed / 1e9, executed * 1e9 / elapsed));
+        System.out.println(String.format("latency us: mean %d, p50 %d, p99 %d, max %d",
+                latency.getMean() / 1000, latency.getPercentile(0.5) / 1000,
+                latency.getPercentile(0.99) / 1000, latency.getMax() / 1000));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,154 @@
+package lsr.paxos.test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the trace files of the replicas (see <code>lsr.common.Tracer</code>)
+ * into per-request waterfalls: the stages of a request, followed by the
+ * stages of the instance which ordered it on all replicas, in time order.
+ * Prints the slowest traced requests, from receiving the request to sending
+ * its reply.
+ *
+ * Usage: TraceWaterfall [-n count] traceFile...
+ *
+ * The times of different replicas are as good as their clocks are
+ * synchronized.
+ */
+public class TraceWaterfall {
+
+    private static class Event {
+        final long time;
+        final int replica;
+        final String stage;
+        final long id1;
+        final long id2;
+        final long id3;
+
+        Event(String line) {
+            String[] fields = line.trim().split(" ");
+            time = Long.parseLong(fields[0]);
+            replica = Integer.parseInt(fields[1]);
+            stage = fields[2];
+            id1 = Long.parseLong(fields[3]);
+            id2 = Long.parseLong(fields[4]);
+            id3 = Long.parseLong(fields[5]);
+        }
+    }
+
+    private static final Comparator<Event> BY_TIME = new Comparator<Event>() {
+        public int compare(Event e1, Event e2) {
+            return e1.time < e2.time ? -1 : (e1.time == e2.time ? 0 : 1);
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        int count = 10;
+        int first = 0;
+        if (args.length > 1 && args[0].equals("-n")) {
+            count = Integer.parseInt(args[1]);
+            first = 2;
+        }
+        if (first >= args.length) {
+            System.err.println("Usage: TraceWaterfall [-n count] traceFile...");
+            System.exit(1);
+        }
+
+        Map<String, List<Event>> requests = new HashMap<String, List<Event>>();
+        Map<Long, List<Event>> instances = new HashMap<Long, List<Event>>();
+        Map<String, Long> instanceOf = new HashMap<String, Long>();
+
+        for (int i = first; i < args.length; i++) {
+            BufferedReader reader = new BufferedReader(new FileReader(args[i]));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    Event event = new Event(line);
+                    if (isInstanceStage(event.stage)) {
+                        add(instances, event.id1, event);
+                    } else {
+                        String request = event.id1 + ":" + event.id2;
+                        add(requests, request, event);
+                        if (event.stage.equals("execute")) {
+                            instanceOf.put(request, event.id3);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        // requests with both ends traced, the slowest first
+        final Map<String, Long> latencies = new HashMap<String, Long>();
+        for (Map.Entry<String, List<Event>> request : requests.entrySet()) {
+            Event receive = find(request.getValue(), "receive");
+            Event reply = find(request.getValue(), "reply");
+            if (receive != null && reply != null) {
+                latencies.put(request.getKey(), reply.time - receive.time);
+            }
+        }
+        List<String> slowest = new ArrayList<String>(latencies.keySet());
+        Collections.sort(slowest, new Comparator<String>() {
+            public int compare(String r1, String r2) {
+                return latencies.get(r2).compareTo(latencies.get(r1));
+            }
+        });
+
+        System.out.println("Traced requests: " + requests.size() + ", complete: " +
+                           latencies.size());
+        for (String request : slowest.subList(0, Math.min(count, slowest.size()))) {
+            List<Event> waterfall = new ArrayList<Event>(requests.get(request));
+            Long instance = instanceOf.get(request);
+            if (instance != null && instances.containsKey(instance)) {
+                waterfall.addAll(instances.get(instance));
+            }
+            Collections.sort(waterfall, BY_TIME);
+
+            System.out.println();
+            System.out.println("Request " + request + " instance " + instance + ": " +
+                               latencies.get(request) / 1000 + " us");
+            long start = waterfall.get(0).time;
+            for (Event event : waterfall) {
+                String peer = event.stage.equals("2a") || event.stage.equals("2b")
+                        ? " from " + event.id2 : "";
+                System.out.println(String.format("  %10d us  replica %d  %s%s",
+                        (event.time - start) / 1000, event.replica, event.stage, peer));
+            }
+        }
+    }
+
+    private static boolean isInstanceStage(String stage) {
+        return stage.equals("propose") || stage.equals("2a") || stage.equals("2b") ||
+               stage.equals("decide");
+    }
+
+    private static <K> void add(Map<K, List<Event>> events, K key, Event event) {
+        List<Event> list = events.get(key);
+        if (list == null) {
+            list = new ArrayList<Event>();
+            events.put(key, list);
+        }
+        list.add(event);
+    }
+
+    private static Event find(List<Event> events, String stage) {
+        Event found = null;
+        for (Event event : events) {
+            if (event.stage.equals(stage) && (found == null || event.time < found.time)) {
+                found = event;
+            }
+        }
+        return found;
+    }
+}
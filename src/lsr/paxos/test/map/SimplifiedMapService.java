@@ -7,11 +7,20 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.HashMap;
+import java.util.List;
 
-import lsr.service.SimplifiedService;
+import lsr.service.SimplifiedDeltaService;
+import lsr.service.SnapshotView;
 
-public class SimplifiedMapService extends SimplifiedService {
+public class SimplifiedMapService extends SimplifiedDeltaService {
     private HashMap<Long, Long> map = new HashMap<Long, Long>();
+    /*
+     * While a snapshot of map is serialized, map is not modified and the
+     * changes are kept here instead.
+     */
+    private HashMap<Long, Long> changes = null;
+    /* Entries written since the last captured view, for delta snapshots */
+    private HashMap<Long, Long> written = new HashMap<Long, Long>();
 
     protected byte[] execute(byte[] value) {
         MapServiceCommand command;
@@ -21,12 +30,17 @@ public class SimplifiedMapService extends SimplifiedService {
             throw new RuntimeException(e);
         }
 
-        Long x = map.get(command.getKey());
+        Long x = get(command.getKey());
         if (x == null) {
             x = Long.valueOf(0);
         }
 
-        map.put(command.getKey(), command.getValue());
+        if (changes != null) {
+            changes.put(command.getKey(), command.getValue());
+        } else {
+            map.put(command.getKey(), command.getValue());
+        }
+        written.put(command.getKey(), command.getValue());
 
         ByteArrayOutputStream byteArrayOutput = new ByteArrayOutputStream();
         DataOutputStream dataOutput = new DataOutputStream(byteArrayOutput);
@@ -40,7 +54,58 @@ public class SimplifiedMapService extends SimplifiedService {
         return byteArrayOutput.toByteArray();
     }
 
+    private Long get(Long key) {
+        if (changes != null && changes.containsKey(key)) {
+            return changes.get(key);
+        }
+        return map.get(key);
+    }
+
+    protected SnapshotView captureSnapshot() {
+        final HashMap<Long, Long> captured = map;
+        changes = new HashMap<Long, Long>();
+        written = new HashMap<Long, Long>();
+        return new SnapshotView() {
+            public byte[] serialize() {
+                return toByteArray(captured);
+            }
+        };
+    }
+
+    protected SnapshotView captureDelta() {
+        final HashMap<Long, Long> captured = written;
+        written = new HashMap<Long, Long>();
+        return new SnapshotView() {
+            public byte[] serialize() {
+                return toByteArray(captured);
+            }
+        };
+    }
+
+    public void updateToDelta(byte[] delta) {
+        map.putAll(fromByteArray(delta));
+    }
+
+    public byte[] compact(byte[] snapshot, List<byte[]> deltas) {
+        HashMap<Long, Long> compacted = fromByteArray(snapshot);
+        for (byte[] delta : deltas) {
+            compacted.putAll(fromByteArray(delta));
+        }
+        return toByteArray(compacted);
+    }
+
+    protected void snapshotViewReleased() {
+        if (changes != null) {
+            map.putAll(changes);
+            changes = null;
+        }
+    }
+
     protected byte[] makeSnapshot() {
+        return toByteArray(map);
+    }
+
+    private static byte[] toByteArray(HashMap<Long, Long> map) {
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         try {
             ObjectOutputStream objectOutputStream = new ObjectOutputStream(stream);
@@ -52,17 +117,24 @@ public class SimplifiedMapService extends SimplifiedService {
         return stream.toByteArray();
     }
 
-    @SuppressWarnings("unchecked")
     protected void updateToSnapshot(byte[] snapshot) {
+        map = fromByteArray(snapshot);
+        // the captured map is not used any more
+        changes = null;
+        written = new HashMap<Long, Long>();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static HashMap<Long, Long> fromByteArray(byte[] snapshot) {
         ByteArrayInputStream stream = new ByteArrayInputStream(snapshot);
         ObjectInputStream objectInputStream;
         try {
             objectInputStream = new ObjectInputStream(stream);
-            map = (HashMap<Long, Long>) objectInputStream.readObject();
+            return (HashMap<Long, Long>) objectInputStream.readObject();
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException(e);
         } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            throw new RuntimeException(e);
         }
     }
 }
@@ -3,6 +3,7 @@ package lsr.service;
 import java.util.ArrayList;
 import java.util.List;
 
+import lsr.paxos.replica.DeltaSnapshotListener;
 import lsr.paxos.replica.SnapshotListener;
 
 /**
@@ -36,6 +37,31 @@ public abstract class AbstractService implements Service {
         }
     }
 
+    /**
+     * Notifies all active listeners that new delta snapshot has been made.
+     * Only for services implementing {@link DeltaSnapshotService}.
+     * 
+     * @param nextRequestSeqNo - the next sequential number (last executed
+     *            sequential number+1) of created snapshot
+     * @param delta - the changes since the previous snapshot
+     * @param response - as for {@link #fireSnapshotMade(int, byte[], byte[])}
+     * @return false if some listener dropped the delta; the next snapshot must
+     *         then be a full one
+     * @throws IllegalStateException if some listener does not accept deltas
+     */
+    protected boolean fireDeltaSnapshotMade(int nextRequestSeqNo, byte[] delta,
+                                            byte[] response) {
+        boolean accepted = true;
+        for (SnapshotListener listener : listeners) {
+            if (!(listener instanceof DeltaSnapshotListener)) {
+                throw new IllegalStateException("Listener does not accept deltas: " + listener);
+            }
+            accepted &= ((DeltaSnapshotListener) listener).onDeltaSnapshotMade(
+                    nextRequestSeqNo, delta, response);
+        }
+        return accepted;
+    }
+
     /**
      * Informs the service that the recovery process has been finished, i.e.
      * that the service is at least at the state later than by crashing.
@@ -48,4 +74,4 @@ public abstract class AbstractService implements Service {
     public void recoveryFinished() {
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,40 @@
+package lsr.service;
+
+import java.util.List;
+
+import lsr.paxos.replica.DeltaSnapshotListener;
+
+/**
+ * A {@link Service} which can make delta snapshots, holding only the changes
+ * made since the previous snapshot, instead of a copy of the whole state.
+ * <p>
+ * A delta is passed to the listeners which are {@link DeltaSnapshotListener}.
+ * It describes the changes since the last snapshot made by the service, or
+ * the last one the service was updated to. The first snapshot must be a full
+ * one, made as by any <code>Service</code>.
+ * <p>
+ * The replica keeps the deltas chained to the last full snapshot, and merges
+ * them from time to time into a new full snapshot using
+ * {@link #compact(byte[], List)}.
+ */
+public interface DeltaSnapshotService extends Service {
+    /**
+     * Applies a delta on the state restored by <code>updateToSnapshot</code>.
+     * Called for each delta of the restored snapshot, in order, after
+     * <code>updateToSnapshot</code>.
+     * 
+     * @param delta - the changes to apply
+     */
+    void updateToDelta(byte[] delta);
+
+    /**
+     * Merges the deltas into the snapshot they are chained to. Called on a
+     * background thread, concurrently with other methods, so it must not use
+     * the state of the service.
+     * 
+     * @param snapshot - the full snapshot
+     * @param deltas - the deltas made after the snapshot, in order
+     * @return the full snapshot of the state after the deltas
+     */
+    byte[] compact(byte[] snapshot, List<byte[]> deltas);
+}
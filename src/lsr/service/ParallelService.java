@@ -0,0 +1,28 @@
+package lsr.service;
+
+/**
+ * A {@link Service} whose requests may be executed concurrently. Each request
+ * has a set of conflict keys, naming the parts of the state it reads or
+ * modifies. Requests with a common key are executed in the order they were
+ * decided; requests with no common key may be executed at the same time, on
+ * different threads.
+ * <p>
+ * Used only if <code>ExecutionThreads</code> is greater than 1. Then
+ * <code>execute</code> is called concurrently and must be safe for requests
+ * with disjoint keys; the sequence numbers given to it are not increasing.
+ * The other methods are called only when no request is being executed. The
+ * snapshots cannot be made from within <code>execute</code>.
+ */
+public interface ParallelService extends Service {
+    /**
+     * Returns the conflict keys of the request. The keys may be hashes; two
+     * requests with the same key are only executed one after another, even if
+     * they do not conflict. Called on the replica thread, before the request
+     * is executed.
+     * 
+     * @param value - the request, as passed to <code>execute</code>
+     * @return the conflict keys, or null if the request conflicts with all
+     *         other requests
+     */
+    long[] conflictKeys(byte[] value);
+}
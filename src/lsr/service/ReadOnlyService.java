@@ -0,0 +1,25 @@
+package lsr.service;
+
+/**
+ * A {@link Service} able to answer read-only requests without ordering them.
+ * <p>
+ * The requests sent with <code>Client.executeRead</code> are answered by the
+ * leader calling <code>executeReadOnly</code> while it holds its lease, after
+ * executing all requests decided before the read was received. Otherwise,
+ * e.g. on other replicas or during a view change, they are ordered and given
+ * to <code>execute</code> as any other request, so <code>execute</code> must
+ * accept them too.
+ * <p>
+ * Used only if <code>LeaderLeaseReads</code> is set.
+ */
+public interface ReadOnlyService extends Service {
+    /**
+     * Answers the read-only request from the current state, which must not be
+     * modified. Called on the replica thread, between the executions of two
+     * requests.
+     * 
+     * @param value - the request
+     * @return the reply to send to the client
+     */
+    byte[] executeReadOnly(byte[] value);
+}
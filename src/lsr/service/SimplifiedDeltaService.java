@@ -0,0 +1,25 @@
+package lsr.service;
+
+/**
+ * A {@link SimplifiedService} which makes delta snapshots. With
+ * <code>DeltaSnapshots</code> enabled, every snapshot but the first holds only
+ * the changes captured by {@link #captureDelta()}; the replica restores them
+ * with <code>updateToDelta</code> and merges them with <code>compact</code>.
+ */
+public abstract class SimplifiedDeltaService extends SimplifiedService
+        implements DeltaSnapshotService {
+
+    /**
+     * Captures the changes made since the last captured view, or since the
+     * state was restored from a snapshot. Used as
+     * {@link #captureSnapshot()}; the serialized delta is passed to
+     * {@link #updateToDelta(byte[])} when restoring the state.
+     * 
+     * @return the view of the changes, or null to make a full snapshot
+     */
+    protected abstract SnapshotView captureDelta();
+
+    final SnapshotView captureDeltaView() {
+        return captureDelta();
+    }
+}
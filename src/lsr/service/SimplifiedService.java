@@ -1,5 +1,8 @@
 package lsr.service;
 
+import static lsr.common.ProcessDescriptor.processDescriptor;
+
+import lsr.common.SingleThreadDispatcher;
 import lsr.paxos.replica.Replica;
 
 /**
@@ -16,12 +19,35 @@ import lsr.paxos.replica.Replica;
  * snapshots is invoked by framework. If more control for making snapshot is
  * needed then <code>Service</code> interface should be implemented.
  * <p>
+ * A service with a large state should also override
+ * <code>captureSnapshot</code>. The snapshots are then serialized on a
+ * background thread from the captured view, while the requests are executed.
+ * <p>
+ * A service able to make delta snapshots extends
+ * {@link SimplifiedDeltaService} instead.
+ * <p>
  * All methods are called from the same thread, so it is not necessary to
  * synchronize them.
  * 
  */
 public abstract class SimplifiedService extends AbstractService {
     private int lastExecutedSeq;
+    /* If a snapshot was made or restored, so a delta may follow it */
+    private boolean hasSnapshot = false;
+    /*
+     * Set by the snapshot thread if a snapshot was not published: the next
+     * delta would miss the changes captured in it.
+     */
+    private volatile boolean fullSnapshotNeeded = false;
+
+    /** Serializes the captured views; created on first use */
+    private SingleThreadDispatcher snapshotThread;
+    /* True from capturing a view until snapshotViewReleased is called */
+    private boolean snapshotInProgress = false;
+    /* Set by the snapshot thread once done with the view */
+    private volatile boolean viewReleased = false;
+    /* Changed when the state is replaced; snapshots of old state are dropped */
+    private volatile int stateGeneration = 0;
 
     /**
      * Executes one command from client on this state machine. This method will
@@ -51,7 +77,38 @@ public abstract class SimplifiedService extends AbstractService {
      */
     protected abstract void updateToSnapshot(byte[] snapshot);
 
+    /**
+     * Captures a view of the current state, to be serialized on a background
+     * thread. Must be cheap, as it runs on the replica thread; after it
+     * returns, the view must not change until
+     * {@link #snapshotViewReleased()} is called.
+     * <p>
+     * By default returns null, and the snapshots are made synchronously using
+     * {@link #makeSnapshot()}.
+     * 
+     * @return the view of the current state, or null if not supported
+     */
+    protected SnapshotView captureSnapshot() {
+        return null;
+    }
+
+    /**
+     * Captures the changes since the last snapshot; only services making
+     * delta snapshots return a view.
+     */
+    SnapshotView captureDeltaView() {
+        return null;
+    }
+
+    /**
+     * Called on the replica thread after the last captured view was
+     * serialized, so the service may modify the captured state again.
+     */
+    protected void snapshotViewReleased() {
+    }
+
     public final byte[] execute(byte[] value, int seqNo) {
+        checkViewReleased();
         lastExecutedSeq = seqNo;
         return execute(value);
     }
@@ -61,12 +118,87 @@ public abstract class SimplifiedService extends AbstractService {
     }
 
     public final void forceSnapshot(int lastNestSeq) {
-        byte[] snapshot = makeSnapshot();
-        fireSnapshotMade(lastExecutedSeq + 1, snapshot, null);
+        checkViewReleased();
+        if (snapshotInProgress) {
+            // the snapshot being made will do
+            return;
+        }
+
+        SnapshotView view = null;
+        boolean delta = false;
+        if (processDescriptor().deltaSnapshots && hasSnapshot && !fullSnapshotNeeded) {
+            view = captureDeltaView();
+            delta = view != null;
+        }
+        if (view == null) {
+            fullSnapshotNeeded = false;
+            view = captureSnapshot();
+        }
+        hasSnapshot = true;
+        if (view == null) {
+            byte[] snapshot = makeSnapshot();
+            fireSnapshotMade(lastExecutedSeq + 1, snapshot, null);
+            return;
+        }
+
+        if (snapshotThread == null) {
+            snapshotThread = new SingleThreadDispatcher("SnapshotWriter");
+        }
+        snapshotInProgress = true;
+        snapshotThread.execute(new SnapshotTask(view, delta, lastExecutedSeq + 1,
+                stateGeneration));
     }
 
     public final void updateToSnapshot(int nextSeq, byte[] snapshot) {
+        checkViewReleased();
+        stateGeneration++;
+        hasSnapshot = true;
         lastExecutedSeq = nextSeq - 1;
         updateToSnapshot(snapshot);
     }
-}
\ No newline at end of file
+
+    private void checkViewReleased() {
+        if (viewReleased) {
+            viewReleased = false;
+            snapshotInProgress = false;
+            snapshotViewReleased();
+        }
+    }
+
+    /** Serializes a view and passes the snapshot to the listeners */
+    private final class SnapshotTask implements Runnable {
+        private final SnapshotView view;
+        private final boolean delta;
+        private final int nextRequestSeqNo;
+        private final int generation;
+
+        SnapshotTask(SnapshotView view, boolean delta, int nextRequestSeqNo, int generation) {
+            this.view = view;
+            this.delta = delta;
+            this.nextRequestSeqNo = nextRequestSeqNo;
+            this.generation = generation;
+        }
+
+        public void run() {
+            boolean published = false;
+            try {
+                byte[] snapshot = view.serialize();
+                // The listeners hand the snapshot over to the replica thread
+                if (snapshot != null && generation == stateGeneration) {
+                    if (delta) {
+                        published = fireDeltaSnapshotMade(nextRequestSeqNo, snapshot, null);
+                    } else {
+                        fireSnapshotMade(nextRequestSeqNo, snapshot, null);
+                        published = true;
+                    }
+                }
+            } finally {
+                // Known before the replica thread may capture the next view
+                if (!published) {
+                    fullSnapshotNeeded = true;
+                }
+                viewReleased = true;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,20 @@
+package lsr.service;
+
+/**
+ * Consistent, point-in-time view of the state of a service, used to make a
+ * snapshot without stopping the execution of requests. The view is captured
+ * on the replica thread and must not be affected by the requests executed
+ * afterwards; usually it keeps the current data structures, while the service
+ * writes its changes elsewhere (copy-on-write).
+ * 
+ * @see SimplifiedService#captureSnapshot()
+ */
+public interface SnapshotView {
+    /**
+     * Serializes the state captured by this view. Called on a background
+     * thread, concurrently with the execution of requests.
+     * 
+     * @return the data containing the captured state, or null on failure
+     */
+    byte[] serialize();
+}
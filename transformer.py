@@ -2,6 +2,75 @@
 
 import re,sys
 
+# Refinement of the finite functions (the instance map and the 1b votes) to a
+# HAMT holding the arguments not mapped to the default value. Same functions
+# as the proved ones, without walking the update chain on every lookup.
+REFINED_FINFUN = '''abstract sealed class finfun[A, B]
+final case class finfun_map[A, B](c: B, m: scala.collection.immutable.HashMap[A, B])
+  extends finfun[A, B]
+{
+  override def toString = m.map({ case (a, b) => "[" + a.toString() + " |-> " + b.toString() + "]" }).mkString + "[default |-> " + c.toString() + "]"
+}
+
+def finfun_const[B, A](c: B): finfun[A, B] =
+  finfun_map[A, B](c, scala.collection.immutable.HashMap.empty[A, B])
+
+def finfun_update_code[A, B](x0: finfun[A, B], a: A, b: B): finfun[A, B] =
+  x0 match {
+  case finfun_map(c, m) => finfun_map[A, B](c, (if (b == c) m - a else m.updated(a, b)))
+}
+
+def finfun_update[A : equal, B : equal](x0: finfun[A, B], a: A, b: B):
+      finfun[A, B]
+  =
+  x0 match {
+  case finfun_map(c, m) => finfun_map[A, B](c, (if (eq[B](b, c)) m - a else m.updated(a, b)))
+}
+
+def finfun_apply[A : equal, B](x0: finfun[A, B], a: A): B = x0 match {
+  case finfun_map(c, m) => m.getOrElse(a, c)
+}
+
+def finfun_Diag[A : equal, B : equal,
+                 C : equal](x0: finfun[A, B], g: finfun[A, C]):
+      finfun[A, (B, C)]
+  =
+  (x0, g) match {
+  case (finfun_map(b, f), finfun_map(c, h)) =>
+    finfun_map[A, (B, C)]((b, c),
+      (f.keySet ++ h.keySet).foldLeft(scala.collection.immutable.HashMap.empty[A, (B, C)])(
+        (m, a) => m.updated(a, (f.getOrElse(a, b), h.getOrElse(a, c)))))
+}
+
+def finfun_comp[A, B, C](g: A => B, x1: finfun[C, A]): finfun[C, B] = x1 match {
+  case finfun_map(c, m) =>
+    val d: B = g(c)
+    finfun_map[C, B](d, m.foldLeft(scala.collection.immutable.HashMap.empty[C, B])(
+      (r, e) => { val v: B = g(e._2); if (v == d) r else r.updated(e._1, v) }))
+}
+
+def finfun_default[A : card_UNIV : equal, B](x0: finfun[A, B]): B = x0 match {
+  case finfun_map(c, m) =>
+    (if (equal_nata(card[A](top_set[A]), zero_nat)) c
+      else sys.error("undefined"))
+}
+
+def finfun_to_list[A : card_UNIV : equal : linorder,
+                    B : equal](x0: finfun[A, B]):
+      List[A]
+  =
+  x0 match {
+  case finfun_map(c, m) =>
+    (if (equal_nata(card[A](top_set[A]), zero_nat))
+      m.keys.toList.sortWith((x: A, y: A) => less[A](x, y))
+      else sys.error("finfun_to_list called on finite type"))
+}
+'''
+
+# Functions on finite functions replaced by REFINED_FINFUN
+REFINED_DEFS = ['finfun_update', 'finfun_apply', 'finfun_Diag', 'finfun_comp',
+                'finfun_default', 'finfun_to_list']
+
 print('=====================================================================')
 
 def scalaEquals(classname, arglist, argString):
@@ -52,6 +121,10 @@ def scalaToString(classname, arglist):
 
 inputfile = sys.argv[1]
 outputfile = sys.argv[2]
+# With --refined, the finite functions are refined to REFINED_FINFUN. The
+# output is a drop-in replacement of src/lsr/paxos/core/MultiPaxosImpl.scala:
+# the representation is chosen when the code is generated.
+refined = len(sys.argv) > 3 and sys.argv[3] == '--refined'
 
 #Read the content of the file
 scalafile = open(inputfile, 'r')
@@ -66,7 +139,16 @@ line = scalafile.readline()
 
 while line:
   newline = line.replace("MPLib.nat","Integer").replace("MPLib.fset","List")
-  if line.lstrip().startswith('final case class'):
+  if refined and line.startswith('abstract sealed class finfun'):
+    # skip the datatype and its constructors, up to the blank line
+    while line.strip():
+      line = scalafile.readline()
+    nfile.write(REFINED_FINFUN)
+    nfile.write('\n')
+  elif refined and re.match('def (' + '|'.join(REFINED_DEFS) + ')\[', line):
+    while line.strip():
+      line = scalafile.readline()
+  elif line.lstrip().startswith('final case class'):
     while re.search('extends', line) == None:
       line = scalafile.readline()
       newline += line.replace("MPLib.nat","Integer").replace("MPLib.fset","List")